@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Chooses the page size of the searches of a {@link Paginator} from the time taken and the bytes
+ * returned by the pages fetched so far.
+ *
+ * The page size starts at the default of the API.  After each page, the number of items which
+ * would have taken the target time to fetch, and would not have exceeded {@link #MAX_PAGE_BYTES},
+ * is estimated from that page; the page size moves towards it, but by at most a factor of two per
+ * page so that a single slow or fast page does not swing it too far.  The page size only grows
+ * after full pages, since a partial page says little about how long a larger one would take.
+ *
+ * The page size is shared by all searches of the paginator, which may be running concurrently.
+ */
+final class AdaptivePageSize {
+
+  /**
+   * The size of the largest response to aim for, as reported by its Content-Length.
+   */
+  static final long MAX_PAGE_BYTES = 16L << 20;
+
+  private final int maxPageSize;
+  private final long targetPageMillis;
+  private int pageSize;
+
+  /**
+   * @param initialPageSize The page size to start with.
+   * @param maxPageSize The largest page size the API accepts.
+   * @param targetPageMillis How long fetching a page should take.
+   */
+  AdaptivePageSize(int initialPageSize, int maxPageSize, long targetPageMillis) {
+    Preconditions.checkArgument(0 < initialPageSize && initialPageSize <= maxPageSize,
+        "initialPageSize must be positive and at most maxPageSize");
+    Preconditions.checkArgument(0 < targetPageMillis, "targetPageMillis must be positive");
+    this.maxPageSize = maxPageSize;
+    this.targetPageMillis = targetPageMillis;
+    this.pageSize = initialPageSize;
+  }
+
+  /**
+   * @return the page size to request next
+   */
+  synchronized int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Adjust the page size after fetching a page.
+   *
+   * @param requestedPageSize The page size with which the page was requested.
+   * @param numItems The number of items on the page.
+   * @param millis How long fetching the page took.
+   * @param bytes The size of the response, or a negative number if it is unknown.
+   */
+  synchronized void update(int requestedPageSize, int numItems, long millis, long bytes) {
+    if (0 == numItems) {
+      return;
+    }
+    double ideal = (double) numItems * targetPageMillis / Math.max(1, millis);
+    if (0 < bytes) {
+      ideal = Math.min(ideal, (double) numItems * MAX_PAGE_BYTES / bytes);
+    }
+    if (numItems < requestedPageSize) {
+      ideal = Math.min(ideal, requestedPageSize);
+    }
+    double next = Math.max(requestedPageSize / 2.0, Math.min(ideal, 2.0 * requestedPageSize));
+    pageSize = (int) Math.max(1, Math.min(maxPageSize, next));
+  }
+
+  /**
+   * Halve the page size after a page timed out.
+   *
+   * @param requestedPageSize The page size with which the page was requested.
+   */
+  synchronized void timedOut(int requestedPageSize) {
+    pageSize = Math.max(1, Math.min(pageSize, requestedPageSize / 2));
+  }
+}
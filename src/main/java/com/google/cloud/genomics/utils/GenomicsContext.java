@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils;
+
+import com.google.api.services.genomics.Genomics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * A single {@link Genomics} client, and the credential it authorizes its requests with, for use by
+ * many calls of {@link GenomicsUtils} and {@link ShardUtils}.
+ *
+ * Looking up metadata with an {@link OfflineAuth} creates a new client, with a new credential that
+ * has to fetch its own access token, for every call.  A context instead creates its client the
+ * first time it is needed and then reuses it, along with the access token and the connections of
+ * the HTTP transport of its {@link GenomicsFactory}, which by default is the transport shared by
+ * all Google API clients.  Contexts are thread-safe, so that one context can serve all lookups of
+ * a pipeline, including concurrent ones.
+ *
+ * <p>Example usage:</p>
+ * <pre>
+ *{@code
+ *GenomicsContext context = GenomicsContext.create(auth);
+ *List<StreamReadsRequest> requests = ShardUtils.getReadRequests(prototypes,
+ *    ShardUtils.SexChromosomeFilter.INCLUDE_XY, 1000000L, context, 8);
+ *}
+ *</pre>
+ */
+public class GenomicsContext {
+
+  /**
+   * Create a context with a client from the default {@link GenomicsFactory}.
+   *
+   * @param auth The OfflineAuth with which to authorize requests.
+   * @return the new context
+   */
+  public static GenomicsContext create(OfflineAuth auth) {
+    return create(GenomicsFactory.builder().build(), auth);
+  }
+
+  /**
+   * Create a context with a client from the given {@link GenomicsFactory}, e.g. to use an HTTP
+   * transport with a larger pool of connections.
+   *
+   * @param factory The factory with which to create the client.
+   * @param auth The OfflineAuth with which to authorize requests.
+   * @return the new context
+   */
+  public static GenomicsContext create(GenomicsFactory factory, OfflineAuth auth) {
+    return new GenomicsContext(factory, auth);
+  }
+
+  private final GenomicsFactory factory;
+  private final OfflineAuth auth;
+  private final Supplier<Genomics> genomics;
+
+  private GenomicsContext(final GenomicsFactory factory, final OfflineAuth auth) {
+    this.factory = Preconditions.checkNotNull(factory);
+    this.auth = Preconditions.checkNotNull(auth);
+    this.genomics = Suppliers.memoize(new Supplier<Genomics>() {
+      @Override
+      public Genomics get() {
+        return factory.fromOfflineAuth(auth);
+      }
+    });
+  }
+
+  /**
+   * @return the factory of the client, e.g. for its request counts
+   */
+  public GenomicsFactory getFactory() {
+    return factory;
+  }
+
+  /**
+   * @return the OfflineAuth with which requests are authorized
+   */
+  public OfflineAuth getAuth() {
+    return auth;
+  }
+
+  /**
+   * @return the client, which is created on the first call
+   */
+  public Genomics getGenomics() {
+    return genomics.get();
+  }
+}
@@ -13,7 +13,7 @@
  */
 package com.google.cloud.genomics.utils;
 
-import com.google.api.services.genomics.Genomics;
+import com.google.api.client.json.GenericJson;
 import com.google.api.services.genomics.model.CallSet;
 import com.google.api.services.genomics.model.CoverageBucket;
 import com.google.api.services.genomics.model.ListCoverageBucketsResponse;
@@ -21,21 +21,59 @@ import com.google.api.services.genomics.model.ReadGroupSet;
 import com.google.api.services.genomics.model.Reference;
 import com.google.api.services.genomics.model.ReferenceBound;
 import com.google.api.services.genomics.model.SearchCallSetsRequest;
+import com.google.api.services.genomics.model.SearchCallSetsResponse;
 import com.google.api.services.genomics.model.SearchReadGroupSetsRequest;
 import com.google.api.services.genomics.model.SearchReferencesRequest;
+import com.google.api.services.genomics.model.SearchReferencesResponse;
 import com.google.api.services.genomics.model.SearchVariantSetsRequest;
 import com.google.api.services.genomics.model.VariantSet;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Convenience routines for fetching ids in the hierarchy of data within the Genomics API and other data lookups.
+ *
+ * Each routine taking an {@link OfflineAuth} creates a new Genomics client for the call.  To make
+ * many calls, use the routines taking a {@link GenomicsContext}, which share its client.
  */
 public class GenomicsUtils {
 
+  private static volatile MetadataCache metadataCache = null;
+
+  /**
+   * Cache the reference set ids, coverage buckets, references, call sets and reference bounds
+   * looked up by this class, e.g. so that a pipeline sharding many read group sets or variant sets
+   * does not look up the same metadata again for every shard or launch.
+   *
+   * @param cache The cache, or null to look up metadata with the Genomics API every time.
+   */
+  public static void setMetadataCache(MetadataCache cache) {
+    metadataCache = cache;
+  }
+
+  /**
+   * Look up metadata in the cache, if there is one, and otherwise with the Genomics API.
+   */
+  private static <T extends GenericJson> T lookup(String kind, String id, OfflineAuth auth,
+      Class<T> type, MetadataCache.Loader<T> loader) throws IOException {
+    MetadataCache cache = metadataCache;
+    return (null == cache) ? loader.load() : cache.get(kind, id, auth, type, loader);
+  }
+
   /**
    * Gets ReadGroupSetIds from a given datasetId using the Genomics API.
    *
@@ -45,9 +83,21 @@ public class GenomicsUtils {
    * @throws IOException If dataset does not contain any readGroupSets.
    */
   public static List<String> getReadGroupSetIds(String datasetId, OfflineAuth auth) throws IOException {
+    return getReadGroupSetIds(datasetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets ReadGroupSetIds from a given datasetId using the Genomics API.
+   *
+   * @param datasetId The id of the dataset to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of readGroupSetIds in the dataset.
+   * @throws IOException If dataset does not contain any readGroupSets.
+   */
+  public static List<String> getReadGroupSetIds(String datasetId, GenomicsContext context)
+      throws IOException {
     List<String> output = Lists.newArrayList();
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    Iterable<ReadGroupSet> rgs = Paginator.ReadGroupSets.create(genomics)
+    Iterable<ReadGroupSet> rgs = Paginator.ReadGroupSets.create(context.getGenomics())
         .search(new SearchReadGroupSetsRequest().setDatasetIds(Lists.newArrayList(datasetId)),
             "readGroupSets(id),nextPageToken");
     for (ReadGroupSet r : rgs) {
@@ -69,10 +119,27 @@ public class GenomicsUtils {
    */
   public static String getReferenceSetId(String readGroupSetId, OfflineAuth auth)
       throws IOException {
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    ReadGroupSet readGroupSet = genomics.readgroupsets().get(readGroupSetId)
-        .setFields("referenceSetId").execute();
-    return readGroupSet.getReferenceSetId();
+    return getReferenceSetId(readGroupSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets the ReferenceSetId for a given readGroupSetId using the Genomics API.
+   *
+   * @param readGroupSetId The id of the readGroupSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The referenceSetId for the redGroupSet (which may be null).
+   * @throws IOException
+   */
+  public static String getReferenceSetId(final String readGroupSetId,
+      final GenomicsContext context) throws IOException {
+    return lookup("referenceSetId", readGroupSetId, context.getAuth(), ReadGroupSet.class,
+        new MetadataCache.Loader<ReadGroupSet>() {
+          @Override
+          public ReadGroupSet load() throws IOException {
+            return context.getGenomics().readgroupsets().get(readGroupSetId)
+                .setFields("referenceSetId").execute();
+          }
+        }).getReferenceSetId();
   }
 
   /**
@@ -85,18 +152,86 @@ public class GenomicsUtils {
    */
   public static List<CoverageBucket> getCoverageBuckets(String readGroupSetId, OfflineAuth auth)
       throws IOException {
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    ListCoverageBucketsResponse response =
-        genomics.readgroupsets().coveragebuckets().list(readGroupSetId).execute();
-    // Requests of this form return one result per reference name, so therefore many fewer than
-    // the default page size, but verify that the assumption holds true.
-    if (!Strings.isNullOrEmpty(response.getNextPageToken())) {
-      throw new IllegalArgumentException("Read group set " + readGroupSetId
-          + " has more Coverage Buckets than the default page size for the CoverageBuckets list operation.");
+    return getCoverageBuckets(readGroupSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets the CoverageBuckets for a given readGroupSetId using the Genomics API.
+   *
+   * @param readGroupSetId The id of the readGroupSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of reference bounds in the variantSet.
+   * @throws IOException
+   */
+  public static List<CoverageBucket> getCoverageBuckets(final String readGroupSetId,
+      final GenomicsContext context) throws IOException {
+    return lookup("coverageBuckets", readGroupSetId, context.getAuth(),
+        ListCoverageBucketsResponse.class,
+        new MetadataCache.Loader<ListCoverageBucketsResponse>() {
+          @Override
+          public ListCoverageBucketsResponse load() throws IOException {
+            ListCoverageBucketsResponse response = context.getGenomics().readgroupsets()
+                .coveragebuckets().list(readGroupSetId).execute();
+            // Requests of this form return one result per reference name, so therefore many fewer
+            // than the default page size, but verify that the assumption holds true.
+            if (!Strings.isNullOrEmpty(response.getNextPageToken())) {
+              throw new IllegalArgumentException("Read group set " + readGroupSetId
+                  + " has more Coverage Buckets than the default page size for the CoverageBuckets list operation.");
+            }
+            return response;
+          }
+        }).getCoverageBuckets();
+  }
+
+  /**
+   * Gets the CoverageBuckets for many readGroupSetIds using the Genomics API, looking up several of
+   * them at the same time.
+   *
+   * @param readGroupSetIds The ids of the readGroupSets to query.
+   * @param context The GenomicsContext for the API requests.
+   * @param concurrency The maximum number of readGroupSets to query at the same time.
+   * @return The list of coverage buckets of each readGroupSet, in the order of the ids.
+   * @throws IOException
+   */
+  public static ImmutableMap<String, List<CoverageBucket>> getCoverageBuckets(
+      List<String> readGroupSetIds, final GenomicsContext context, int concurrency)
+      throws IOException {
+    Preconditions.checkArgument(0 < concurrency, "concurrency must be positive");
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+        .setNameFormat("genomics-utils-%d").setDaemon(true).build());
+    try {
+      Map<String, Future<List<CoverageBucket>>> futures = Maps.newLinkedHashMap();
+      for (final String readGroupSetId : readGroupSetIds) {
+        if (!futures.containsKey(readGroupSetId)) {
+          futures.put(readGroupSetId, executor.submit(new Callable<List<CoverageBucket>>() {
+            @Override
+            public List<CoverageBucket> call() throws IOException {
+              return getCoverageBuckets(readGroupSetId, context);
+            }
+          }));
+        }
+      }
+      ImmutableMap.Builder<String, List<CoverageBucket>> buckets = ImmutableMap.builder();
+      for (Map.Entry<String, Future<List<CoverageBucket>>> future : futures.entrySet()) {
+        buckets.put(future.getKey(), getResult(future.getValue()));
+      }
+      return buckets.build();
+    } finally {
+      executor.shutdownNow();
     }
-    return response.getCoverageBuckets();
   }
 
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a lookup", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
 
   /**
    * Gets the references for a given referenceSetId using the Genomics API.
@@ -108,9 +243,34 @@ public class GenomicsUtils {
    */
   public static Iterable<Reference> getReferences(String referenceSetId, OfflineAuth auth)
       throws IOException {
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    return Paginator.References.create(
-        genomics).search(new SearchReferencesRequest().setReferenceSetId(referenceSetId));
+    return getReferences(referenceSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets the references for a given referenceSetId using the Genomics API.
+   *
+   * @param referenceSetId The id of the referenceSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of references in the referenceSet.
+   * @throws IOException
+   */
+  public static Iterable<Reference> getReferences(final String referenceSetId,
+      final GenomicsContext context) throws IOException {
+    if (null == metadataCache) {
+      return Paginator.References.create(context.getGenomics())
+          .search(new SearchReferencesRequest().setReferenceSetId(referenceSetId));
+    }
+    // The cache holds all pages of the search.
+    return lookup("references", referenceSetId, context.getAuth(), SearchReferencesResponse.class,
+        new MetadataCache.Loader<SearchReferencesResponse>() {
+          @Override
+          public SearchReferencesResponse load() throws IOException {
+            List<Reference> references = Paginator.References.create(context.getGenomics())
+                .search(new SearchReferencesRequest().setReferenceSetId(referenceSetId),
+                    new ToList<Reference>());
+            return new SearchReferencesResponse().setReferences(references);
+          }
+        }).getReferences();
   }
 
   /**
@@ -123,9 +283,21 @@ public class GenomicsUtils {
    */
   public static List<String> getVariantSetIds(String datasetId, OfflineAuth auth)
       throws IOException {
+    return getVariantSetIds(datasetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets VariantSetIds from a given datasetId using the Genomics API.
+   *
+   * @param datasetId The id of the dataset to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of variantSetIds in the dataset.
+   * @throws IOException If dataset does not contain any variantSets.
+   */
+  public static List<String> getVariantSetIds(String datasetId, GenomicsContext context)
+      throws IOException {
     List<String> output = Lists.newArrayList();
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    Iterable<VariantSet> vs = Paginator.Variantsets.create(genomics)
+    Iterable<VariantSet> vs = Paginator.Variantsets.create(context.getGenomics())
         .search(new SearchVariantSetsRequest().setDatasetIds(Lists.newArrayList(datasetId)),
             "variantSets(id),nextPageToken");
     for (VariantSet v : vs) {
@@ -147,10 +319,35 @@ public class GenomicsUtils {
    */
   public static Iterable<CallSet> getCallSets(String variantSetId, OfflineAuth auth)
       throws IOException {
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    return Paginator.Callsets.create(genomics)
-        .search(new SearchCallSetsRequest().setVariantSetIds(Lists.newArrayList(variantSetId)),
-            "callSets,nextPageToken");
+    return getCallSets(variantSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets CallSets for a given variantSetId using the Genomics API.
+   *
+   * @param variantSetId The id of the variantSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of callSet names in the variantSet.
+   * @throws IOException If variantSet does not contain any CallSets.
+   */
+  public static Iterable<CallSet> getCallSets(final String variantSetId,
+      final GenomicsContext context) throws IOException {
+    if (null == metadataCache) {
+      return Paginator.Callsets.create(context.getGenomics())
+          .search(new SearchCallSetsRequest().setVariantSetIds(Lists.newArrayList(variantSetId)),
+              "callSets,nextPageToken");
+    }
+    // The cache holds all pages of the search.
+    return lookup("callSets", variantSetId, context.getAuth(), SearchCallSetsResponse.class,
+        new MetadataCache.Loader<SearchCallSetsResponse>() {
+          @Override
+          public SearchCallSetsResponse load() throws IOException {
+            List<CallSet> callSets = Paginator.Callsets.create(context.getGenomics()).search(
+                new SearchCallSetsRequest().setVariantSetIds(Lists.newArrayList(variantSetId)),
+                "callSets,nextPageToken", new ToList<CallSet>());
+            return new SearchCallSetsResponse().setCallSets(callSets);
+          }
+        }).getCallSets();
   }
 
   /**
@@ -163,9 +360,21 @@ public class GenomicsUtils {
    */
   public static List<String> getCallSetsNames(String variantSetId, OfflineAuth auth)
       throws IOException {
+    return getCallSetsNames(variantSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets CallSets Names for a given variantSetId using the Genomics API.
+   *
+   * @param variantSetId The id of the variantSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of callSet names in the variantSet.
+   * @throws IOException If variantSet does not contain any CallSets.
+   */
+  public static List<String> getCallSetsNames(String variantSetId, GenomicsContext context)
+      throws IOException {
     List<String> output = Lists.newArrayList();
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    Iterable<CallSet> cs = Paginator.Callsets.create(genomics)
+    Iterable<CallSet> cs = Paginator.Callsets.create(context.getGenomics())
         .search(new SearchCallSetsRequest().setVariantSetIds(Lists.newArrayList(variantSetId)),
             "callSets(name),nextPageToken");
     for (CallSet c : cs) {
@@ -187,8 +396,35 @@ public class GenomicsUtils {
    */
   public static List<ReferenceBound> getReferenceBounds(String variantSetId, OfflineAuth auth)
       throws IOException {
-    Genomics genomics = GenomicsFactory.builder().build().fromOfflineAuth(auth);
-    VariantSet variantSet = genomics.variantsets().get(variantSetId).execute();
-    return variantSet.getReferenceBounds();
+    return getReferenceBounds(variantSetId, GenomicsContext.create(auth));
+  }
+
+  /**
+   * Gets the ReferenceBounds for a given variantSetId using the Genomics API.
+   *
+   * @param variantSetId The id of the variantSet to query.
+   * @param context The GenomicsContext for the API request.
+   * @return The list of reference bounds in the variantSet.
+   * @throws IOException
+   */
+  public static List<ReferenceBound> getReferenceBounds(final String variantSetId,
+      final GenomicsContext context) throws IOException {
+    return lookup("referenceBounds", variantSetId, context.getAuth(), VariantSet.class,
+        new MetadataCache.Loader<VariantSet>() {
+          @Override
+          public VariantSet load() throws IOException {
+            return context.getGenomics().variantsets().get(variantSetId).execute();
+          }
+        }).getReferenceBounds();
+  }
+
+  /**
+   * A {@link Paginator.Callback} collecting all search results.
+   */
+  private static class ToList<T> implements Paginator.Callback<T, List<T>> {
+    @Override
+    public List<T> consumeResponses(Iterable<T> responses) {
+      return Lists.newArrayList(responses);
+    }
   }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.auth.oauth2.UserCredentials;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of the metadata looked up with the Genomics API, such as the reference bounds of a
+ * variant set or the coverage buckets of a read group set, for use with
+ * {@link GenomicsUtils#setMetadataCache}.
+ *
+ * Entries are keyed by the kind of lookup, the id looked up and the identity of the credential it
+ * was looked up with, so that users with access to different data do not share entries.  The
+ * identity is the API key, the user, or the service account of the credential.  Lookups with an
+ * Application Default Credential whose account is not known locally, such as that of a Compute
+ * Engine VM, are not cached.  Entries are held in memory, up to a maximum number of them in least
+ * recently used order, and expire a fixed time after they were looked up.  Concurrent lookups of
+ * the same missing entry wait for a single request rather than each making their own.
+ *
+ * Optionally, entries are also written as JSON files to a directory, where they are found by later
+ * processes until they expire, e.g. by the next launch of a pipeline over the same data.  The file
+ * names are hashes of the keys, so credentials are never written to the directory.  Whenever an
+ * entry is written, expired files are deleted, as are the oldest files beyond the maximum number
+ * of entries.
+ */
+public class MetadataCache {
+
+  public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+  public static final long DEFAULT_EXPIRE_AFTER_WRITE_MINUTES = 60;
+
+  /**
+   * A lookup of metadata with the Genomics API.
+   *
+   * @param <T> The type of the metadata.
+   */
+  public interface Loader<T> {
+    T load() throws IOException;
+  }
+
+  /**
+   * A builder class for {@link MetadataCache} objects.
+   */
+  public static class Builder {
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long expireAfterWriteMillis =
+        TimeUnit.MINUTES.toMillis(DEFAULT_EXPIRE_AFTER_WRITE_MINUTES);
+    private File directory = null;
+
+    Builder() {}
+
+    /**
+     * @param maximumSize The maximum number of entries held in memory, and on disk.
+     * @return this builder
+     */
+    public Builder setMaximumSize(long maximumSize) {
+      Preconditions.checkArgument(0 <= maximumSize, "maximumSize must not be negative");
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * @param duration How long after it was looked up an entry expires.
+     * @param unit The unit of the duration.
+     * @return this builder
+     */
+    public Builder setExpireAfterWrite(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(0 < duration, "duration must be positive");
+      this.expireAfterWriteMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * @param directory The directory in which to persist entries, or null to only hold them in
+     *        memory.  It is created if it does not exist.
+     * @return this builder
+     */
+    public Builder setDirectory(File directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    public MetadataCache build() {
+      return new MetadataCache(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final Cache<String, GenericJson> cache;
+  private final long maximumSize;
+  private final long expireAfterWriteMillis;
+  private final File directory;
+
+  private MetadataCache(Builder builder) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(builder.maximumSize)
+        .expireAfterWrite(builder.expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+        .build();
+    maximumSize = builder.maximumSize;
+    expireAfterWriteMillis = builder.expireAfterWriteMillis;
+    directory = builder.directory;
+  }
+
+  /**
+   * Get an entry, looking it up if it is neither in memory nor on disk.
+   *
+   * @param kind The kind of lookup, e.g. "referenceBounds".
+   * @param id The id looked up.
+   * @param auth The credential of the lookup.
+   * @param type The type of the entry, which is how it is read back from disk.
+   * @param loader The lookup of the entry.
+   * @return the entry
+   * @throws IOException if the lookup failed
+   */
+  public <T extends GenericJson> T get(final String kind, final String id, OfflineAuth auth,
+      final Class<T> type, final Loader<T> loader) throws IOException {
+    String identity = getIdentity(auth);
+    if (null == identity) {
+      return Preconditions.checkNotNull(loader.load(), "No %s found for %s", kind, id);
+    }
+    final String key = Joiner.on('\0').join(kind, identity, id);
+    try {
+      return type.cast(cache.get(key, new Callable<GenericJson>() {
+        @Override
+        public GenericJson call() throws IOException {
+          T value = (null == directory) ? null : readFromDisk(key, type);
+          if (null == value) {
+            value = Preconditions.checkNotNull(loader.load(),
+                "No %s found for %s", kind, id);
+            if (null != directory) {
+              writeToDisk(key, value);
+            }
+          }
+          return value;
+        }
+      }));
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Discard all entries, both in memory and on disk.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+    if (null != directory) {
+      File[] files = directory.listFiles();
+      if (null != files) {
+        for (File file : files) {
+          if (file.getName().endsWith(".json")) {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a hash identifying the credential, so that it can be part of a key on disk, or null if
+   *         the account of the credential is not known
+   */
+  private static String getIdentity(OfflineAuth auth) {
+    String identity;
+    if (null == auth) {
+      identity = "none";
+    } else if (auth.hasApiKey()) {
+      identity = "apiKey:" + auth.getApiKey();
+    } else if (auth.hasStoredCredential()) {
+      identity = "user:" + auth.getClientId() + ":" + auth.getRefreshToken();
+    } else {
+      identity = getApplicationDefaultIdentity();
+    }
+    return (null == identity) ? null
+        : Hashing.sha256().hashString(identity, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * @return the account of the Application Default Credential, or null if it is not known
+   */
+  private static String getApplicationDefaultIdentity() {
+    GoogleCredentials credentials;
+    try {
+      credentials = CredentialFactory.getApplicationDefaultCredentials();
+    } catch (RuntimeException e) {
+      // There is no credential, so the lookup itself reports the failure.
+      return null;
+    }
+    if (credentials instanceof ServiceAccountCredentials) {
+      return "serviceAccount:" + ((ServiceAccountCredentials) credentials).getClientEmail();
+    }
+    if (credentials instanceof UserCredentials) {
+      UserCredentials user = (UserCredentials) credentials;
+      return "user:" + user.getClientId() + ":" + user.getRefreshToken();
+    }
+    // E.g. the service account of a Compute Engine VM, which only its metadata server knows.
+    return null;
+  }
+
+  private File getFile(String key) {
+    return new File(directory,
+        Hashing.sha256().hashString(key, Charsets.UTF_8).toString() + ".json");
+  }
+
+  /**
+   * @return the entry, or null if it is not on disk, has expired or can not be read
+   */
+  private <T extends GenericJson> T readFromDisk(String key, Class<T> type) {
+    File file = getFile(key);
+    if (!file.isFile()
+        || expireAfterWriteMillis <= System.currentTimeMillis() - file.lastModified()) {
+      return null;
+    }
+    try {
+      return JSON_FACTORY.fromString(
+          new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8), type);
+    } catch (IOException | IllegalArgumentException e) {
+      // A damaged entry is looked up again, and replaced.
+      return null;
+    }
+  }
+
+  /**
+   * Write an entry to disk.  The file is replaced atomically, so that concurrent processes never
+   * read a partial entry, and a crash while writing leaves the previous entry intact.
+   */
+  private void writeToDisk(String key, GenericJson value) throws IOException {
+    File file = getFile(key);
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Could not create metadata cache directory " + directory);
+    }
+    File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+    try {
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        out.write(JSON_FACTORY.toByteArray(value));
+        out.flush();
+        out.getFD().sync();
+      }
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+    pruneDisk();
+  }
+
+  /**
+   * Delete expired files, including temporary files left behind by crashed processes, and then the
+   * least recently written entries beyond the maximum number of entries.
+   */
+  private void pruneDisk() {
+    File[] files = directory.listFiles();
+    if (null == files) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    final Map<File, Long> entries = Maps.newHashMap();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(".json") && !name.endsWith(".tmp")) {
+        continue;
+      }
+      long lastModified = file.lastModified();
+      if (expireAfterWriteMillis <= now - lastModified) {
+        file.delete();
+      } else if (name.endsWith(".json")) {
+        entries.put(file, lastModified);
+      }
+    }
+    if (entries.size() <= maximumSize) {
+      return;
+    }
+    List<File> oldestFirst = Lists.newArrayList(entries.keySet());
+    Collections.sort(oldestFirst, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(entries.get(a), entries.get(b));
+      }
+    });
+    for (File file : oldestFirst.subList(0, (int) (entries.size() - maximumSize))) {
+      file.delete();
+    }
+  }
+}
@@ -13,6 +13,7 @@
  */
 package com.google.cloud.genomics.utils;
 
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.genomics.Genomics;
 import com.google.api.services.genomics.Genomics.Annotationsets;
 import com.google.api.services.genomics.GenomicsRequest;
@@ -55,19 +56,32 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.AbstractSequentialIterator;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An abstraction that understands the {@code pageToken} / {@code nextPageToken} protocol for paging
@@ -88,6 +102,16 @@ import java.util.Map;
  * for you.
  * </p>
  *
+ * <p>By default each page is requested when the consumer reaches it. Call
+ * {@link #setPrefetchDepth(int)} to request pages in the background while the consumer is still
+ * working through earlier ones.
+ * </p>
+ *
+ * <p>Searches by region leave the page size to the server unless the request sets one. Call
+ * {@link #setAdaptivePageSize(long)} to have the page size chosen from how long the pages fetched
+ * so far took.
+ * </p>
+ *
  * <p>Example usage: Fetching all {@link ReadGroupSet}s in a {@link Dataset}:</p>
  * <pre>
  *{@code
@@ -131,6 +155,20 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     AccumulatedT consumeResponses(Iterable<EntityT> responses) throws IOException;
   }
 
+  /**
+   * Enum for the order of the results of {@link #searchSharded}.
+   */
+  public enum ShardOrder {
+    /**
+     * Return all results of a shard before those of the next shard, in the order of the shards.
+     */
+    ORDERED,
+    /**
+     * Return the pages of results of all shards in the order in which they arrive.
+     */
+    UNORDERED,
+  }
+
   /**
    * A {@link Paginator} for the {@code searchCallsets()} API.
    */
@@ -305,15 +343,190 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
 
   private class Pair {
 
-    final RequestSubT request;
+    // The token of the next page; absent for the first page and null after the last one.
+    final Optional<String> pageToken;
     final ResponseT response;
 
-    Pair(RequestSubT request, ResponseT response) {
-      this.request = request;
+    Pair(Optional<String> pageToken, ResponseT response) {
+      this.pageToken = pageToken;
       this.response = response;
     }
   }
 
+  /**
+   * An iterator over the responses of a search, which fetches up to a fixed number of pages ahead
+   * of the consumer on an executor.  A failure to fetch a page is thrown when the consumer reaches
+   * it, wrapped in a {@link SearchException} if it is an {@link IOException}.
+   */
+  private class PrefetchingIterator extends AbstractIterator<ResponseT> {
+
+    private final ApiT api;
+    private final RequestT request;
+    private final GenomicsRequestInitializer<? super RequestSubT> initializer;
+    private final RetryPolicy retryPolicy;
+    private final int depth;
+    private final Executor executor;
+    // Holds either a response or the failure to fetch it.
+    private final BlockingQueue<Object> fetched = new LinkedBlockingQueue<>();
+
+    // The number of pages being fetched or fetched but not yet taken by the consumer.
+    private int pagesAhead = 0;
+    private boolean fetching = false;
+    private boolean lastPageFetched = false;
+    private Optional<String> nextPageToken = Optional.absent();
+
+    PrefetchingIterator(ApiT api, RequestT request,
+        GenomicsRequestInitializer<? super RequestSubT> initializer, RetryPolicy retryPolicy,
+        int depth, Executor executor) {
+      this.api = api;
+      this.request = request;
+      this.initializer = initializer;
+      this.retryPolicy = retryPolicy;
+      this.depth = depth;
+      this.executor = executor;
+      maybeFetchNextPage();
+    }
+
+    private synchronized void maybeFetchNextPage() {
+      if (fetching || lastPageFetched || depth <= pagesAhead) {
+        return;
+      }
+      fetching = true;
+      pagesAhead++;
+      final Optional<String> pageToken = nextPageToken;
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          fetchPage(pageToken);
+        }
+      });
+    }
+
+    private void fetchPage(Optional<String> pageToken) {
+      Object page;
+      String token = null;
+      try {
+        ResponseT response = executePage(api, request, pageToken, initializer, retryPolicy);
+        token = Strings.emptyToNull(getNextPageToken(response));
+        page = response;
+      } catch (IOException e) {
+        page = new SearchException(e);
+      } catch (RuntimeException e) {
+        page = e;
+      }
+      synchronized (this) {
+        fetching = false;
+        lastPageFetched = (null == token);
+        nextPageToken = Optional.fromNullable(token);
+      }
+      fetched.add(page);
+      maybeFetchNextPage();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override protected ResponseT computeNext() {
+      synchronized (this) {
+        if (0 == pagesAhead) {
+          return endOfData();
+        }
+      }
+      Object page;
+      try {
+        page = fetched.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SearchException(new InterruptedIOException("Interrupted while fetching a page"));
+      }
+      synchronized (this) {
+        pagesAhead--;
+      }
+      if (page instanceof RuntimeException) {
+        throw (RuntimeException) page;
+      }
+      maybeFetchNextPage();
+      return (ResponseT) page;
+    }
+  }
+
+  // Marks the end of the pages of a shard.
+  private static final Object END_OF_SHARD = new Object();
+
+  /**
+   * An iterator over the results of the searches of many shards, which are run on an executor.
+   * Each search puts its pages of results, then {@link #END_OF_SHARD}, or the failure of the
+   * search, on a bounded queue.  For results in the order of the shards each shard has its own
+   * queue, which are read one after the other; otherwise all shards share a single queue.
+   */
+  private class ShardedIterator extends AbstractIterator<ItemT> {
+
+    private final List<BlockingQueue<Object>> pages = Lists.newArrayList();
+    private int currentShard = 0;
+    private Iterator<ItemT> currentPage = Collections.<ItemT>emptyIterator();
+
+    ShardedIterator(RequestT prototype, List<Contig> shards,
+        GenomicsRequestInitializer<? super RequestSubT> initializer, RetryPolicy retryPolicy,
+        int maxPagesBuffered, ShardOrder order, Executor executor) {
+      BlockingQueue<Object> sharedPages = (order == ShardOrder.UNORDERED)
+          ? new ArrayBlockingQueue<Object>(maxPagesBuffered) : null;
+      List<RequestT> requests = Lists.newArrayList();
+      for (Contig shard : shards) {
+        requests.add(createShardRequest(prototype, shard));
+        // The shards which are not yet being read buffer at most two pages each.
+        pages.add((null != sharedPages) ? sharedPages : new ArrayBlockingQueue<Object>(2));
+      }
+      for (int i = 0; i < requests.size(); i++) {
+        executor.execute(searchShard(requests.get(i), initializer, retryPolicy, pages.get(i)));
+      }
+    }
+
+    private Runnable searchShard(final RequestT request,
+        final GenomicsRequestInitializer<? super RequestSubT> initializer,
+        final RetryPolicy retryPolicy, final BlockingQueue<Object> shardPages) {
+      return new Runnable() {
+        @Override public void run() {
+          try {
+            try {
+              for (ResponseT response : searchPages(request, initializer, retryPolicy)) {
+                Iterable<ItemT> items = getResponses(request, response);
+                shardPages.put((null == items)
+                    ? Collections.<ItemT>emptyList() : Lists.newArrayList(items));
+              }
+              shardPages.put(END_OF_SHARD);
+            } catch (RuntimeException e) {
+              shardPages.put(e);
+            }
+          } catch (InterruptedException e) {
+            // The results are no longer being consumed.
+          }
+        }
+      };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override protected ItemT computeNext() {
+      while (!currentPage.hasNext()) {
+        if (pages.size() == currentShard) {
+          return endOfData();
+        }
+        Object page;
+        try {
+          page = pages.get(currentShard).take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SearchException(
+              new InterruptedIOException("Interrupted while searching shards"));
+        }
+        if (END_OF_SHARD == page) {
+          currentShard++;
+        } else if (page instanceof RuntimeException) {
+          throw (RuntimeException) page;
+        } else {
+          currentPage = ((List<ItemT>) page).iterator();
+        }
+      }
+      return currentPage.next();
+    }
+  }
+
   /**
    * A {@link Paginator} for the {@code searchReads()} API.
    */
@@ -331,8 +544,10 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
         .put("alignment", ".*\\p{Punct}alignment\\p{Punct}.*")
         .put("position", ".*\\p{Punct}position\\p{Punct}.*")
         .build();
+    // The page size the server uses by default and the largest one it accepts.
+    private static final int DEFAULT_PAGE_SIZE = 256;
+    private static final int MAX_PAGE_SIZE = 2048;
     private final ShardBoundary.Requirement shardBoundary;
-    private Predicate<Read> shardPredicate = null;
 
     /**
      * Static factory method.
@@ -359,18 +574,6 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
 
     @Override Genomics.Reads.Search createSearch(Genomics.Reads api, final SearchReadsRequest request,
         Optional<String> pageToken) throws IOException {
-
-      if(shardBoundary == ShardBoundary.Requirement.STRICT) {
-        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
-        // will yield a strict shard.
-        shardPredicate = new Predicate<Read>() {
-          @Override
-          public boolean apply(Read read) {
-            return read.getAlignment().getPosition().getPosition() >= request.getStart();
-          }
-        };
-      }
-
       return api.search(pageToken
           .transform(
               new Function<String, SearchReadsRequest>() {
@@ -398,12 +601,48 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     }
 
     @Override Iterable<Read> getResponses(SearchReadsResponse response) {
-      Iterable<Read> responses = response.getAlignments();
-      if(shardPredicate != null && responses != null) {
-        return Iterables.filter(responses, shardPredicate);
+      return response.getAlignments();
+    }
+
+    @Override Iterable<Read> getResponses(final SearchReadsRequest request,
+        SearchReadsResponse response) {
+      Iterable<Read> responses = getResponses(response);
+      if(shardBoundary == ShardBoundary.Requirement.STRICT && responses != null) {
+        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
+        // will yield a strict shard.
+        return Iterables.filter(responses, new Predicate<Read>() {
+          @Override
+          public boolean apply(Read read) {
+            return read.getAlignment().getPosition().getPosition() >= request.getStart();
+          }
+        });
       }
       return responses;
     }
+
+    @Override SearchReadsRequest createShardRequest(SearchReadsRequest prototype, Contig shard) {
+      return prototype.clone()
+          .setPageToken(null)
+          .setReferenceName(shard.referenceName)
+          .setStart(shard.start)
+          .setEnd(shard.end);
+    }
+
+    @Override int getDefaultPageSize() {
+      return DEFAULT_PAGE_SIZE;
+    }
+
+    @Override int getMaxPageSize() {
+      return MAX_PAGE_SIZE;
+    }
+
+    @Override Integer getPageSize(SearchReadsRequest request) {
+      return request.getPageSize();
+    }
+
+    @Override SearchReadsRequest withPageSize(SearchReadsRequest request, int pageSize) {
+      return request.clone().setPageSize(pageSize);
+    }
   }
 
   /**
@@ -423,8 +662,10 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
         .put("position", ".*\\p{Punct}position\\p{Punct}.*")
         .put("start", ".*\\p{Punct}start\\p{Punct}.*")
         .build();
+    // The page size the server uses by default and the largest one it accepts.
+    private static final int DEFAULT_PAGE_SIZE = 256;
+    private static final int MAX_PAGE_SIZE = 2048;
     private final ShardBoundary.Requirement shardBoundary;
-    private Predicate<Annotation> shardPredicate = null;
 
     /**
      * Static factory method.
@@ -451,17 +692,6 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
 
     @Override Genomics.Annotations.Search createSearch(Genomics.Annotations api,
         final SearchAnnotationsRequest request, Optional<String> pageToken) throws IOException {
-
-      if(shardBoundary == ShardBoundary.Requirement.STRICT) {
-        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
-        // will yield a strict shard.
-        shardPredicate = new Predicate<Annotation>() {
-          @Override
-          public boolean apply(Annotation anno) {
-            return anno.getStart() >= request.getStart();
-          }
-        };
-      }
       return api.search(pageToken
           .transform(
               new Function<String, SearchAnnotationsRequest>() {
@@ -489,12 +719,48 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     }
 
     @Override Iterable<Annotation> getResponses(SearchAnnotationsResponse response) {
-      Iterable<Annotation> responses = response.getAnnotations();
-      if(shardPredicate != null && responses != null) {
-        return Iterables.filter(responses, shardPredicate);
+      return response.getAnnotations();
+    }
+
+    @Override Iterable<Annotation> getResponses(final SearchAnnotationsRequest request,
+        SearchAnnotationsResponse response) {
+      Iterable<Annotation> responses = getResponses(response);
+      if(shardBoundary == ShardBoundary.Requirement.STRICT && responses != null) {
+        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
+        // will yield a strict shard.
+        return Iterables.filter(responses, new Predicate<Annotation>() {
+          @Override
+          public boolean apply(Annotation anno) {
+            return anno.getStart() >= request.getStart();
+          }
+        });
       }
       return responses;
     }
+
+    @Override SearchAnnotationsRequest createShardRequest(SearchAnnotationsRequest prototype, Contig shard) {
+      return prototype.clone()
+          .setPageToken(null)
+          .setReferenceName(shard.referenceName)
+          .setStart(shard.start)
+          .setEnd(shard.end);
+    }
+
+    @Override int getDefaultPageSize() {
+      return DEFAULT_PAGE_SIZE;
+    }
+
+    @Override int getMaxPageSize() {
+      return MAX_PAGE_SIZE;
+    }
+
+    @Override Integer getPageSize(SearchAnnotationsRequest request) {
+      return request.getPageSize();
+    }
+
+    @Override SearchAnnotationsRequest withPageSize(SearchAnnotationsRequest request, int pageSize) {
+      return request.clone().setPageSize(pageSize);
+    }
   }
 
   /**
@@ -825,8 +1091,10 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
         .putAll(REQUIRED_FIELDS)
         .put("start", ".*\\p{Punct}start\\p{Punct}.*")
         .build();
+    // The page size the server uses by default and the largest one it accepts.
+    private static final int DEFAULT_PAGE_SIZE = 5000;
+    private static final int MAX_PAGE_SIZE = 10000;
     private final ShardBoundary.Requirement shardBoundary;
-    private Predicate<Variant> shardPredicate = null;
 
     /**
      * Static factory method.
@@ -853,18 +1121,6 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
 
     @Override Genomics.Variants.Search createSearch(Genomics.Variants api,
         final SearchVariantsRequest request, Optional<String> pageToken) throws IOException {
-
-      if(shardBoundary == ShardBoundary.Requirement.STRICT) {
-        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
-        // will yield a strict shard.
-        shardPredicate = new Predicate<Variant>() {
-          @Override
-          public boolean apply(Variant variant) {
-            return variant.getStart() >= request.getStart();
-          }
-        };
-      }
-
       return api.search(pageToken
           .transform(
               new Function<String, SearchVariantsRequest>() {
@@ -892,12 +1148,48 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     }
 
     @Override Iterable<Variant> getResponses(SearchVariantsResponse response) {
-      Iterable<Variant> responses = response.getVariants();
-      if(shardPredicate != null && responses != null) {
-        return Iterables.filter(responses, shardPredicate);
+      return response.getVariants();
+    }
+
+    @Override Iterable<Variant> getResponses(final SearchVariantsRequest request,
+        SearchVariantsResponse response) {
+      Iterable<Variant> responses = getResponses(response);
+      if(shardBoundary == ShardBoundary.Requirement.STRICT && responses != null) {
+        // TODO: When this is supported server-side, instead verify that request.getIntersectionType
+        // will yield a strict shard.
+        return Iterables.filter(responses, new Predicate<Variant>() {
+          @Override
+          public boolean apply(Variant variant) {
+            return variant.getStart() >= request.getStart();
+          }
+        });
       }
       return responses;
     }
+
+    @Override SearchVariantsRequest createShardRequest(SearchVariantsRequest prototype, Contig shard) {
+      return prototype.clone()
+          .setPageToken(null)
+          .setReferenceName(shard.referenceName)
+          .setStart(shard.start)
+          .setEnd(shard.end);
+    }
+
+    @Override int getDefaultPageSize() {
+      return DEFAULT_PAGE_SIZE;
+    }
+
+    @Override int getMaxPageSize() {
+      return MAX_PAGE_SIZE;
+    }
+
+    @Override Integer getPageSize(SearchVariantsRequest request) {
+      return request.getPageSize();
+    }
+
+    @Override SearchVariantsRequest withPageSize(SearchVariantsRequest request, int pageSize) {
+      return request.clone().setPageSize(pageSize);
+    }
   }
 
   /**
@@ -994,12 +1286,70 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     }
   }
 
+  private static final Executor DEFAULT_PREFETCH_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("paginator-prefetch-%d").setDaemon(true).build());
+
+  /**
+   * The default time to aim for when fetching a page with an adaptive page size.
+   */
+  public static final long DEFAULT_TARGET_PAGE_MILLIS = 2000;
+
   private final Genomics genomics;
+  private int prefetchDepth = 0;
+  private Executor prefetchExecutor = DEFAULT_PREFETCH_EXECUTOR;
+  private AdaptivePageSize adaptivePageSize = null;
 
   public Paginator(Genomics genomics) {
     this.genomics = genomics;
   }
 
+  /**
+   * Fetch pages ahead of the consumer of the search results on a background thread, so that the
+   * next page is requested as soon as the token for it is known rather than when the consumer
+   * reaches the end of the current page.  Each page still needs the token of the page before it,
+   * so the pages of a search are fetched one at a time.
+   *
+   * @param prefetchDepth The maximum number of pages fetched but not yet reached by the consumer,
+   *        or zero to fetch each page only when the consumer reaches it.
+   */
+  public void setPrefetchDepth(int prefetchDepth) {
+    Preconditions.checkArgument(0 <= prefetchDepth, "prefetchDepth must not be negative");
+    this.prefetchDepth = prefetchDepth;
+  }
+
+  /**
+   * @param prefetchExecutor The executor on which to fetch pages ahead of the consumer.  By
+   *        default, a shared pool of daemon threads is used.
+   */
+  public void setPrefetchExecutor(Executor prefetchExecutor) {
+    this.prefetchExecutor = Preconditions.checkNotNull(prefetchExecutor);
+  }
+
+  /**
+   * Choose the page size of searches from how long the pages fetched so far took and how large
+   * they were, rather than leaving it to the server.  Starting from the default page size of the
+   * API, the page size grows while pages are fetched faster than the target time, e.g. with a
+   * partial response of only a few fields, and shrinks when they are slower, up to the largest
+   * page size the API accepts.  Requests which set a page size themselves keep it.  Only paginators
+   * for searches by region (reads, variants and annotations) support this.
+   *
+   * @param targetPageMillis How long fetching a page should take, e.g.
+   *        {@link #DEFAULT_TARGET_PAGE_MILLIS}, or zero to leave the page size to the server.
+   */
+  public void setAdaptivePageSize(long targetPageMillis) {
+    Preconditions.checkArgument(0 <= targetPageMillis, "targetPageMillis must not be negative");
+    if (0 == targetPageMillis) {
+      adaptivePageSize = null;
+      return;
+    }
+    if (0 == getMaxPageSize()) {
+      throw new UnsupportedOperationException(
+          getClass().getSimpleName() + " does not support adaptive page sizes");
+    }
+    adaptivePageSize = new AdaptivePageSize(getDefaultPageSize(), getMaxPageSize(),
+        targetPageMillis);
+  }
+
   abstract RequestSubT createSearch(ApiT api, RequestT request, Optional<String> pageToken) throws IOException;
 
   abstract ApiT getApi(Genomics genomicsInstance);
@@ -1008,6 +1358,95 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
 
   abstract Iterable<ItemT> getResponses(ResponseT response);
 
+  /**
+   * @return the items of a response to the request, which paginators enforcing a strict shard
+   *         boundary filter by the start of the request
+   */
+  Iterable<ItemT> getResponses(RequestT request, ResponseT response) {
+    return getResponses(response);
+  }
+
+  /**
+   * @return a request for the shard, with everything but the region copied from the prototype
+   */
+  RequestT createShardRequest(RequestT prototype, Contig shard) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support sharded searches");
+  }
+
+  /**
+   * @return the page size the server uses for requests which do not set one
+   */
+  int getDefaultPageSize() {
+    return 0;
+  }
+
+  /**
+   * @return the largest page size the API accepts, or zero if the page size can not be set
+   */
+  int getMaxPageSize() {
+    return 0;
+  }
+
+  /**
+   * @return the page size set by the request, or null if it leaves it to the server
+   */
+  Integer getPageSize(RequestT request) {
+    return null;
+  }
+
+  /**
+   * @return a copy of the request with the page size set
+   */
+  RequestT withPageSize(RequestT request, int pageSize) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support setting the page size");
+  }
+
+  /**
+   * Fetch a page of a search, adapting the page size to the pages fetched before it if enabled.
+   *
+   * With an adaptive page size, each attempt is made here rather than by the retry policy, so that
+   * a page which timed out is retried at the reduced page size, and only the attempt which
+   * succeeded is timed.
+   */
+  private ResponseT executePage(ApiT api, RequestT request, Optional<String> pageToken,
+      GenomicsRequestInitializer<? super RequestSubT> initializer, RetryPolicy retryPolicy)
+      throws IOException {
+    AdaptivePageSize adaptive = adaptivePageSize;
+    if (null == adaptive || null != getPageSize(request)) {
+      RequestSubT search = createSearch(api, request, pageToken);
+      initializer.initialize(search);
+      return retryPolicy.execute(search);
+    }
+    RetryPolicy.Instance retries = retryPolicy.createInstance();
+    while (true) {
+      int pageSize = adaptive.getPageSize();
+      RequestSubT search = createSearch(api, withPageSize(request, pageSize), pageToken);
+      initializer.initialize(search);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      ResponseT response;
+      try {
+        response = search.execute();
+      } catch (IOException e) {
+        if (e instanceof SocketTimeoutException) {
+          adaptive.timedOut(pageSize);
+        }
+        if (!retries.shouldRetry(search, e)) {
+          throw e;
+        }
+        continue;
+      }
+      long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      HttpHeaders headers = search.getLastResponseHeaders();
+      Long bytes = (null == headers) ? null : headers.getContentLength();
+      Iterable<ItemT> items = getResponses(response);
+      adaptive.update(pageSize, (null == items) ? 0 : Iterables.size(items), millis,
+          (null == bytes) ? -1 : bytes);
+      return response;
+    }
+  }
+
   /**
    * Search for objects.
    *
@@ -1037,40 +1476,57 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
       final RequestT request,
       final GenomicsRequestInitializer<? super RequestSubT> initializer,
       final RetryPolicy retryPolicy) {
+    return searchPages(request, initializer, retryPolicy)
+        .transformAndConcat(
+            new Function<ResponseT, Iterable<ItemT>>() {
+              @Override public Iterable<ItemT> apply(ResponseT response) {
+                return Optional.fromNullable(getResponses(request, response))
+                    .or(Collections.<ItemT>emptyList());
+              }
+            });
+  }
+
+  /**
+   * @return a lazy stream of the responses to a search, one for each page
+   */
+  private FluentIterable<ResponseT> searchPages(
+      final RequestT request,
+      final GenomicsRequestInitializer<? super RequestSubT> initializer,
+      final RetryPolicy retryPolicy) {
     final ApiT api = getApi(genomics);
+    if (0 < prefetchDepth) {
+      final int depth = prefetchDepth;
+      final Executor executor = prefetchExecutor;
+      return FluentIterable
+          .from(
+              new Iterable<ResponseT>() {
+                @Override public Iterator<ResponseT> iterator() {
+                  return new PrefetchingIterator(api, request, initializer, retryPolicy, depth,
+                      executor);
+                }
+              });
+    }
     return FluentIterable
         .from(
             new Iterable<Pair>() {
               @Override public Iterator<Pair> iterator() {
-                try {
-                  return new AbstractSequentialIterator<Pair>(
-                          new Pair(createSearch(api, request, Optional.<String>absent()), null)) {
-                        @Override protected Pair computeNext(Pair pair) {
-                          return Optional.fromNullable(pair.request)
-                              .transform(
-                                  new Function<RequestSubT, Pair>() {
-                                    @Override public Pair apply(RequestSubT search) {
-                                      try {
-                                        initializer.initialize(search);
-                                        ResponseT response = retryPolicy.execute(search);
-                                        Optional<String> pageToken =
-                                            Optional.fromNullable(Strings.emptyToNull(getNextPageToken(response)));
-                                        return new Pair(
-                                            pageToken.isPresent()
-                                                ? createSearch(api, request, pageToken)
-                                                : null,
-                                            response);
-                                      } catch (IOException e) {
-                                        throw new SearchException(e);
-                                      }
-                                    }
-                                  })
-                              .orNull();
+                return new AbstractSequentialIterator<Pair>(
+                        new Pair(Optional.<String>absent(), null)) {
+                      @Override protected Pair computeNext(Pair pair) {
+                        if (null == pair.pageToken) {
+                          return null;
                         }
-                      };
-                } catch (IOException e) {
-                  throw new SearchException(e);
-                }
+                        try {
+                          ResponseT response = executePage(api, request, pair.pageToken,
+                              initializer, retryPolicy);
+                          Optional<String> pageToken =
+                              Optional.fromNullable(Strings.emptyToNull(getNextPageToken(response)));
+                          return new Pair(pageToken.isPresent() ? pageToken : null, response);
+                        } catch (IOException e) {
+                          throw new SearchException(e);
+                        }
+                      }
+                    };
               }
             })
         .skip(1)
@@ -1079,12 +1535,6 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
               @Override public ResponseT apply(Pair pair) {
                 return pair.response;
               }
-            })
-        .transformAndConcat(
-            new Function<ResponseT, Iterable<ItemT>>() {
-              @Override public Iterable<ItemT> apply(ResponseT response) {
-                return Optional.fromNullable(getResponses(response)).or(Collections.<ItemT>emptyList());
-              }
             });
   }
 
@@ -1113,6 +1563,72 @@ public abstract class Paginator<ApiT, RequestT, RequestSubT extends GenomicsRequ
     }
   }
 
+  /**
+   * Search many shards of a region at the same time, e.g. the shards returned by
+   * {@link ShardUtils#getShards}.  Only paginators for searches by region (reads,
+   * variants and annotations) support this.
+   *
+   * A paged search is made for each shard, with the region of the shard and everything else from
+   * the prototype request, and up to a fixed number of them run concurrently.  With a strict shard
+   * boundary, each search only returns the records starting in its shard, so that a record
+   * overlapping two shards is returned once.  The threads running the searches are stopped when
+   * the callback returns, whether or not it consumed all results.
+   *
+   * @param prototype The search request, whose region is replaced by that of each shard.
+   * @param shards The shards to search.
+   * @param initializer The {@link GenomicsRequestInitializer} with which to initialize requests.
+   * @param concurrency The maximum number of shards to search at the same time.
+   * @param order Whether to return the results in the order of the shards.
+   * @param callback The {@link Callback} used to consume search results.
+   * @param retryPolicy A retry policy specifying behavior when a request fails
+   *     (usually due to SocketTimeoutExceptions)
+   * @return whatever value {@link Callback#consumeResponses} returned.
+   * @throws IOException if an IOException occurred while consuming search results.
+   */
+  public final <F> F searchSharded(
+      RequestT prototype,
+      List<Contig> shards,
+      GenomicsRequestInitializer<? super RequestSubT> initializer,
+      int concurrency,
+      ShardOrder order,
+      Callback<ItemT, ? extends F> callback,
+      RetryPolicy retryPolicy) throws IOException {
+    Preconditions.checkArgument(0 < concurrency, "concurrency must be positive");
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+        new ThreadFactoryBuilder().setNameFormat("paginator-shard-%d").setDaemon(true).build());
+    try {
+      final Iterator<ItemT> results = new ShardedIterator(prototype, shards, initializer,
+          retryPolicy, 2 * concurrency, order, executor);
+      return callback.consumeResponses(
+          new Iterable<ItemT>() {
+            private boolean iterated = false;
+
+            @Override public Iterator<ItemT> iterator() {
+              Preconditions.checkState(!iterated, "The results can only be iterated once");
+              iterated = true;
+              return results;
+            }
+          });
+    } catch (SearchException e) {
+      throw e.getCause();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Search many shards of a region at the same time with a partial response.
+   *
+   * @see #searchSharded(Object, List, GenomicsRequestInitializer, int, ShardOrder, Callback,
+   *      RetryPolicy)
+   */
+  public final <F> F searchSharded(RequestT prototype, List<Contig> shards, String fields,
+      int concurrency, ShardOrder order, Callback<ItemT, ? extends F> callback)
+      throws IOException {
+    return searchSharded(prototype, shards, setFieldsInitializer(fields), concurrency, order,
+        callback, RetryPolicy.defaultPolicy());
+  }
+
   /**
    * Search for objects with a partial response.
    *
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -106,8 +107,26 @@ public class ShardUtils {
   public static ImmutableList<StreamVariantsRequest> getVariantRequests(final StreamVariantsRequest prototype,
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
       OfflineAuth auth) throws IOException {
+    return getVariantRequests(prototype, sexChromosomeFilter, numberOfBasesPerShard,
+        GenomicsContext.create(auth));
+  }
+
+  /**
+   * Constructs sharded StreamVariantsRequests for the all references in the variantSet.
+   *
+   * @param prototype The prototype request.
+   * @param sexChromosomeFilter An enum value indicating how sex chromosomes should be
+   *        handled in the result.
+   * @param numberOfBasesPerShard The maximum number of bases to include per shard.
+   * @param context The GenomicsContext to be used to get the reference bounds for the variantSet.
+   * @return The shuffled list of sharded request objects.
+   * @throws IOException
+   */
+  public static ImmutableList<StreamVariantsRequest> getVariantRequests(final StreamVariantsRequest prototype,
+      SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
+      GenomicsContext context) throws IOException {
     Iterable<Contig> shards = getAllShardsInVariantSet(prototype.getVariantSetId(),
-        sexChromosomeFilter, numberOfBasesPerShard, auth);
+        sexChromosomeFilter, numberOfBasesPerShard, context);
     return FluentIterable.from(shards)
         .transform(new Function<Contig, StreamVariantsRequest>() {
           @Override
@@ -117,6 +136,23 @@ public class ShardUtils {
         }).toList();
   }
 
+  /**
+   * Constructs the shards of the specified contiguous region(s) of the genome, e.g. for
+   * {@link Paginator#searchSharded}.  Unlike the sharded requests, the shards are not shuffled but
+   * are in the order of the regions, so that results returned in shard order are sorted.
+   *
+   * @param references The specified contiguous region(s) of the genome.
+   * @param numberOfBasesPerShard The maximum number of bases to include per shard.
+   * @return The list of shards.
+   */
+  public static ImmutableList<Contig> getShards(String references, long numberOfBasesPerShard) {
+    ImmutableList.Builder<Contig> shards = ImmutableList.builder();
+    for (Contig contig : Contig.parseContigsFromCommandLine(references)) {
+      shards.addAll(contig.getShards(numberOfBasesPerShard));
+    }
+    return shards.build();
+  }
+
   /**
    * Constructs sharded StreamReadsRequests for the specified contiguous region(s) of the genome.
    *
@@ -163,8 +199,26 @@ public class ShardUtils {
   public static ImmutableList<StreamReadsRequest> getReadRequests(final StreamReadsRequest prototype,
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
       OfflineAuth auth) throws IOException {
+    return getReadRequests(prototype, sexChromosomeFilter, numberOfBasesPerShard,
+        GenomicsContext.create(auth));
+  }
+
+  /**
+   * Constructs sharded StreamReadsRequest for the all references in the readGroupSet.
+   *
+   * @param prototype The prototype request.
+   * @param sexChromosomeFilter An enum value indicating how sex chromosomes should be
+   *        handled in the result.
+   * @param numberOfBasesPerShard The maximum number of bases to include per shard.
+   * @param context The GenomicsContext to be used to get the coverage buckets for the readGroupSet.
+   * @return The shuffled list of sharded request objects.
+   * @throws IOException
+   */
+  public static ImmutableList<StreamReadsRequest> getReadRequests(final StreamReadsRequest prototype,
+      SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
+      GenomicsContext context) throws IOException {
     Iterable<Contig> shards = getAllShardsInReadGroupSet(prototype.getReadGroupSetId(), sexChromosomeFilter,
-        numberOfBasesPerShard, auth);
+        numberOfBasesPerShard, context);
     return FluentIterable.from(shards)
         .transform(new Function<Contig, StreamReadsRequest>() {
           @Override
@@ -174,6 +228,41 @@ public class ShardUtils {
         }).toList();
   }
 
+  /**
+   * Constructs sharded StreamReadsRequests for the all references in each of the readGroupSets,
+   * looking up the coverage buckets of several readGroupSets at the same time.
+   *
+   * @param prototypes The list of prototype requests, one for each readGroupSet.
+   * @param sexChromosomeFilter An enum value indicating how sex chromosomes should be
+   *        handled in the result.
+   * @param numberOfBasesPerShard The maximum number of bases to include per shard.
+   * @param context The GenomicsContext to be used to get the coverage buckets for the readGroupSets.
+   * @param concurrency The maximum number of readGroupSets to look up at the same time.
+   * @return The shuffled list of sharded request objects.
+   * @throws IOException
+   */
+  public static ImmutableList<StreamReadsRequest> getReadRequests(List<StreamReadsRequest> prototypes,
+      SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
+      GenomicsContext context, int concurrency) throws IOException {
+    List<String> readGroupSetIds = Lists.newArrayList();
+    for (StreamReadsRequest prototype : prototypes) {
+      readGroupSetIds.add(prototype.getReadGroupSetId());
+    }
+    Map<String, List<CoverageBucket>> buckets =
+        GenomicsUtils.getCoverageBuckets(readGroupSetIds, context, concurrency);
+    List<StreamReadsRequest> requests = Lists.newArrayList();
+    for (StreamReadsRequest prototype : prototypes) {
+      List<Contig> contigs =
+          getContigsInCoverageBuckets(buckets.get(prototype.getReadGroupSetId()), sexChromosomeFilter);
+      for (Contig shard : getAllShardsForContigs(contigs, numberOfBasesPerShard)) {
+        requests.add(shard.getStreamReadsRequest(prototype));
+      }
+    }
+    // The shards were already shuffled, but now lets shuffle this list of concatenated shuffled requests.
+    Collections.shuffle(requests);
+    return ImmutableList.copyOf(requests);
+  }
+
   /**
    * Constructs sharded StreamVariantsRequests for the specified contiguous region(s) of the genome.
    *
@@ -211,7 +300,7 @@ public class ShardUtils {
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
       OfflineAuth auth) throws IOException {
     Iterable<Contig> shards = getAllShardsInVariantSet(variantSetId,
-        sexChromosomeFilter, numberOfBasesPerShard, auth);
+        sexChromosomeFilter, numberOfBasesPerShard, GenomicsContext.create(auth));
     return FluentIterable.from(shards)
         .transform(new Function<Contig, StreamVariantsRequest>() {
           @Override
@@ -270,7 +359,7 @@ public class ShardUtils {
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
       OfflineAuth auth) throws IOException {
     Iterable<Contig> shards = getAllShardsInReadGroupSet(readGroupSetId, sexChromosomeFilter,
-        numberOfBasesPerShard, auth);
+        numberOfBasesPerShard, GenomicsContext.create(auth));
     return FluentIterable.from(shards)
         .transform(new Function<Contig, StreamReadsRequest>() {
           @Override
@@ -282,8 +371,8 @@ public class ShardUtils {
 
   private static List<Contig> getAllShardsInVariantSet(String variantSetId,
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
-      OfflineAuth auth) throws IOException {
-    List<Contig> contigs = getContigsInVariantSet(variantSetId, sexChromosomeFilter, auth);
+      GenomicsContext context) throws IOException {
+    List<Contig> contigs = getContigsInVariantSet(variantSetId, sexChromosomeFilter, context);
     return ShardUtils.getAllShardsForContigs(contigs, numberOfBasesPerShard);
   }
 
@@ -299,9 +388,9 @@ public class ShardUtils {
    * @throws IOException
    */
   private static List<Contig> getContigsInVariantSet(String variantSetId,
-      SexChromosomeFilter sexChromosomeFilter, OfflineAuth auth) throws IOException {
+      SexChromosomeFilter sexChromosomeFilter, GenomicsContext context) throws IOException {
     List<Contig> contigs = Lists.newArrayList();
-    for (ReferenceBound bound : GenomicsUtils.getReferenceBounds(variantSetId, auth)) {
+    for (ReferenceBound bound : GenomicsUtils.getReferenceBounds(variantSetId, context)) {
       if (sexChromosomeFilter == SexChromosomeFilter.EXCLUDE_XY
           && SEX_CHROMOSOME_REGEXP.matcher(bound.getReferenceName()).matches()) {
         // X and Y can skew some analysis results
@@ -314,8 +403,8 @@ public class ShardUtils {
 
   private static List<Contig> getAllShardsInReadGroupSet(String readGroupSetId,
       SexChromosomeFilter sexChromosomeFilter, long numberOfBasesPerShard,
-      OfflineAuth auth) throws IOException {
-    List<Contig> contigs = getContigsInReadGroupSet(readGroupSetId, sexChromosomeFilter, auth);
+      GenomicsContext context) throws IOException {
+    List<Contig> contigs = getContigsInReadGroupSet(readGroupSetId, sexChromosomeFilter, context);
     return ShardUtils.getAllShardsForContigs(contigs, numberOfBasesPerShard);
   }
 
@@ -330,9 +419,15 @@ public class ShardUtils {
    * @throws IOException
    */
   private static List<Contig> getContigsInReadGroupSet(String readGroupSetId,
-      SexChromosomeFilter sexChromosomeFilter, OfflineAuth auth) throws IOException {
+      SexChromosomeFilter sexChromosomeFilter, GenomicsContext context) throws IOException {
+    return getContigsInCoverageBuckets(GenomicsUtils.getCoverageBuckets(readGroupSetId, context),
+        sexChromosomeFilter);
+  }
+
+  private static List<Contig> getContigsInCoverageBuckets(List<CoverageBucket> buckets,
+      SexChromosomeFilter sexChromosomeFilter) {
     List<Contig> contigs = Lists.newArrayList();
-    for (CoverageBucket bucket : GenomicsUtils.getCoverageBuckets(readGroupSetId, auth)) {
+    for (CoverageBucket bucket : buckets) {
       if (sexChromosomeFilter == SexChromosomeFilter.EXCLUDE_XY
           && SEX_CHROMOSOME_REGEXP.matcher(bucket.getRange().getReferenceName()).matches()) {
         // X and Y can skew some analysis results
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.api.client.util.BackOff;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking stream of genomic data via gRPC with support for retries.
+ *
+ * Unlike {@link GenomicsStreamIterator}, no thread is held while waiting on the server. Responses
+ * are pushed to a {@link Listener} on the channel's executor and inbound flow control is manual:
+ * a further response is only requested from the server once the listener has returned from the
+ * previous one, so a slow listener applies backpressure to the server rather than buffering.
+ *
+ * Upon failure the stream is resumed at the last known good start position without returning
+ * duplicate data, exactly like {@link GenomicsStreamIterator}. Retries are scheduled after the
+ * backoff interval instead of sleeping.
+ *
+ * The stream shuts down its channel once it has finished, unless {@link #leaveChannelOpen()} was
+ * called, e.g. so that many streams can share one channel.
+ *
+ * @param <RequestT> Streaming request type.
+ * @param <ResponseT> Streaming response type.
+ * @param <ItemT> Genomic data type returned by stream.
+ * @param <StubT> Async stub type.
+ */
+public abstract class AsyncGenomicsStream<RequestT, ResponseT, ItemT, StubT extends io.grpc.stub.AbstractStub<StubT>>
+    extends ResumableStream<RequestT, ResponseT, ItemT, StubT> {
+  private static final Logger LOG = Logger.getLogger(AsyncGenomicsStream.class.getName());
+
+  /**
+   * Retries only wait on this scheduler; they do not hold a thread while waiting.
+   */
+  private static final ScheduledExecutorService RETRY_SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("genomics-stream-retry-%d").setDaemon(true).build());
+
+  /**
+   * Receives the responses of the stream.
+   *
+   * All methods are called serially, but not necessarily on the same thread. They should not block
+   * for long since they are called on the channel's executor.
+   *
+   * @param <ResponseT> Streaming response type.
+   */
+  public interface Listener<ResponseT> {
+
+    /**
+     * Consume a response. The next response is requested from the server once this returns.
+     *
+     * @param response The response, with any data already returned before a retry removed.
+     */
+    void onResponse(ResponseT response);
+
+    /**
+     * Called once after the last response when the stream has finished successfully.
+     */
+    void onCompleted();
+
+    /**
+     * Called once when the stream has failed and all retries are consumed, the stream was
+     * cancelled, or the listener threw an exception.
+     *
+     * @param t The cause.
+     */
+    void onError(Throwable t);
+  }
+
+  private final int prefetch;
+  private Listener<ResponseT> listener;
+  private volatile ClientCallStreamObserver<RequestT> requestStream;
+  private volatile boolean cancelled = false;
+  private boolean done = false;
+
+  /**
+   * Create a stream that will filter shard data using the predicate, if supplied.
+   *
+   * @param channel The channel.
+   * @param request The request for the shard of data.
+   * @param shardPredicate A predicate used to client-side filter results returned (e.g., enforce a
+   *        shard boundary and/or limit to SNPs only) or null for no filtering.
+   * @param prefetch The number of responses to request from the server ahead of the listener.
+   */
+  protected AsyncGenomicsStream(ManagedChannel channel, RequestT request,
+      Predicate<ItemT> shardPredicate, int prefetch) {
+    super(channel, request, shardPredicate);
+    Preconditions.checkArgument(0 < prefetch, "prefetch must be positive");
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * Start a call on the async stub.
+   *
+   * @param request The request.
+   * @param responseObserver The observer of the call.
+   */
+  abstract void startCall(RequestT request, StreamObserver<ResponseT> responseObserver);
+
+  /**
+   * Start streaming to the listener. This returns immediately.
+   *
+   * @param listener The listener to which responses are pushed.
+   */
+  public synchronized void start(Listener<ResponseT> listener) {
+    Preconditions.checkState(null == this.listener, "This stream has already been started.");
+    this.listener = Preconditions.checkNotNull(listener);
+    startCall(originalRequest, new ResponseObserver());
+  }
+
+  /**
+   * Cancel the stream. The listener is notified via {@link Listener#onError} unless the stream has
+   * already finished.
+   */
+  public void cancel() {
+    cancelled = true;
+    ClientCallStreamObserver<RequestT> call = requestStream;
+    if (null != call) {
+      call.cancel("Cancelled by client", null);
+    }
+  }
+
+  private synchronized void finish(Throwable t) {
+    if (done) {
+      return;
+    }
+    done = true;
+    shutdownChannel();
+    if (null == t) {
+      listener.onCompleted();
+    } else {
+      listener.onError(t);
+    }
+  }
+
+  private synchronized void retry(final Throwable t) {
+    if (done) {
+      return;
+    }
+    long backOffMillis = cancelled ? BackOff.STOP : nextBackOffMillis(t);
+    if (BackOff.STOP == backOffMillis) {
+      LOG.log(Level.WARNING, "All retries to get next item from stream consumed: ", t);
+      finish(t);
+      return;
+    }
+    LOG.log(Level.WARNING, "Retrying after failing to get next item from stream: ", t);
+    RETRY_SCHEDULER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (AsyncGenomicsStream.this) {
+          if (cancelled) {
+            finish(Status.CANCELLED.withDescription("Cancelled by client").asRuntimeException());
+            return;
+          }
+          try {
+            startCall(getRequestForRetry(), new ResponseObserver());
+          } catch (RuntimeException e) {
+            retry(e);
+          }
+        }
+      }
+    }, backOffMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Observes one call. A new observer is used for each retry.
+   */
+  private class ResponseObserver implements ClientResponseObserver<RequestT, ResponseT> {
+    private ClientCallStreamObserver<RequestT> call;
+    private boolean receivedFirstResponse = false;
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<RequestT> requestStream) {
+      requestStream.disableAutoInboundFlowControl();
+      call = requestStream;
+      AsyncGenomicsStream.this.requestStream = requestStream;
+      if (cancelled) {
+        requestStream.cancel("Cancelled by client", null);
+      }
+    }
+
+    @Override
+    public void onNext(ResponseT response) {
+      synchronized (AsyncGenomicsStream.this) {
+        if (done) {
+          return;
+        }
+        try {
+          listener.onResponse(filterResponse(response));
+        } catch (RuntimeException e) {
+          // Do not retry failures of the listener.
+          finish(e);
+          call.cancel("Listener failed", e);
+          return;
+        }
+      }
+      // The call always starts out with one response requested; top up to the prefetch window once
+      // the first response has arrived and then request one more for each response consumed.
+      call.request(receivedFirstResponse ? 1 : prefetch);
+      receivedFirstResponse = true;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      retry(t);
+    }
+
+    @Override
+    public void onCompleted() {
+      finish(null);
+    }
+  }
+}
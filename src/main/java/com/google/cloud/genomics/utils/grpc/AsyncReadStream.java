@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.cloud.genomics.utils.ShardBoundary.Requirement;
+import com.google.common.base.Predicate;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamingReadServiceGrpc;
+import com.google.genomics.v1.StreamingReadServiceGrpc.StreamingReadServiceStub;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * A non-blocking stream of genomic reads via gRPC with shard boundary semantics.
+ *
+ * This class integrates the same retry logic as {@link ReadStreamIterator}, which upon
+ * encountering a failure will resume the stream at the last known valid start position, skipping
+ * over any data that was already returned to the client prior to the failure.
+ */
+public class AsyncReadStream
+    extends
+    AsyncGenomicsStream<StreamReadsRequest, StreamReadsResponse, Read, StreamingReadServiceGrpc.StreamingReadServiceStub> {
+
+  public static final int DEFAULT_PREFETCH = 2;
+
+  /**
+   * Create a stream that can enforce shard boundary semantics.
+   *
+   * @param auth The OfflineAuth to use for the request.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static AsyncReadStream enforceShardBoundary(OfflineAuth auth,
+      StreamReadsRequest request, Requirement shardBoundary, String fields) throws IOException,
+      GeneralSecurityException {
+    return AsyncReadStream.enforceShardBoundary(GenomicsChannel.fromOfflineAuth(auth, fields),
+        request, shardBoundary, fields);
+  }
+
+  /**
+   * Create a stream that can enforce shard boundary semantics, using a channel leased from the
+   * pool. The lease is released once the stream has finished.
+   *
+   * @param pool The pool of channels.
+   * @param auth The OfflineAuth to use for the request.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static AsyncReadStream enforceShardBoundary(GenomicsChannelPool pool, OfflineAuth auth,
+      StreamReadsRequest request, Requirement shardBoundary, String fields) throws IOException,
+      GeneralSecurityException {
+    GenomicsChannelPool.Lease lease = pool.acquire(auth, fields);
+    try {
+      AsyncReadStream stream =
+          AsyncReadStream.enforceShardBoundary(lease.getChannel(), request, shardBoundary, fields);
+      stream.releaseWhenDone(lease);
+      return stream;
+    } catch (RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Create a stream that can enforce shard boundary semantics.
+   *
+   * @param channel The ManagedChannel.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Used to check whether the specified fields would meet the minimum required
+   *    fields for the shard boundary predicate, if applicable.
+   */
+  public static AsyncReadStream enforceShardBoundary(ManagedChannel channel,
+      StreamReadsRequest request, Requirement shardBoundary, String fields) {
+    Predicate<Read> shardPredicate =
+        (ShardBoundary.Requirement.STRICT == shardBoundary) ? ShardBoundary
+            .getStrictReadPredicate(request.getStart(), fields) : null;
+    AsyncReadStream stream =
+        new AsyncReadStream(channel, request, shardPredicate, DEFAULT_PREFETCH);
+    if (null != shardPredicate) {
+      stream.useStrictShardBoundary();
+    }
+    return stream;
+  }
+
+  /**
+   * Create a stream.
+   *
+   * @param channel The ManagedChannel.
+   * @param request The request for the shard of data.
+   * @param shardPredicate A predicate used to client-side filter results returned (e.g., enforce a
+   *        shard boundary and/or limit to SNPs only) or null for no filtering.
+   * @param prefetch The number of responses to request from the server ahead of the listener.
+   */
+  public AsyncReadStream(ManagedChannel channel, StreamReadsRequest request,
+      Predicate<Read> shardPredicate, int prefetch) {
+    super(channel, request, shardPredicate, prefetch);
+  }
+
+  @Override
+  StreamingReadServiceStub createStub(ManagedChannel channel) {
+    return StreamingReadServiceGrpc.newStub(channel);
+  }
+
+  @Override
+  void startCall(StreamReadsRequest request, StreamObserver<StreamReadsResponse> responseObserver) {
+    stub.streamReads(request, responseObserver);
+  }
+
+  @Override
+  long getRequestStart(StreamReadsRequest request) {
+    return request.getStart();
+  }
+
+  @Override
+  long getDataItemStart(Read dataItem) {
+    return dataItem.getAlignment().getPosition().getPosition();
+  }
+
+  @Override
+  String getDataItemId(Read dataItem) {
+    return dataItem.getId();
+  }
+
+  @Override
+  StreamReadsRequest getRevisedRequest(long updatedStart) {
+    return StreamReadsRequest.newBuilder(originalRequest).setStart(updatedStart).build();
+  }
+
+  @Override
+  List<Read> getDataList(StreamReadsResponse response) {
+    return response.getAlignmentsList();
+  }
+
+  @Override
+  StreamReadsResponse buildResponse(StreamReadsResponse response, Iterable<Read> dataList) {
+    return StreamReadsResponse.newBuilder(response).clearAlignments().addAllAlignments(dataList)
+        .build();
+  }
+}
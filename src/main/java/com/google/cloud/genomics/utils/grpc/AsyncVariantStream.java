@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.cloud.genomics.utils.ShardBoundary.Requirement;
+import com.google.common.base.Predicate;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+import com.google.genomics.v1.StreamingVariantServiceGrpc;
+import com.google.genomics.v1.StreamingVariantServiceGrpc.StreamingVariantServiceStub;
+import com.google.genomics.v1.Variant;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * A non-blocking stream of genomic variants via gRPC with shard boundary semantics.
+ *
+ * This class integrates the same retry logic as {@link VariantStreamIterator}, which upon
+ * encountering a failure will resume the stream at the last known valid start position, skipping
+ * over any data that was already returned to the client prior to the failure.
+ */
+public class AsyncVariantStream
+    extends
+    AsyncGenomicsStream<StreamVariantsRequest, StreamVariantsResponse, Variant, StreamingVariantServiceGrpc.StreamingVariantServiceStub> {
+
+  public static final int DEFAULT_PREFETCH = 2;
+
+  /**
+   * Create a stream that can enforce shard boundary semantics.
+   *
+   * @param auth The OfflineAuth to use for the request.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static AsyncVariantStream enforceShardBoundary(OfflineAuth auth,
+      StreamVariantsRequest request, Requirement shardBoundary, String fields) throws IOException,
+      GeneralSecurityException {
+    return AsyncVariantStream.enforceShardBoundary(GenomicsChannel.fromOfflineAuth(auth, fields),
+        request, shardBoundary, fields);
+  }
+
+  /**
+   * Create a stream that can enforce shard boundary semantics, using a channel leased from the
+   * pool. The lease is released once the stream has finished.
+   *
+   * @param pool The pool of channels.
+   * @param auth The OfflineAuth to use for the request.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static AsyncVariantStream enforceShardBoundary(GenomicsChannelPool pool, OfflineAuth auth,
+      StreamVariantsRequest request, Requirement shardBoundary, String fields) throws IOException,
+      GeneralSecurityException {
+    GenomicsChannelPool.Lease lease = pool.acquire(auth, fields);
+    try {
+      AsyncVariantStream stream =
+          AsyncVariantStream.enforceShardBoundary(lease.getChannel(), request, shardBoundary, fields);
+      stream.releaseWhenDone(lease);
+      return stream;
+    } catch (RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Create a stream that can enforce shard boundary semantics.
+   *
+   * @param channel The ManagedChannel.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Used to check whether the specified fields would meet the minimum required
+   *    fields for the shard boundary predicate, if applicable.
+   */
+  public static AsyncVariantStream enforceShardBoundary(ManagedChannel channel,
+      StreamVariantsRequest request, Requirement shardBoundary, String fields) {
+    Predicate<Variant> shardPredicate;
+    if(ShardBoundary.Requirement.STRICT == shardBoundary) {
+      shardPredicate = ShardBoundary.getStrictVariantPredicate(request.getStart(), fields);
+    } else {
+      shardPredicate = null;
+    }
+
+    AsyncVariantStream stream =
+        new AsyncVariantStream(channel, request, shardPredicate, DEFAULT_PREFETCH);
+    if (null != shardPredicate) {
+      stream.useStrictShardBoundary();
+    }
+    return stream;
+  }
+
+  /**
+   * Create a stream.
+   *
+   * @param channel The ManagedChannel.
+   * @param request The request for the shard of data.
+   * @param shardPredicate A predicate used to client-side filter results returned (e.g., enforce a
+   *        shard boundary and/or limit to SNPs only) or null for no filtering.
+   * @param prefetch The number of responses to request from the server ahead of the listener.
+   */
+  public AsyncVariantStream(ManagedChannel channel, StreamVariantsRequest request,
+      Predicate<Variant> shardPredicate, int prefetch) {
+    super(channel, request, shardPredicate, prefetch);
+  }
+
+  @Override
+  StreamingVariantServiceStub createStub(ManagedChannel channel) {
+    return StreamingVariantServiceGrpc.newStub(channel);
+  }
+
+  @Override
+  void startCall(StreamVariantsRequest request,
+      StreamObserver<StreamVariantsResponse> responseObserver) {
+    stub.streamVariants(request, responseObserver);
+  }
+
+  @Override
+  long getRequestStart(StreamVariantsRequest request) {
+    return request.getStart();
+  }
+
+  @Override
+  long getDataItemStart(Variant dataItem) {
+    return dataItem.getStart();
+  }
+
+  @Override
+  String getDataItemId(Variant dataItem) {
+    return dataItem.getId();
+  }
+
+  @Override
+  StreamVariantsRequest getRevisedRequest(long updatedStart) {
+    return StreamVariantsRequest.newBuilder(originalRequest).setStart(updatedStart).build();
+  }
+
+  @Override
+  List<Variant> getDataList(StreamVariantsResponse response) {
+    return response.getVariantsList();
+  }
+
+  @Override
+  StreamVariantsResponse buildResponse(StreamVariantsResponse response, Iterable<Variant> dataList) {
+    return StreamVariantsResponse.newBuilder(response).clearVariants().addAllVariants(dataList)
+        .build();
+  }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Imports the records of a local BAM file, converting them to reads or any other form on many
+ * threads.
+ *
+ * The file is read sequentially in runs of BGZF blocks, which are inflated on the worker threads.
+ * The inflated bytes are split into batches of whole records in the order of the file, and each
+ * batch is decoded and converted on a worker thread.  The converted batches are written to a
+ * {@link Sink} in the order of the file, on the calling thread.  The number of runs and batches in
+ * flight is bounded, so the memory used does not depend on the size of the file.
+ *
+ * @param <T> The type to which the records are converted.
+ */
+public class BamReadImporter<T> {
+
+  public static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  // The number of BGZF blocks, of at most 64KB each, inflated by one task.
+  private static final int BLOCKS_PER_RUN = 16;
+
+  /**
+   * Converts each record to a read with {@link ReadUtils#makeReadGrpc}.
+   */
+  public static final Function<SAMRecord, Read> TO_READ = new Function<SAMRecord, Read>() {
+    @Override
+    public Read apply(SAMRecord record) {
+      return ReadUtils.makeReadGrpc(record);
+    }
+  };
+
+  /**
+   * Converts each record to a serialized read, so that the serialization is also done on the worker
+   * threads.
+   */
+  public static final Function<SAMRecord, byte[]> TO_SERIALIZED_READ =
+      new Function<SAMRecord, byte[]>() {
+        @Override
+        public byte[] apply(SAMRecord record) {
+          return ReadUtils.makeReadGrpc(record).toByteArray();
+        }
+      };
+
+  /**
+   * Receives the batches of converted records, on the thread calling
+   * {@link BamReadImporter#importRecords}.
+   *
+   * @param <T> The type to which the records are converted.
+   */
+  public interface Sink<T> {
+    /**
+     * @param batch The next batch of converted records, in the order of the file.
+     * @throws IOException
+     */
+    void write(List<T> batch) throws IOException;
+  }
+
+  /**
+   * A builder class for {@link BamReadImporter} objects.
+   *
+   * @param <T> The type to which the records are converted.
+   */
+  public static class Builder<T> {
+    private final File bam;
+    private final Function<SAMRecord, T> converter;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    Builder(File bam, Function<SAMRecord, T> converter) {
+      this.bam = Preconditions.checkNotNull(bam);
+      this.converter = Preconditions.checkNotNull(converter);
+    }
+
+    /**
+     * @param concurrency The number of threads inflating and converting records.
+     * @return this builder
+     */
+    public Builder<T> setConcurrency(int concurrency) {
+      Preconditions.checkArgument(0 < concurrency, "concurrency must be positive");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * @param batchSize The number of records converted by one task and written to the sink at once.
+     * @return this builder
+     */
+    public Builder<T> setBatchSize(int batchSize) {
+      Preconditions.checkArgument(0 < batchSize, "batchSize must be positive");
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public BamReadImporter<T> build() {
+      return new BamReadImporter<T>(this);
+    }
+  }
+
+  /**
+   * @param bam The BAM file to import.
+   * @param converter The conversion of each record, e.g. {@link #TO_READ}.  It is called on many
+   *        threads at once.
+   * @return a builder for the importer
+   */
+  public static <T> Builder<T> builder(File bam, Function<SAMRecord, T> converter) {
+    return new Builder<T>(bam, converter);
+  }
+
+  private final File bam;
+  private final Function<SAMRecord, T> converter;
+  private final int concurrency;
+  private final int batchSize;
+
+  // Each worker thread reuses its inflater for all the runs it inflates.
+  private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private BamReadImporter(Builder<T> builder) {
+    bam = builder.bam;
+    converter = builder.converter;
+    concurrency = builder.concurrency;
+    batchSize = builder.batchSize;
+  }
+
+  /**
+   * Import all records of the file.
+   *
+   * @param sink Where to write the converted records.
+   * @return the number of records imported
+   * @throws IOException
+   */
+  public long importRecords(Sink<T> sink) throws IOException {
+    SAMFileHeader header = SamReaderFactory.makeDefault().getFileHeader(bam);
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+        .setNameFormat("bam-importer-%d").setDaemon(true).build());
+    InputStream input = new BufferedInputStream(new FileInputStream(bam),
+        BLOCKS_PER_RUN * BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+    long numRecords = 0;
+    try {
+      // Keep twice as many runs and batches in flight as there are workers, so that the workers
+      // stay busy while the next run or batch is waited on.
+      int maxInFlight = 2 * concurrency;
+      Deque<Future<byte[]>> runs = new ArrayDeque<>();
+      Deque<Future<List<T>>> batches = new ArrayDeque<>();
+      RecordBuffer buffer = new RecordBuffer();
+      boolean endOfFile = false;
+      while (true) {
+        while (!endOfFile && runs.size() < maxInFlight) {
+          byte[] run = readRun(input);
+          if (null == run) {
+            endOfFile = true;
+          } else {
+            runs.add(executor.submit(inflateRun(run)));
+          }
+        }
+        if (runs.isEmpty()) {
+          break;
+        }
+
+        buffer.append(get(runs.remove()));
+        for (byte[] batch = buffer.takeBatch(batchSize); null != batch;
+            batch = buffer.takeBatch(batchSize)) {
+          batches.add(executor.submit(convertBatch(header, batch)));
+        }
+        while (maxInFlight < batches.size()) {
+          numRecords += write(sink, get(batches.remove()));
+        }
+      }
+
+      byte[] lastBatch = buffer.takeRest();
+      if (null != lastBatch) {
+        batches.add(executor.submit(convertBatch(header, lastBatch)));
+      }
+      while (!batches.isEmpty()) {
+        numRecords += write(sink, get(batches.remove()));
+      }
+    } finally {
+      executor.shutdownNow();
+      input.close();
+    }
+    return numRecords;
+  }
+
+  private static <T> int write(Sink<T> sink, List<T> batch) throws IOException {
+    sink.write(batch);
+    return batch.size();
+  }
+
+  private static <V> V get(Future<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while importing", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Read the next run of whole BGZF blocks without inflating them.
+   *
+   * @return the blocks, or null at the end of the file
+   */
+  static byte[] readRun(InputStream input) throws IOException {
+    ByteArrayOutputStream run = new ByteArrayOutputStream(
+        BLOCKS_PER_RUN * BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+    byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    for (int i = 0; i < BLOCKS_PER_RUN; i++) {
+      int headerLength =
+          readFully(input, block, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+      if (0 == headerLength) {
+        break;
+      }
+      if (BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH != headerLength
+          || BlockCompressedStreamConstants.GZIP_ID1 != block[0]
+          || (byte) BlockCompressedStreamConstants.GZIP_ID2 != block[1]
+          || BlockCompressedStreamConstants.GZIP_FLG != (block[3] & 0xff)
+          || BlockCompressedStreamConstants.GZIP_XLEN != readShort(block, 10)
+          || BlockCompressedStreamConstants.BGZF_ID1 != block[12]
+          || BlockCompressedStreamConstants.BGZF_ID2 != block[13]) {
+        throw new IOException("Invalid BGZF block header");
+      }
+      int blockLength =
+          readShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+      int bodyLength = blockLength - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+      if (bodyLength < BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH
+          || readFully(input, block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, bodyLength)
+          != bodyLength) {
+        throw new IOException("Truncated BGZF block");
+      }
+      run.write(block, 0, blockLength);
+    }
+    return (0 == run.size()) ? null : run.toByteArray();
+  }
+
+  private static int readFully(InputStream input, byte[] bytes, int offset, int length)
+      throws IOException {
+    int read = 0;
+    while (read < length) {
+      int count = input.read(bytes, offset + read, length - read);
+      if (count < 0) {
+        break;
+      }
+      read += count;
+    }
+    return read;
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8)
+        | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+  }
+
+  private Callable<byte[]> inflateRun(final byte[] run) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        // The uncompressed size of each block is in its footer, so the output is allocated once.
+        int length = 0;
+        for (int offset = 0; offset < run.length; offset += blockLength(run, offset)) {
+          length += readInt(run, offset + blockLength(run, offset) - 4);
+        }
+        byte[] inflated = new byte[length];
+        Inflater inflater = inflaters.get();
+        int position = 0;
+        for (int offset = 0; offset < run.length; offset += blockLength(run, offset)) {
+          int blockLength = blockLength(run, offset);
+          int size = readInt(run, offset + blockLength - 4);
+          inflater.reset();
+          inflater.setInput(run, offset + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+              blockLength - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+              - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
+          try {
+            if (size != inflater.inflate(inflated, position, size)
+                || (0 < size && !inflater.finished())) {
+              throw new IOException("BGZF block does not inflate to its size");
+            }
+          } catch (DataFormatException e) {
+            throw new IOException(e);
+          }
+          position += size;
+        }
+        return inflated;
+      }
+    };
+  }
+
+  private static int blockLength(byte[] run, int offset) {
+    return readShort(run, offset + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1;
+  }
+
+  private Callable<List<T>> convertBatch(final SAMFileHeader header, final byte[] batch) {
+    return new Callable<List<T>>() {
+      @Override
+      public List<T> call() {
+        BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(new ByteArrayInputStream(batch));
+        List<T> converted = new ArrayList<>();
+        for (SAMRecord record = codec.decode(); null != record; record = codec.decode()) {
+          converted.add(converter.apply(record));
+        }
+        return converted;
+      }
+    };
+  }
+
+  /**
+   * The inflated bytes of the file which have not yet been taken as batches of records.
+   */
+  static class RecordBuffer {
+    private byte[] bytes = new byte[0];
+    private int length = 0;
+    private boolean headerSkipped = false;
+    // The end of the last whole record found, and the number of whole records before it.
+    private int scanned = 0;
+    private int numRecords = 0;
+
+    void append(byte[] inflated) {
+      if (bytes.length < length + inflated.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + inflated.length));
+      }
+      System.arraycopy(inflated, 0, bytes, length, inflated.length);
+      length += inflated.length;
+    }
+
+    /**
+     * @return the next batch of exactly batchSize records, or null if there are not yet enough
+     */
+    byte[] takeBatch(int batchSize) throws IOException {
+      if (!headerSkipped) {
+        int headerLength = headerLength();
+        if (headerLength < 0) {
+          return null;
+        }
+        discard(headerLength);
+        headerSkipped = true;
+      }
+      while (numRecords < batchSize && scanned + 4 <= length) {
+        int recordLength = 4 + readInt(bytes, scanned);
+        if (recordLength < 4) {
+          throw new IOException("Invalid BAM record length");
+        }
+        if (length < scanned + recordLength) {
+          break;
+        }
+        scanned += recordLength;
+        numRecords++;
+      }
+      if (numRecords < batchSize) {
+        return null;
+      }
+      byte[] batch = Arrays.copyOf(bytes, scanned);
+      discard(scanned);
+      return batch;
+    }
+
+    /**
+     * @return the records left at the end of the file, or null if there are none
+     */
+    byte[] takeRest() throws IOException {
+      byte[] batch = takeBatch(Integer.MAX_VALUE);
+      if (!headerSkipped || scanned != length) {
+        throw new IOException("Truncated BAM file");
+      }
+      if (0 == numRecords) {
+        return null;
+      }
+      batch = Arrays.copyOf(bytes, scanned);
+      discard(scanned);
+      return batch;
+    }
+
+    private void discard(int count) {
+      System.arraycopy(bytes, count, bytes, 0, length - count);
+      length -= count;
+      scanned = 0;
+      numRecords = 0;
+    }
+
+    /**
+     * @return the length of the binary BAM header, or -1 if it is not yet whole
+     */
+    private int headerLength() throws IOException {
+      if (length < 8) {
+        return -1;
+      }
+      if ('B' != bytes[0] || 'A' != bytes[1] || 'M' != bytes[2] || 1 != bytes[3]) {
+        throw new IOException("Not a BAM file");
+      }
+      long position = 8L + readInt(bytes, 4);
+      if (length < position + 4) {
+        return -1;
+      }
+      int numReferences = readInt(bytes, (int) position);
+      position += 4;
+      for (int i = 0; i < numReferences; i++) {
+        if (length < position + 4) {
+          return -1;
+        }
+        position += 4 + readInt(bytes, (int) position) + 4;
+      }
+      return (length < position) ? -1 : (int) position;
+    }
+  }
+}
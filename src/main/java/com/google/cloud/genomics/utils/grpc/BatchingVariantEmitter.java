@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.genomics.v1.Variant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An emitter which groups variants into batches and writes them to a {@link Sink} on a separate
+ * thread, so that the merge emitting the variants is not stalled by the latency of its output.
+ *
+ * A batch is written once it reaches either the maximum number of variants or the maximum
+ * serialized size.  At most a fixed number of batches wait for the sink; when they are all taken,
+ * {@link Overflow#BLOCK} makes the merge wait for the sink while {@link Overflow#DROP} drops the
+ * batch and counts its variants as dropped.  {@link #flush} and {@link #close} always wait, so that
+ * the last batch is never dropped.
+ *
+ * A failure of the sink is rethrown by the next call to {@link #emit}, {@link #flush} or
+ * {@link #close}, and later batches are dropped.
+ */
+public class BatchingVariantEmitter implements VariantEmitterStrategy, Closeable {
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+  public static final long DEFAULT_MAX_BATCH_BYTES = 4L * 1024 * 1024;
+  public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+  private static final ThreadFactory WRITER_THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("variant-batch-writer-%d").setDaemon(true).build();
+
+  /**
+   * Receives the batches of variants, on the writer thread.
+   */
+  public interface Sink {
+    /**
+     * @param batch The next batch of variants, in the order in which they were emitted.
+     * @throws IOException
+     */
+    void write(List<Variant> batch) throws IOException;
+  }
+
+  /**
+   * Enum for what to do with a full batch when the queue of batches is full.
+   */
+  public enum Overflow {
+    /**
+     * Wait for the sink to take a batch from the queue.
+     */
+    BLOCK,
+    /**
+     * Drop the batch.
+     */
+    DROP,
+  }
+
+  /**
+   * A builder class for {@link BatchingVariantEmitter} objects.
+   */
+  public static class Builder {
+    private final Sink sink;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private Overflow overflow = Overflow.BLOCK;
+
+    Builder(Sink sink) {
+      this.sink = Preconditions.checkNotNull(sink);
+    }
+
+    /**
+     * @param maxBatchSize The maximum number of variants in a batch.
+     * @return this builder
+     */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      Preconditions.checkArgument(0 < maxBatchSize, "maxBatchSize must be positive");
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * @param maxBatchBytes The serialized size at which a batch is written, even if it holds
+     *    fewer than the maximum number of variants.
+     * @return this builder
+     */
+    public Builder setMaxBatchBytes(long maxBatchBytes) {
+      Preconditions.checkArgument(0 < maxBatchBytes, "maxBatchBytes must be positive");
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /**
+     * @param queueCapacity The maximum number of batches waiting for the sink.
+     * @return this builder
+     */
+    public Builder setQueueCapacity(int queueCapacity) {
+      Preconditions.checkArgument(0 < queueCapacity, "queueCapacity must be positive");
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * @param overflow What to do with a batch when the queue is full.
+     * @return this builder
+     */
+    public Builder setOverflow(Overflow overflow) {
+      this.overflow = Preconditions.checkNotNull(overflow);
+      return this;
+    }
+
+    /**
+     * Start the writer thread.
+     *
+     * @return the emitter
+     */
+    public BatchingVariantEmitter build() {
+      return new BatchingVariantEmitter(this);
+    }
+  }
+
+  /**
+   * @param sink Receives the batches of variants.
+   * @return a builder for an emitter writing to the sink
+   */
+  public static Builder builder(Sink sink) {
+    return new Builder(sink);
+  }
+
+  /**
+   * An entry in the queue: a batch of variants, a flush marker, or the end of the output.
+   */
+  private static class Batch {
+    final List<Variant> variants;
+    final CountDownLatch flushed;
+
+    Batch(List<Variant> variants, CountDownLatch flushed) {
+      this.variants = variants;
+      this.flushed = flushed;
+    }
+
+    boolean isEndOfOutput() {
+      return null == variants && null == flushed;
+    }
+  }
+
+  private final Sink sink;
+  private final int maxBatchSize;
+  private final long maxBatchBytes;
+  private final Overflow overflow;
+  private final BlockingQueue<Batch> queue;
+  private final Thread writer;
+
+  private final AtomicLong emitted = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  private List<Variant> currentBatch;
+  private long currentBatchBytes = 0;
+  private volatile Throwable failure = null;
+  private boolean closed = false;
+
+  private BatchingVariantEmitter(Builder builder) {
+    sink = builder.sink;
+    maxBatchSize = builder.maxBatchSize;
+    maxBatchBytes = builder.maxBatchBytes;
+    overflow = builder.overflow;
+    currentBatch = Lists.newArrayListWithCapacity(maxBatchSize);
+    queue = new LinkedBlockingQueue<>(builder.queueCapacity);
+    writer = WRITER_THREAD_FACTORY.newThread(new Writer());
+    writer.start();
+  }
+
+  private class Writer implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Batch batch = queue.take();
+          if (batch.isEndOfOutput()) {
+            return;
+          }
+          if (null != batch.flushed) {
+            batch.flushed.countDown();
+            continue;
+          }
+          if (null == failure) {
+            try {
+              sink.write(batch.variants);
+              emitted.addAndGet(batch.variants.size());
+            } catch (Throwable t) {
+              // Keep draining the queue, so that the emitting thread never waits on it forever.
+              failure = t;
+              dropped.addAndGet(batch.variants.size());
+            }
+          } else {
+            dropped.addAndGet(batch.variants.size());
+          }
+          queued.addAndGet(-batch.variants.size());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Add a variant to the current batch, and queue the batch for the sink if it is full.
+   *
+   * @param variant The variant.
+   */
+  @Override
+  public void emit(Variant variant) {
+    Preconditions.checkState(!closed, "This emitter has been closed.");
+    checkFailure();
+    currentBatch.add(variant);
+    currentBatchBytes += variant.getSerializedSize();
+    queued.incrementAndGet();
+    if (maxBatchSize <= currentBatch.size() || maxBatchBytes <= currentBatchBytes) {
+      queueCurrentBatch(Overflow.BLOCK == overflow);
+    }
+  }
+
+  /**
+   * @param block Whether to wait for room in the queue, rather than drop the batch if it is full.
+   */
+  private void queueCurrentBatch(boolean block) {
+    if (currentBatch.isEmpty()) {
+      return;
+    }
+    Batch batch = new Batch(currentBatch, null);
+    currentBatch = Lists.newArrayListWithCapacity(maxBatchSize);
+    currentBatchBytes = 0;
+    if (block) {
+      put(batch);
+    } else if (!queue.offer(batch)) {
+      dropped.addAndGet(batch.variants.size());
+      queued.addAndGet(-batch.variants.size());
+    }
+  }
+
+  private void put(Batch batch) {
+    try {
+      queue.put(batch);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the sink", e);
+    }
+  }
+
+  private void checkFailure() {
+    if (null != failure) {
+      throw new RuntimeException("Failed to write a batch of variants", failure);
+    }
+  }
+
+  /**
+   * Queue the current batch, even if it is not full, and wait until the sink has written all
+   * queued batches.
+   */
+  public void flush() {
+    Preconditions.checkState(!closed, "This emitter has been closed.");
+    queueCurrentBatch(true);
+    CountDownLatch flushed = new CountDownLatch(1);
+    put(new Batch(null, flushed));
+    try {
+      flushed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the sink", e);
+    }
+    checkFailure();
+  }
+
+  /**
+   * Flush the remaining variants and stop the writer thread.  Closing an emitter more than once
+   * has no further effect.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      put(new Batch(null, null));
+    }
+  }
+
+  /**
+   * @return the number of variants written by the sink
+   */
+  public long getEmitted() {
+    return emitted.get();
+  }
+
+  /**
+   * @return the number of variants emitted but not yet written or dropped
+   */
+  public long getQueued() {
+    return queued.get();
+  }
+
+  /**
+   * @return the number of variants dropped because the queue was full or the sink failed
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public String toString() {
+    return "emitted: " + getEmitted() + ", queued: " + getQueued() + ", dropped: " + getDropped();
+  }
+}
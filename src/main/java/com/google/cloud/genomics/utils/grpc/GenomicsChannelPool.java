@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.grpc.ManagedChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of gRPC channels to the Google Genomics API which are shared by many streams.
+ *
+ * Creating a channel for each shard means a TLS handshake and an OAuth token fetch for each
+ * shard, which dominates the latency of small shards. Since gRPC multiplexes many concurrent
+ * streams over a single HTTP/2 connection, the pool instead keeps a few channels for each
+ * combination of credentials and partial response fields and hands out leases on them.
+ *
+ * Channels stay open when their leases are released, so that later streams can reuse them, until
+ * the pool itself is closed.
+ */
+public class GenomicsChannelPool implements Closeable {
+
+  public static final int DEFAULT_CHANNELS_PER_KEY = 2;
+
+  /**
+   * Creates the channels of the pool.
+   */
+  public interface ChannelFactory {
+    /**
+     * @param auth The OfflineAuth to use for the channel.
+     * @param fields Which fields to return in the partial response, or null for none.
+     * @return a new channel
+     */
+    ManagedChannel createChannel(OfflineAuth auth, String fields)
+        throws IOException, GeneralSecurityException;
+  }
+
+  private static final ChannelFactory GENOMICS_CHANNEL_FACTORY = new ChannelFactory() {
+    @Override
+    public ManagedChannel createChannel(OfflineAuth auth, String fields)
+        throws IOException, GeneralSecurityException {
+      return GenomicsChannel.fromOfflineAuth(auth, fields);
+    }
+  };
+
+  /**
+   * A lease on a channel of the pool. Closing the lease returns the channel to the pool; it does
+   * not shut the channel down.
+   */
+  public class Lease implements Closeable {
+    private final PooledChannel pooledChannel;
+    private boolean released = false;
+
+    private Lease(PooledChannel pooledChannel) {
+      this.pooledChannel = pooledChannel;
+    }
+
+    /**
+     * @return the leased channel
+     */
+    public ManagedChannel getChannel() {
+      return pooledChannel.channel;
+    }
+
+    /**
+     * Return the channel to the pool. Closing a lease more than once has no further effect.
+     */
+    @Override
+    public void close() {
+      synchronized (GenomicsChannelPool.this) {
+        if (!released) {
+          released = true;
+          pooledChannel.leases--;
+        }
+      }
+    }
+  }
+
+  private static class PooledChannel {
+    final ManagedChannel channel;
+    int leases = 0;
+
+    PooledChannel(ManagedChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final int channelsPerKey;
+  private final ChannelFactory channelFactory;
+  private final Map<List<String>, List<PooledChannel>> channels = Maps.newHashMap();
+  private boolean closed = false;
+
+  /**
+   * Create a pool of channels to the Google Genomics API.
+   */
+  public GenomicsChannelPool() {
+    this(DEFAULT_CHANNELS_PER_KEY, GENOMICS_CHANNEL_FACTORY);
+  }
+
+  /**
+   * Create a pool of channels.
+   *
+   * @param channelsPerKey The maximum number of channels for each combination of credentials and
+   *        partial response fields.
+   * @param channelFactory Creates the channels.
+   */
+  public GenomicsChannelPool(int channelsPerKey, ChannelFactory channelFactory) {
+    Preconditions.checkArgument(0 < channelsPerKey, "channelsPerKey must be positive");
+    this.channelsPerKey = channelsPerKey;
+    this.channelFactory = Preconditions.checkNotNull(channelFactory);
+  }
+
+  /**
+   * Lease a channel, creating it if needed. The channel with the fewest leases is chosen, and a
+   * new channel is only created while all existing ones are in use.
+   *
+   * @param auth The OfflineAuth to use for the channel.
+   * @param fields Which fields to return in the partial response, or null for none.
+   * @return the lease, which must be closed when the channel is no longer needed
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public synchronized Lease acquire(OfflineAuth auth, String fields)
+      throws IOException, GeneralSecurityException {
+    Preconditions.checkState(!closed, "This pool has been closed.");
+    List<String> key = Arrays.asList(auth.getApiKey(), auth.getClientId(), auth.getClientSecret(),
+        auth.getRefreshToken(), fields);
+    List<PooledChannel> pooledChannels = channels.get(key);
+    if (null == pooledChannels) {
+      pooledChannels = Lists.newArrayList();
+      channels.put(key, pooledChannels);
+    }
+
+    PooledChannel leastLeased = null;
+    for (PooledChannel pooledChannel : pooledChannels) {
+      if (null == leastLeased || pooledChannel.leases < leastLeased.leases) {
+        leastLeased = pooledChannel;
+      }
+    }
+    if (null == leastLeased || (0 < leastLeased.leases && pooledChannels.size() < channelsPerKey)) {
+      leastLeased = new PooledChannel(channelFactory.createChannel(auth, fields));
+      pooledChannels.add(leastLeased);
+    }
+    leastLeased.leases++;
+    return new Lease(leastLeased);
+  }
+
+  /**
+   * Shut down all channels of the pool, including those still leased.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (List<PooledChannel> pooledChannels : channels.values()) {
+      for (PooledChannel pooledChannel : pooledChannels) {
+        pooledChannel.channel.shutdownNow();
+      }
+    }
+    channels.clear();
+  }
+}
@@ -16,8 +16,6 @@ package com.google.cloud.genomics.utils.grpc;
 import com.google.api.client.util.BackOff;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 
 import io.grpc.ManagedChannel;
 
@@ -41,20 +39,22 @@ import java.util.logging.Logger;
  * @param <StubT> Blocking stub type.
  */
 public abstract class GenomicsStreamIterator<RequestT, ResponseT, ItemT, StubT extends io.grpc.stub.AbstractStub<StubT>>
-    implements Iterator<ResponseT> {
+    extends ResumableStream<RequestT, ResponseT, ItemT, StubT> implements Iterator<ResponseT> {
   private static final Logger LOG = Logger.getLogger(GenomicsStreamIterator.class.getName());
 
-  protected final ManagedChannel genomicsChannel;
-  protected final Predicate<ItemT> shardPredicate;
-  protected final StubT stub;
-  protected final RequestT originalRequest;
-
-  protected ExponentialBackOff backoff;
+  /**
+   * The backoff with which the stream is retried until {@link #setRetryPolicy} is called.  It is
+   * consulted on each failure, so assigning a differently configured backoff still tunes the
+   * retries as it always did.
+   *
+   * @deprecated Use {@link #setRetryPolicy} instead, e.g. with
+   *             {@link StreamRetryPolicy#exponentialBackOff}.
+   */
+  @Deprecated
+  protected ExponentialBackOff backoff = new ExponentialBackOff.Builder().build();
 
   // Stateful members used to facilitate complex retry behavior for gRPC streams.
   private Iterator<ResponseT> delegate;
-  private ItemT lastSuccessfulDataItem;
-  private String idSentinel;
 
   /**
    * Create a stream iterator that will filter shard data using the predicate, if supplied.
@@ -67,43 +67,70 @@ public abstract class GenomicsStreamIterator<RequestT, ResponseT, ItemT, StubT e
 
   protected GenomicsStreamIterator(ManagedChannel channel, RequestT request,
       Predicate<ItemT> shardPredicate) {
-    this.originalRequest = request;
-    this.shardPredicate = shardPredicate;
-    this.genomicsChannel = channel;
-    stub = createStub(genomicsChannel);
-
-    // Using default backoff settings. For details, see
-    // https://developers.google.com/api-client-library/java/google-http-java-client/reference/1.19.0/com/google/api/client/util/ExponentialBackOff
-    backoff = new ExponentialBackOff.Builder().build();
+    super(channel, request, shardPredicate);
+    setRetryPolicy(backoffFieldPolicy());
 
     // RETRY STATE: Initialize settings.
     delegate = createIterator(originalRequest);
-    lastSuccessfulDataItem = null;
-    idSentinel = null;
   }
 
-  abstract StubT createStub(ManagedChannel channel);
-
-  abstract Iterator<ResponseT> createIteratorFromStub(RequestT request);
-
-  abstract long getRequestStart(RequestT streamRequest);
-
-  abstract long getDataItemStart(ItemT dataItem);
-
-  abstract String getDataItemId(ItemT dataItem);
+  /**
+   * Create a stream iterator that continues from the cursor of an earlier stream for the same
+   * request, filtering shard data using the predicate, if supplied.
+   *
+   * @param channel The channel.
+   * @param cursor The cursor of the earlier stream.
+   * @param shardPredicate A predicate used to client-side filter results returned (e.g., enforce a
+   *        shard boundary and/or limit to SNPs only) or null for no filtering.
+   */
+  protected GenomicsStreamIterator(ManagedChannel channel, StreamCursor<RequestT> cursor,
+      Predicate<ItemT> shardPredicate) {
+    super(channel, cursor.getRequest(), shardPredicate);
+    setRetryPolicy(backoffFieldPolicy());
+    restoreCursor(cursor);
 
-  abstract RequestT getRevisedRequest(long updatedStart);
+    // RETRY STATE: Continue the stream exactly as if it were being retried.
+    delegate = createIterator(getRequestForRetry());
+  }
 
-  abstract List<ItemT> getDataList(ResponseT response);
+  abstract Iterator<ResponseT> createIteratorFromStub(RequestT request);
 
-  abstract ResponseT buildResponse(ResponseT response, Iterable<ItemT> dataList);
+  /**
+   * @return a policy retrying with whatever {@link #backoff} holds at the time of each failure.
+   *         Like {@link StreamRetryPolicy#defaultPolicy()}, it only starts a new backoff sequence
+   *         once the stream gives up.
+   */
+  @SuppressWarnings("deprecation")
+  private StreamRetryPolicy backoffFieldPolicy() {
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        return new Instance() {
+          @Override public long nextBackOffMillis(Throwable t) {
+            long backOffMillis;
+            try {
+              backOffMillis = backoff.nextBackOffMillis();
+            } catch (IOException e) {
+              // Something strange happened, just give up.
+              backOffMillis = BackOff.STOP;
+            }
+            if (BackOff.STOP == backOffMillis) {
+              backoff.reset();
+            }
+            return backOffMillis;
+          }
+        };
+      }
+    };
+  }
 
   private Iterator<ResponseT> createIterator(RequestT request) {
     while (true) {
       try {
         return createIteratorFromStub(request);
       } catch (Exception e) {
-        if (shouldRetryNow()) {
+        if (shouldRetryNow(e)) {
           LOG.log(Level.WARNING, "Retrying after failure to create iterator", e);
         } else {
           LOG.log(Level.WARNING, "All retries to create iterator consumed, re-throwing exception",
@@ -114,24 +141,19 @@ public abstract class GenomicsStreamIterator<RequestT, ResponseT, ItemT, StubT e
     }
   }
 
-  private boolean shouldRetryNow() {
-    long backOffMillis;
-    try {
-      backOffMillis = backoff.nextBackOffMillis();
-    } catch (IOException e1) {
-      // Something strange happened, just give up.
-      backOffMillis = BackOff.STOP;
-    }
-
+  private boolean shouldRetryNow(Exception e) {
+    long backOffMillis = nextBackOffMillis(e);
     if (backOffMillis == BackOff.STOP) {
-      backoff.reset();
       return false;
     }
 
     try {
       Thread.sleep(backOffMillis);
-    } catch (InterruptedException e) {
-      LOG.log(Level.WARNING, "Backoff sleep interrupted", e);
+    } catch (InterruptedException ie) {
+      // Preserve the interrupt so that the caller can shut down rather than retry.
+      LOG.log(Level.WARNING, "Backoff sleep interrupted", ie);
+      Thread.currentThread().interrupt();
+      return false;
     }
     return true;
   }
@@ -147,41 +169,24 @@ public abstract class GenomicsStreamIterator<RequestT, ResponseT, ItemT, StubT e
         hasNext = delegate.hasNext();
         break;
       } catch (Exception e) {
-        if (shouldRetryNow()) {
+        if (shouldRetryNow(e)) {
           LOG.log(Level.WARNING, "Retrying after failing to get next item from stream: ", e);
           setStreamStateForRetry();
         } else {
           LOG.log(Level.WARNING, "All retries to get next item from stream consumed, throwing: ", e);
-          genomicsChannel.shutdownNow();
+          shutdownChannel();
           throw e;
         }
       }
     }
     if (!hasNext) {
-      genomicsChannel.shutdownNow();
+      shutdownChannel();
     }
     return hasNext;
   }
 
   private void setStreamStateForRetry() {
-    if (null == lastSuccessfulDataItem) {
-      // We have never returned any data. No need to set up state needed to filter previously
-      // returned results.
-      delegate = createIterator(originalRequest);
-      return;
-    }
-
-    if (getRequestStart(originalRequest) < getDataItemStart(lastSuccessfulDataItem)) {
-      // Create a new iterator at the revised start position.
-      delegate = createIterator(getRevisedRequest(getDataItemStart(lastSuccessfulDataItem)));
-    } else {
-      // The point at which the retry occurred was still within data overlapping the start of our
-      // original request but not beyond it yet.
-      delegate = createIterator(originalRequest);
-    }
-
-    // RETRY STATE: Enable the filtering of repeated data in next().
-    idSentinel = getDataItemId(lastSuccessfulDataItem);
+    delegate = createIterator(getRequestForRetry());
   }
 
   /**
@@ -189,46 +194,32 @@ public abstract class GenomicsStreamIterator<RequestT, ResponseT, ItemT, StubT e
    */
   @Override
   public ResponseT next() {
-    ResponseT response = delegate.next();
-    // TODO: Its more clean conceptually to do the same thing for all responses, but this could be a
-    // place where we're wasting a lot of time rebuilding response objects when nothing has actually
-    // changed.
-    return buildResponse(response, enforceShardPredicate(removeRepeatedData(getDataList(response))));
+    return filterResponse(delegate.next());
   }
 
-  private List<ItemT> removeRepeatedData(List<ItemT> dataList) {
-    List<ItemT> filteredDataList = null;
-    if (null == idSentinel) {
-      filteredDataList = dataList;
-    } else {
-      // Filter out previously returned data items.
-      filteredDataList = Lists.newArrayList();
-      boolean sentinelFound = false;
-      for (ItemT dataItem : dataList) {
-        if (sentinelFound) {
-          filteredDataList.add(dataItem);
-        } else {
-          if (idSentinel.equals(getDataItemId(dataItem))) {
-            // RETRY STATE: We're at the end of the repeated data. Unset the sentinel and proceed.
-            idSentinel = null;
-            sentinelFound = true;
-          }
-        }
-      }
-    }
-    // RETRY STATE: Keep our last successfully returned data item in memory, just in case we need to
-    // retry.
-    if (filteredDataList.size() > 0) {
-      lastSuccessfulDataItem = filteredDataList.get(filteredDataList.size() - 1);
-    }
-    return filteredDataList;
+  List<ItemT> nextItems() {
+    return getDataList(next());
   }
 
-  private Iterable<ItemT> enforceShardPredicate(Iterable<ItemT> dataList) {
-    if (null == shardPredicate) {
-      return dataList;
-    }
-    return Iterables.filter(dataList, shardPredicate);
+  /**
+   * Iterate over the individual data items of this stream rather than whole responses, reading
+   * {@link StreamItemIterator#DEFAULT_PREFETCH_DEPTH} responses ahead of the consumer.
+   *
+   * @return the iterator over the data items
+   */
+  public StreamItemIterator<ItemT> items() {
+    return items(StreamItemIterator.DEFAULT_PREFETCH_DEPTH);
+  }
+
+  /**
+   * Iterate over the individual data items of this stream rather than whole responses.
+   *
+   * @param prefetchDepth The number of responses to read ahead of the consumer on a background
+   *        thread, or zero to read them on the consumer's thread.
+   * @return the iterator over the data items
+   */
+  public StreamItemIterator<ItemT> items(int prefetchDepth) {
+    return new StreamItemIterator<ItemT>(this, prefetchDepth);
   }
 
   /**
@@ -14,7 +14,10 @@
 package com.google.cloud.genomics.utils.grpc;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
 import com.google.genomics.v1.Variant;
 import com.google.genomics.v1.Variant.Builder;
 import com.google.genomics.v1.VariantCall;
@@ -22,10 +25,10 @@ import com.google.protobuf.ListValue;
 import com.google.protobuf.Value;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -43,10 +46,71 @@ import java.util.Map;
  *
  * Dealing with ambiguous data:
  *  All ambiguous data is retained.  The consumer of this merged data can reconcile ambiguity, if desired.
+ *
+ * By default the overlapping callsets are noted by name in {@link #OVERLAPPING_CALLSETS_FIELD}.  For
+ * large cohorts, a dictionary of callset names can be given instead, in which case they are noted as
+ * a bitset of indexes into the dictionary in {@link #OVERLAPPING_CALLSETS_BITSET_FIELD}.  Use
+ * {@link #getOverlappingCallSetNames} to read either form.
  */
 public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
 
   public static final String OVERLAPPING_CALLSETS_FIELD = "overlappingCallsets";
+  public static final String OVERLAPPING_CALLSETS_BITSET_FIELD = "overlappingCallsetsBitset";
+
+  // The index of each callset name in the dictionary, or null to note callsets by name.
+  private final Map<String, Integer> callSetIndexes;
+
+  /**
+   * Note overlapping callsets by name.
+   */
+  public MergeAllVariantsAtSameSite() {
+    this.callSetIndexes = null;
+  }
+
+  /**
+   * Note overlapping callsets as a bitset of indexes into a dictionary of callset names.  Unlike
+   * the names, the bitset notes each overlapping callset only once.
+   *
+   * @param callSetNames The dictionary, e.g. the sorted keys of
+   *        {@link com.google.cloud.genomics.utils.CallSetUtils#getCallSetNameMapping}.  It must
+   *        contain all callsets of the merged variants and be passed again to
+   *        {@link #getOverlappingCallSetNames} to decode the bitsets.
+   */
+  public MergeAllVariantsAtSameSite(List<String> callSetNames) {
+    ImmutableMap.Builder<String, Integer> callSetIndexes = ImmutableMap.builder();
+    for (int i = 0; i < callSetNames.size(); i++) {
+      callSetIndexes.put(callSetNames.get(i), i);
+    }
+    this.callSetIndexes = callSetIndexes.build();
+  }
+
+  /**
+   * Read the overlapping callsets noted in a merged variant, in either form.
+   *
+   * @param variant A variant emitted by this strategy.
+   * @param callSetNames The dictionary the strategy was created with, or null if it noted
+   *        callsets by name.
+   * @return the names of the overlapping callsets
+   */
+  public static List<String> getOverlappingCallSetNames(Variant variant,
+      List<String> callSetNames) {
+    List<String> overlappingCallSetNames = Lists.newArrayList();
+    ListValue bitsetValue = variant.getInfoMap().get(OVERLAPPING_CALLSETS_BITSET_FIELD);
+    if (null != bitsetValue) {
+      Preconditions.checkArgument(null != callSetNames,
+          "The dictionary of callset names is needed to decode %s", OVERLAPPING_CALLSETS_BITSET_FIELD);
+      BitSet bitset = BitSet.valueOf(
+          BaseEncoding.base64().decode(bitsetValue.getValues(0).getStringValue()));
+      for (int i = bitset.nextSetBit(0); 0 <= i; i = bitset.nextSetBit(i + 1)) {
+        overlappingCallSetNames.add(callSetNames.get(i));
+      }
+    } else if (variant.getInfoMap().containsKey(OVERLAPPING_CALLSETS_FIELD)) {
+      for (Value value : variant.getInfoMap().get(OVERLAPPING_CALLSETS_FIELD).getValuesList()) {
+        overlappingCallSetNames.add(value.getStringValue());
+      }
+    }
+    return overlappingCallSetNames;
+  }
 
   @Override
   public void merge(Long windowStart, Iterable<Variant> variants, VariantEmitterStrategy emitter) {
@@ -56,50 +120,92 @@ public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
     // the order of the input data.
     List<Variant> records = Lists.newArrayList(variants);  // Get a modifiable list.
     Collections.sort(records, VariantUtils.NON_VARIANT_SEGMENT_COMPARATOR);
+    mergeSorted(windowStart, records.iterator(), emitter);
+  }
+
+  /**
+   * Like {@link #merge}, but for records which are already sorted by
+   * {@link VariantUtils#NON_VARIANT_SEGMENT_COMPARATOR}, such as those from a
+   * {@link VariantStreamMerger}.  The records are consumed one at a time, the variants at each
+   * position are emitted as soon as a record at a later position arrives, and only the records
+   * which may still overlap later variants are kept in memory.
+   */
+  @Override
+  public void mergeSorted(Long windowStart, Iterator<Variant> sortedVariants,
+      VariantEmitterStrategy emitter) {
+    SiteMerger siteMerger = new SiteMerger(windowStart, emitter, callSetIndexes);
+    while (sortedVariants.hasNext()) {
+      siteMerger.add(sortedVariants.next());
+    }
+    siteMerger.finish();
+  }
+
+  /**
+   * The state of a merge in progress.  Records must be added in the order of
+   * {@link VariantUtils#NON_VARIANT_SEGMENT_COMPARATOR}.
+   */
+  static class SiteMerger {
+    private final Long windowStart;
+    private final VariantEmitterStrategy emitter;
+    private final Map<String, Integer> callSetIndexes;
+    private final OverlappingRecords blockRecords = new OverlappingRecords();
+    private final OverlappingRecords priorStartVariantRecords = new OverlappingRecords();
+    private final List<Variant.Builder> currentStartVariantRecords = new ArrayList<>();
+    private Variant.Builder updatedRecord = null;
 
-    List<Variant> blockRecords = new LinkedList<>();
-    List<Variant> priorStartVariantRecords = new LinkedList<>();
-    List<Variant.Builder> currentStartVariantRecords = new LinkedList<>();
+    SiteMerger(Long windowStart, VariantEmitterStrategy emitter,
+        Map<String, Integer> callSetIndexes) {
+      this.windowStart = windowStart;
+      this.emitter = emitter;
+      this.callSetIndexes = callSetIndexes;
+    }
+
+    void add(Variant record) {
+      if (null != updatedRecord && updatedRecord.getStart() < record.getStart()) {
+        // Since we're at a new position, we've accumulated enough information to wrap up
+        // and emit the variants for the previous position.
+        finish();
+      }
+      // Nothing ending by this position can overlap this record or any later one.
+      blockRecords.removeEndingBy(record.getStart());
+      priorStartVariantRecords.removeEndingBy(record.getStart());
 
-    Variant.Builder updatedRecord = null;
-    for (Variant record : records) {
       if (VariantUtils.IS_NON_VARIANT_SEGMENT.apply(record)) {
         blockRecords.add(record);
-        continue;
+        return;
       }
       if (record.getStart() < windowStart) {
         // This is a variant that begins before our window. We'll only consider it for overlaps.
         priorStartVariantRecords.add(record);
-        continue;
+        return;
       }
       if (null != updatedRecord && VariantUtils.isSameVariantSite(updatedRecord, record)) {
         // This is another variant at the same position; merge it with the current variant.
         mergeVariants(updatedRecord, record);
       } else {
-        // This is a variant at a new site.
+        // This is a variant at a new site, but still at the same position.  Queue updatedRecord
+        // for subsequent emission.
         if (null != updatedRecord) {
-          if (updatedRecord.getStart() == record.getStart()) {
-            // We're still at the same position, queue updatedRecord for subsequent emission.
-            currentStartVariantRecords.add(updatedRecord);
-          } else {
-            // Since we're at a new position, we've accumulated enough information to wrap up
-            // and emit the variants for the previous position.
-            currentStartVariantRecords.add(updatedRecord);
-            emitRecords(emitter, currentStartVariantRecords, priorStartVariantRecords, blockRecords);
-          }
+          currentStartVariantRecords.add(updatedRecord);
         }
         updatedRecord = Variant.newBuilder(record);
       }
     }
-    if (null != updatedRecord) {
-      // Emit our final variant.
-      currentStartVariantRecords.add(updatedRecord);
-      emitRecords(emitter, currentStartVariantRecords, priorStartVariantRecords, blockRecords);
+
+    void finish() {
+      if (null != updatedRecord) {
+        // Emit the variants at the current position.
+        currentStartVariantRecords.add(updatedRecord);
+        emitRecords(emitter, currentStartVariantRecords, priorStartVariantRecords, blockRecords,
+            callSetIndexes);
+        updatedRecord = null;
+      }
     }
   }
 
   static void emitRecords(VariantEmitterStrategy emitter, List<Variant.Builder> currentStartVariantRecords,
-      List<Variant> priorStartVariantRecords, List<Variant> blockRecords) {
+      OverlappingRecords priorStartVariantRecords, OverlappingRecords blockRecords,
+      Map<String, Integer> callSetIndexes) {
 
     // Make a deep copy of these prior to adding call from block records.  We do
     // this because later on we'll count the calls in these that overlap other
@@ -110,7 +216,12 @@ public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
     }
 
     // Update the records to reflect blockRecords and other variants that overlap them.
-    noteOverlappingVariantCalls(currentStartVariantRecords, priorStartVariantRecords);
+    if (null == callSetIndexes) {
+      noteOverlappingVariantCalls(currentStartVariantRecords, priorStartVariantRecords);
+    } else {
+      noteOverlappingVariantCallsBitset(currentStartVariantRecords, priorStartVariantRecords,
+          callSetIndexes);
+    }
     mergeOverlappingBlockRecordCalls(currentStartVariantRecords, blockRecords);
 
     // Emit them to the underlying processing engine.
@@ -121,26 +232,19 @@ public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
 
     // Reset our state.
     currentStartVariantRecords.clear();
-    priorStartVariantRecords.addAll(copyOfCurrentStartVariantRecords);
+    for (Variant variant : copyOfCurrentStartVariantRecords) {
+      priorStartVariantRecords.add(variant);
+    }
   }
 
   static void mergeOverlappingBlockRecordCalls(List<Variant.Builder> currentStartVariantRecords,
-      List<Variant> blockRecords) {
+      OverlappingRecords blockRecords) {
 
     // Identify the block records overlapping this position.
     List<VariantCall> overlappingBlockRecordCalls = new ArrayList();
-    for (Iterator<Variant> iterator = blockRecords.iterator(); iterator.hasNext();) {
-      Variant blockRecord = iterator.next();
-      if (VariantUtils.isOverlapping(blockRecord, currentStartVariantRecords.get(0))) {
-        overlappingBlockRecordCalls.addAll(blockRecord.getCallsList());
-      } else if (blockRecord.getStart() < currentStartVariantRecords.get(0).getStart()) {
-        // Remove the current element from the iterator and the list since it is
-        // left of this position.
-        iterator.remove();
-      } else {
-        // Break out of this loop since we are now examining records to the right of this position.
-        break;
-      }
+    for (Variant blockRecord :
+        blockRecords.getOverlapping(currentStartVariantRecords.get(0).getStart())) {
+      overlappingBlockRecordCalls.addAll(blockRecord.getCallsList());
     }
 
     // Add the overlapping block record calls to all variants at this position.
@@ -157,23 +261,14 @@ public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
   };
 
   static void noteOverlappingVariantCalls(List<Variant.Builder> currentStartVariantRecords,
-      List<Variant> priorStartVariantRecords) {
+      OverlappingRecords priorStartVariantRecords) {
 
     // Identify the prior variant records overlapping this position.
     ListValue.Builder priorCallSetNamesBuilder = ListValue.newBuilder();
-    for (Iterator<Variant> iterator = priorStartVariantRecords.iterator(); iterator.hasNext();) {
-      Variant variantRecord = iterator.next();
-      if (VariantUtils.isOverlapping(variantRecord, currentStartVariantRecords.get(0))) {
-        priorCallSetNamesBuilder.addAllValues(Lists.transform(variantRecord.getCallsList(),
-            GET_CALL_SET_NAME));
-      } else if (variantRecord.getStart() < currentStartVariantRecords.get(0).getStart()) {
-        // Remove the current element from the iterator and the list since it is
-        // left of this position.
-        iterator.remove();
-      } else {
-        // Break out of this loop since we are now examining records to the right of this position.
-        break;
-      }
+    for (Variant variantRecord :
+        priorStartVariantRecords.getOverlapping(currentStartVariantRecords.get(0).getStart())) {
+      priorCallSetNamesBuilder.addAllValues(Lists.transform(variantRecord.getCallsList(),
+          GET_CALL_SET_NAME));
     }
 
     ListValue priorCallSetNames = priorCallSetNamesBuilder.build();
@@ -195,26 +290,108 @@ public class MergeAllVariantsAtSameSite implements VariantMergeStrategy {
     }
   }
 
-  static void mergeVariants(Builder destVariant, Variant srcVariant) {
-    // Merge alternates preserving the order of pre-existing alts in the destination.
-    for (String srcAlt : srcVariant.getAlternateBasesList()) {
-      if (!destVariant.getAlternateBasesList().contains(srcAlt)) {
-        destVariant.addAlternateBases(srcAlt);
-      }
+  /**
+   * Like {@link #noteOverlappingVariantCalls}, but as a bitset of callset indexes.  The callsets of
+   * the other variants at this position are combined from the bitsets of the variants before and
+   * after each variant, so that the work is linear in the number of variants at the position.
+   */
+  static void noteOverlappingVariantCallsBitset(List<Variant.Builder> currentStartVariantRecords,
+      OverlappingRecords priorStartVariantRecords, Map<String, Integer> callSetIndexes) {
+
+    // Identify the prior variant records overlapping this position.
+    BitSet priorCallSets = new BitSet();
+    for (Variant variantRecord :
+        priorStartVariantRecords.getOverlapping(currentStartVariantRecords.get(0).getStart())) {
+      setCallSets(priorCallSets, variantRecord.getCallsList(), callSetIndexes);
+    }
+
+    // The callsets of the variants after each variant at this position.
+    int count = currentStartVariantRecords.size();
+    BitSet[] laterCallSets = new BitSet[count];
+    BitSet callSets = new BitSet();
+    for (int i = count - 1; 0 <= i; i--) {
+      laterCallSets[i] = (BitSet) callSets.clone();
+      setCallSets(callSets, currentStartVariantRecords.get(i).getCallsList(), callSetIndexes);
+    }
+
+    // Walk forward accumulating the callsets of the variants before each variant.
+    BitSet earlierCallSets = priorCallSets;
+    for (int i = 0; i < count; i++) {
+      Variant.Builder destVariant = currentStartVariantRecords.get(i);
+      BitSet overlappingCallSets = (BitSet) earlierCallSets.clone();
+      overlappingCallSets.or(laterCallSets[i]);
+      destVariant.putInfo(OVERLAPPING_CALLSETS_BITSET_FIELD, ListValue.newBuilder()
+          .addValues(Value.newBuilder().setStringValue(
+              BaseEncoding.base64().encode(overlappingCallSets.toByteArray())))
+          .build());
+      setCallSets(earlierCallSets, destVariant.getCallsList(), callSetIndexes);
+    }
+  }
+
+  private static void setCallSets(BitSet bitset, List<VariantCall> calls,
+      Map<String, Integer> callSetIndexes) {
+    for (VariantCall call : calls) {
+      Integer index = callSetIndexes.get(call.getCallSetName());
+      Preconditions.checkArgument(null != index, "Callset %s is not in the dictionary",
+          call.getCallSetName());
+      bitset.set(index);
     }
+  }
+
+  static void mergeVariants(Builder destVariant, Variant srcVariant) {
+    // Merge alternates preserving the order of pre-existing alts in the destination, noting the
+    // allele number of each source allele in the destination as we go.
+    int[] alleleMap = mapAlleles(destVariant, srcVariant.getAlternateBasesList());
 
-    // Re-number genotypes and merge calls.
+    // Re-number genotypes and merge calls.  Calls whose alleles keep their numbers are added as-is.
+    VariantCall.Builder updatedCall = null;
     for (VariantCall call : srcVariant.getCallsList()) {
-      VariantCall.Builder updatedCall = VariantCall.newBuilder(call);
-      for (int i = 0; i < call.getGenotypeCount(); i++) {
-        if (0 < call.getGenotype(i)) {
-          int updatedGenotype =
-              destVariant.getAlternateBasesList().indexOf(
-                  srcVariant.getAlternateBasesList().get(call.getGenotype(i) - 1)) + 1;
-          updatedCall.setGenotype(i, updatedGenotype);
+      int i = findRenumberedGenotype(call, alleleMap);
+      if (i == call.getGenotypeCount()) {
+        destVariant.addCalls(call);
+        continue;
+      }
+      updatedCall = (null == updatedCall) ? VariantCall.newBuilder() : updatedCall.clear();
+      updatedCall.mergeFrom(call);
+      for (; i < call.getGenotypeCount(); i++) {
+        int genotype = call.getGenotype(i);
+        if (0 < genotype) {
+          updatedCall.setGenotype(i, alleleMap[genotype]);
         }
       }
       destVariant.addCalls(updatedCall);
     }
   }
+
+  /**
+   * Add the source alternates missing from the destination.
+   *
+   * @return the allele number in the destination of each allele number in the source
+   */
+  private static int[] mapAlleles(Builder destVariant, List<String> srcAlts) {
+    int[] alleleMap = new int[srcAlts.size() + 1];
+    for (int i = 0; i < srcAlts.size(); i++) {
+      int destIndex = destVariant.getAlternateBasesList().indexOf(srcAlts.get(i));
+      if (destIndex < 0) {
+        destIndex = destVariant.getAlternateBasesCount();
+        destVariant.addAlternateBases(srcAlts.get(i));
+      }
+      alleleMap[i + 1] = destIndex + 1;
+    }
+    return alleleMap;
+  }
+
+  /**
+   * @return the index of the first genotype of the call whose allele number changes, or the
+   *         number of genotypes if there is none
+   */
+  private static int findRenumberedGenotype(VariantCall call, int[] alleleMap) {
+    for (int i = 0; i < call.getGenotypeCount(); i++) {
+      int genotype = call.getGenotype(i);
+      if (0 < genotype && alleleMap[genotype] != genotype) {
+        return i;
+      }
+    }
+    return call.getGenotypeCount();
+  }
 }
@@ -19,7 +19,6 @@ import com.google.genomics.v1.Variant.Builder;
 
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -41,27 +40,36 @@ public class MergeNonVariantSegmentsWithSnps implements VariantMergeStrategy {
     List<Variant> records = Lists.newArrayList(variants);  // Get a modifiable list.
     Collections.sort(records, VariantUtils.NON_VARIANT_SEGMENT_COMPARATOR);
 
+    mergeSorted(windowStart, records.iterator(), emitter);
+  }
+
+  /**
+   * Like {@link #merge}, but for records which are already sorted by
+   * {@link VariantUtils#NON_VARIANT_SEGMENT_COMPARATOR}.  Only the non-variant segments which may
+   * still overlap later variants are kept in memory.
+   */
+  @Override
+  public void mergeSorted(Long windowStart, Iterator<Variant> sortedVariants,
+      VariantEmitterStrategy emitter) {
     // The upper bound on potential overlaps is the sample size plus the number of
     // block records that occur between actual variants.
-    List<Variant> blockRecords = new LinkedList<>();
+    OverlappingRecords blockRecords = new OverlappingRecords();
 
-    for (Variant record : records) {
-      if (!VariantUtils.IS_NON_VARIANT_SEGMENT.apply(record)) {
+    while (sortedVariants.hasNext()) {
+      Variant record = sortedVariants.next();
+      // Drop the block records left of the genomic region we are currently working on, since due
+      // to the sort they cannot overlap this record or any later one.
+      blockRecords.removeEndingBy(record.getStart());
+      int classes = VariantUtils.classify(record);
+      if (0 == (classes & VariantUtils.CLASS_NON_VARIANT_SEGMENT)) {
         if (record.getStart() < windowStart) {
           // This is a variant that begins before our window.  Skip it.
           continue;
         }
         Builder updatedRecord = Variant.newBuilder(record);
-        if (VariantUtils.IS_SNP.apply(record)) {
-          for (Iterator<Variant> iterator = blockRecords.iterator(); iterator.hasNext();) {
-            Variant blockRecord = iterator.next();
-            if (VariantUtils.isOverlapping(blockRecord, record)) {
-              updatedRecord.addAllCalls(blockRecord.getCallsList());
-            } else {
-              // Remove the current element from the iterator and the list since it is
-              // left of the genomic region we are currently working on due to our sort.
-              iterator.remove();
-            }
+        if (0 != (classes & VariantUtils.CLASS_SNP)) {
+          for (Variant blockRecord : blockRecords.getOverlapping(record.getStart())) {
+            updatedRecord.addAllCalls(blockRecord.getCallsList());
           }
         }
         // Emit this variant and move on (no need to hang onto it in memory).
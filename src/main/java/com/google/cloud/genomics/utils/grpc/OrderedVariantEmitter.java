@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import java.util.List;
+
+/**
+ * Reassembles the output of windows merged concurrently, in the order of the windows.
+ *
+ * Each window emits into its own buffer through the emitter returned by {@link #forWindow}.  Once a
+ * window is finished and all earlier windows have been emitted, its variants are passed on to the
+ * underlying emitter.  The underlying emitter is called by one thread at a time, so it need not be
+ * thread-safe itself, and without holding any lock, so that other windows can finish meanwhile.
+ *
+ * If a window fails, or the underlying emitter fails on it, the variants of it and of all later
+ * windows are discarded.
+ */
+public class OrderedVariantEmitter {
+
+  private final VariantEmitterStrategy emitter;
+  private final List<List<Variant>> buffers = Lists.newArrayList();
+  private final List<Boolean> finished = Lists.newArrayList();
+  private int nextWindow = 0;
+  // Whether a thread is passing windows on to the underlying emitter.
+  private boolean emitting = false;
+  private int failedWindow = Integer.MAX_VALUE;
+  private Throwable failure = null;
+
+  /**
+   * @param emitter The emitter to receive the variants of all windows, in order.
+   */
+  public OrderedVariantEmitter(VariantEmitterStrategy emitter) {
+    this.emitter = Preconditions.checkNotNull(emitter);
+  }
+
+  /**
+   * Add the next window.
+   *
+   * @return the index of the window
+   */
+  public synchronized int addWindow() {
+    buffers.add(Lists.<Variant>newArrayList());
+    finished.add(false);
+    return buffers.size() - 1;
+  }
+
+  /**
+   * @param window The index of the window.
+   * @return an emitter for the variants of the window, to be used by one thread at a time
+   */
+  public VariantEmitterStrategy forWindow(int window) {
+    final List<Variant> buffer;
+    synchronized (this) {
+      buffer = buffers.get(window);
+    }
+    return new VariantEmitterStrategy() {
+      @Override
+      public void emit(Variant variant) {
+        buffer.add(variant);
+      }
+    };
+  }
+
+  /**
+   * Mark the window as finished, and emit it and any later finished windows if all earlier windows
+   * have been emitted.  If another thread is already emitting windows, that thread emits these too.
+   *
+   * @param window The index of the window.
+   * @param failure Why the merge of the window failed, or null if it succeeded.
+   */
+  public void finishWindow(int window, Throwable failure) {
+    synchronized (this) {
+      Preconditions.checkState(!finished.get(window), "Window %s is already finished", window);
+      finished.set(window, true);
+      if (null != failure && window < failedWindow) {
+        failedWindow = window;
+        this.failure = failure;
+      }
+      if (emitting) {
+        return;
+      }
+      emitting = true;
+    }
+    List<Integer> readyWindows;
+    while (!(readyWindows = takeReadyWindows()).isEmpty()) {
+      for (int readyWindow : readyWindows) {
+        emitWindow(readyWindow);
+      }
+    }
+  }
+
+  /**
+   * @return the windows which are ready to be emitted, in order, or an empty list once there are
+   *         none left, at which point this thread stops emitting
+   */
+  private synchronized List<Integer> takeReadyWindows() {
+    List<Integer> readyWindows = Lists.newArrayList();
+    while (nextWindow < finished.size() && finished.get(nextWindow)) {
+      readyWindows.add(nextWindow);
+      nextWindow++;
+    }
+    if (readyWindows.isEmpty()) {
+      emitting = false;
+    }
+    return readyWindows;
+  }
+
+  private void emitWindow(int window) {
+    List<Variant> buffer;
+    synchronized (this) {
+      buffer = buffers.set(window, null);
+      if (failedWindow <= window) {
+        buffer = null;
+      }
+    }
+    if (null != buffer) {
+      try {
+        for (Variant variant : buffer) {
+          emitter.emit(variant);
+        }
+      } catch (RuntimeException | Error e) {
+        // Treat this like a failure of the window, so that later windows are still drained.
+        synchronized (this) {
+          failedWindow = window;
+          this.failure = e;
+        }
+      }
+    }
+    windowEmitted(window);
+  }
+
+  /**
+   * Called once the window has been passed on to the underlying emitter, or discarded.
+   *
+   * @param window The index of the window.
+   */
+  void windowEmitted(int window) {
+  }
+
+  /**
+   * @return the failure of the earliest window which failed, or null if none failed
+   */
+  public synchronized Throwable getFailure() {
+    return failure;
+  }
+}
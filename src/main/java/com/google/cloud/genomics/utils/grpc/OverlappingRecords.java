@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The records, such as non-variant segments, which may still overlap later records of a merge
+ * over records sorted by start position.
+ *
+ * Records which end at or before the current position of the merge can never overlap a later
+ * record, so they are dropped as the merge advances.  This bounds the memory of the merge by the
+ * depth of overlapping records rather than by the size of the window.
+ *
+ * The records are kept both in a heap ordered by end position and in the order in which they were
+ * added.  Since the records are added in order of start position and the position of the merge
+ * only moves forward, every record left after dropping those ending by a position overlaps that
+ * position.  Dropping a record therefore costs O(log n) and finding the k records overlapping a
+ * position costs O(k), no matter how long and short records interleave.
+ */
+class OverlappingRecords {
+
+  /**
+   * A record of the set.  Entries are compared by identity, since the same record may be added
+   * more than once, e.g. for the same SNP from two cohorts.
+   */
+  private static class Entry {
+    final Variant record;
+    final long sequence;
+
+    Entry(Variant record, long sequence) {
+      this.record = record;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final Comparator<Entry> BY_END = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      int comparison = Long.compare(e1.record.getEnd(), e2.record.getEnd());
+      return (0 != comparison) ? comparison : Long.compare(e1.sequence, e2.sequence);
+    }
+  };
+
+  private final PriorityQueue<Entry> byEnd = new PriorityQueue<>(11, BY_END);
+  private final Set<Entry> inInsertionOrder = new LinkedHashSet<>();
+  private long sequence = 0;
+  private long lastStart = Long.MIN_VALUE;
+  private long position = Long.MIN_VALUE;
+
+  /**
+   * @param record A record starting at or after all records added so far.
+   */
+  void add(Variant record) {
+    Preconditions.checkArgument(lastStart <= record.getStart(),
+        "Records must be added in order of start position: %s follows %s", record.getStart(),
+        lastStart);
+    lastStart = record.getStart();
+    Entry entry = new Entry(record, sequence++);
+    byEnd.add(entry);
+    inInsertionOrder.add(entry);
+  }
+
+  /**
+   * Drop the records which cannot overlap anything starting at or after the position.
+   *
+   * @param position The current position of the merge, which must not move backwards.
+   */
+  void removeEndingBy(long position) {
+    Preconditions.checkArgument(this.position <= position,
+        "The position of the merge must not move backwards: %s follows %s", position,
+        this.position);
+    this.position = position;
+    while (!byEnd.isEmpty() && byEnd.peek().record.getEnd() <= position) {
+      inInsertionOrder.remove(byEnd.poll());
+    }
+  }
+
+  /**
+   * Find the records which overlap the position, with the semantics of
+   * {@link VariantUtils#isOverlapping(Variant, Variant)}.  Records ending by the position are
+   * dropped first, as for {@link #removeEndingBy}.
+   *
+   * @param position The start position of a variant, at or after the start of all records added
+   *        so far.
+   * @return the overlapping records, in the order in which they were added
+   */
+  List<Variant> getOverlapping(long position) {
+    Preconditions.checkArgument(lastStart <= position,
+        "Records may start after the position %s: %s", position, lastStart);
+    removeEndingBy(position);
+    List<Variant> overlapping = Lists.newArrayListWithCapacity(inInsertionOrder.size());
+    for (Entry entry : inInsertionOrder) {
+      overlapping.add(entry.record);
+    }
+    return overlapping;
+  }
+
+  int size() {
+    return inInsertionOrder.size();
+  }
+}
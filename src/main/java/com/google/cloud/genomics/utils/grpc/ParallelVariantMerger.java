@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a {@link VariantMergeStrategy} over a genomic region in parallel.
+ *
+ * The region is split into windows which are merged independently on a {@link ForkJoinPool}.  The
+ * records of each window include those starting before it which overlap it, such as long
+ * non-variant segments, and the strategy is passed the start of the window so that it only uses
+ * them for overlaps.  The output of the windows is reassembled in order by an
+ * {@link OrderedVariantEmitter}, so the result is the same as merging the whole region at once.
+ *
+ * The strategy is shared by all windows and must therefore be stateless, as are the strategies in
+ * this package.  The emitter is only called by one thread at a time.
+ */
+public class ParallelVariantMerger {
+
+  public static final long DEFAULT_WINDOW_SIZE = 100000;
+
+  /**
+   * Provides the records of a window.
+   */
+  public interface VariantSource {
+    /**
+     * @param referenceName The reference of the window.
+     * @param start The start position of the window, inclusive.
+     * @param end The end position of the window, exclusive.
+     * @return the records which overlap the window, i.e. with the semantics of
+     *         {@link com.google.cloud.genomics.utils.ShardBoundary.Requirement#OVERLAPS}
+     */
+    Iterable<Variant> getVariants(String referenceName, long start, long end);
+  }
+
+  /**
+   * A source for records which are already in memory.
+   *
+   * @param sortedVariants The records, sorted by {@link VariantUtils#CHROMOSOMAL_ORDER}.
+   * @param haloLength How far before each window to look for records overlapping it; this should be
+   *        at least the length of the longest record.
+   * @return the source
+   */
+  public static VariantSource fromSortedVariants(final List<Variant> sortedVariants,
+      final long haloLength) {
+    Preconditions.checkArgument(0 <= haloLength, "haloLength must not be negative");
+    return new VariantSource() {
+      @Override
+      public Iterable<Variant> getVariants(String referenceName, long start, long end) {
+        List<Variant> variants = Lists.newArrayList();
+        for (int i = lowerBound(sortedVariants, referenceName, start - haloLength);
+            i < sortedVariants.size(); i++) {
+          Variant variant = sortedVariants.get(i);
+          if (!referenceName.equals(variant.getReferenceName()) || end <= variant.getStart()) {
+            break;
+          }
+          if (start < variant.getEnd()) {
+            variants.add(variant);
+          }
+        }
+        return variants;
+      }
+    };
+  }
+
+  /**
+   * @return the index of the first record at or after the position
+   */
+  private static int lowerBound(List<Variant> sortedVariants, String referenceName, long position) {
+    int low = 0;
+    int high = sortedVariants.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      Variant variant = sortedVariants.get(mid);
+      int comparison = variant.getReferenceName().compareTo(referenceName);
+      if (comparison < 0 || (0 == comparison && variant.getStart() < position)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private final VariantMergeStrategy strategy;
+  private final ForkJoinPool pool;
+  private final long windowSize;
+  private final int maxWindowsInFlight;
+
+  /**
+   * Merge windows of {@link #DEFAULT_WINDOW_SIZE} bases on the common pool.
+   *
+   * @param strategy The stateless merge strategy to run over each window.
+   */
+  public ParallelVariantMerger(VariantMergeStrategy strategy) {
+    this(strategy, ForkJoinPool.commonPool(), DEFAULT_WINDOW_SIZE,
+        2 * ForkJoinPool.commonPool().getParallelism());
+  }
+
+  /**
+   * @param strategy The stateless merge strategy to run over each window.
+   * @param pool The pool on which to merge the windows.
+   * @param windowSize The number of bases in each window.
+   * @param maxWindowsInFlight The maximum number of windows merged, or merged and waiting for
+   *        earlier windows to be emitted, at the same time.  This bounds the memory used.
+   */
+  public ParallelVariantMerger(VariantMergeStrategy strategy, ForkJoinPool pool, long windowSize,
+      int maxWindowsInFlight) {
+    Preconditions.checkArgument(0 < windowSize, "windowSize must be positive");
+    Preconditions.checkArgument(0 < maxWindowsInFlight, "maxWindowsInFlight must be positive");
+    this.strategy = Preconditions.checkNotNull(strategy);
+    this.pool = Preconditions.checkNotNull(pool);
+    this.windowSize = windowSize;
+    this.maxWindowsInFlight = maxWindowsInFlight;
+  }
+
+  /**
+   * Merge the records of a region and emit the result in order.
+   *
+   * @param referenceName The reference of the region.
+   * @param start The start position of the region, inclusive.
+   * @param end The end position of the region, exclusive.
+   * @param source Provides the records of each window.
+   * @param emitter Receives the merged variants, from one thread at a time.
+   * @throws RuntimeException if the merge of any window failed
+   */
+  public void merge(final String referenceName, long start, long end, final VariantSource source,
+      VariantEmitterStrategy emitter) {
+    final Semaphore windowsInFlight = new Semaphore(maxWindowsInFlight);
+    final OrderedVariantEmitter orderedEmitter = new OrderedVariantEmitter(emitter) {
+      @Override
+      void windowEmitted(int window) {
+        windowsInFlight.release();
+      }
+    };
+
+    List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+    for (long windowStart = start; windowStart < end && null == orderedEmitter.getFailure();
+        windowStart += windowSize) {
+      windowsInFlight.acquireUninterruptibly();
+      final long currentWindowStart = windowStart;
+      final long currentWindowEnd = Math.min(end, windowStart + windowSize);
+      final int window = orderedEmitter.addWindow();
+      tasks.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Throwable failure = null;
+          try {
+            strategy.merge(currentWindowStart,
+                source.getVariants(referenceName, currentWindowStart, currentWindowEnd),
+                orderedEmitter.forWindow(window));
+          } catch (RuntimeException | Error e) {
+            failure = e;
+          }
+          orderedEmitter.finishWindow(window, failure);
+        }
+      }));
+    }
+
+    for (ForkJoinTask<?> task : tasks) {
+      task.quietlyJoin();
+    }
+    Throwable failure = orderedEmitter.getFailure();
+    if (null != failure) {
+      Throwables.propagateIfPossible(failure);
+      throw new RuntimeException(failure);
+    }
+  }
+}
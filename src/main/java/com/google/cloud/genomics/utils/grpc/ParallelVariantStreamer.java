@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+
+import io.grpc.ManagedChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Streams many shards of variants concurrently over a single shared channel, or over channels
+ * leased from a {@link GenomicsChannelPool}.
+ *
+ * Each shard, such as those returned by ShardUtils.getVariantRequests, is drained by its own
+ * {@link VariantStreamIterator} on a worker thread and the responses are handed to the consumer
+ * through bounded queues, so slow consumers apply backpressure to the streams.
+ *
+ * With {@link Delivery#ORDERED} responses are returned shard by shard in the order of the
+ * requests.  With {@link Delivery#UNORDERED} responses are returned as soon as they arrive,
+ * interleaved across shards.
+ *
+ * A shared channel is not shut down by this class; its lifetime belongs to the caller.  A leased
+ * channel is returned to its pool as soon as its shard is done.
+ */
+public class ParallelVariantStreamer implements Iterator<StreamVariantsResponse>, Closeable {
+
+  /**
+   * Enum for the order in which responses are delivered to the consumer.
+   */
+  public enum Delivery {
+    /**
+     * Return all responses for a shard before any responses of the next shard.
+     */
+    ORDERED,
+    /**
+     * Return responses from all shards in the order in which they arrive.
+     */
+    UNORDERED,
+  }
+
+  public static final int DEFAULT_CONCURRENCY = 8;
+  public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+  /**
+   * A builder class for {@link ParallelVariantStreamer} objects.
+   */
+  public static class Builder {
+    private final ManagedChannel channel;
+    private final GenomicsChannelPool pool;
+    private final OfflineAuth auth;
+    private final ImmutableList<StreamVariantsRequest> requests;
+    private ShardBoundary.Requirement shardBoundary = ShardBoundary.Requirement.OVERLAPS;
+    private String fields = null;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private Delivery delivery = Delivery.UNORDERED;
+
+    Builder(ManagedChannel channel, List<StreamVariantsRequest> requests) {
+      this.channel = Preconditions.checkNotNull(channel);
+      this.pool = null;
+      this.auth = null;
+      this.requests = ImmutableList.copyOf(requests);
+    }
+
+    Builder(GenomicsChannelPool pool, OfflineAuth auth, List<StreamVariantsRequest> requests) {
+      this.channel = null;
+      this.pool = Preconditions.checkNotNull(pool);
+      this.auth = Preconditions.checkNotNull(auth);
+      this.requests = ImmutableList.copyOf(requests);
+    }
+
+    /**
+     * @param shardBoundary The shard boundary semantics to enforce for every shard.
+     * @param fields Used to check whether the specified fields would meet the minimum required
+     *    fields for the shard boundary predicate, if applicable.
+     * @return this builder
+     */
+    public Builder setShardBoundary(ShardBoundary.Requirement shardBoundary, String fields) {
+      this.shardBoundary = Preconditions.checkNotNull(shardBoundary);
+      this.fields = fields;
+      return this;
+    }
+
+    /**
+     * @param concurrency The maximum number of shards to stream at the same time.
+     * @return this builder
+     */
+    public Builder setConcurrency(int concurrency) {
+      Preconditions.checkArgument(0 < concurrency, "concurrency must be positive");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * @param queueCapacity The maximum number of responses buffered per queue before the streams
+     *    feeding it block.  For unordered delivery all shards share one queue; for ordered delivery
+     *    each shard in flight has its own.
+     * @return this builder
+     */
+    public Builder setQueueCapacity(int queueCapacity) {
+      Preconditions.checkArgument(0 < queueCapacity, "queueCapacity must be positive");
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * @param delivery The order in which responses are returned to the consumer.
+     * @return this builder
+     */
+    public Builder setDelivery(Delivery delivery) {
+      this.delivery = Preconditions.checkNotNull(delivery);
+      return this;
+    }
+
+    /**
+     * Start streaming all of the shards.
+     *
+     * @return the streamer
+     */
+    public ParallelVariantStreamer build() {
+      return new ParallelVariantStreamer(this);
+    }
+  }
+
+  /**
+   * Create a builder for streaming the shards over the channel.
+   *
+   * @param channel The channel shared by all of the streams.
+   * @param requests The requests for the shards of data.
+   * @return the builder
+   */
+  public static Builder builder(ManagedChannel channel, List<StreamVariantsRequest> requests) {
+    return new Builder(channel, requests);
+  }
+
+  /**
+   * Create a builder for streaming each shard over a channel leased from the pool.  The lease is
+   * released once the shard has been streamed, has failed or the streamer was closed.
+   *
+   * @param pool The pool of channels.
+   * @param auth The OfflineAuth to use for the requests.
+   * @param requests The requests for the shards of data.
+   * @return the builder
+   */
+  public static Builder builder(GenomicsChannelPool pool, OfflineAuth auth,
+      List<StreamVariantsRequest> requests) {
+    return new Builder(pool, auth, requests);
+  }
+
+  /**
+   * An entry in a queue: a response, the end of a shard, or the failure of a shard.
+   */
+  private static class Element {
+    static final Element END_OF_SHARD = new Element(null, null);
+
+    final StreamVariantsResponse response;
+    final RuntimeException failure;
+
+    Element(StreamVariantsResponse response, RuntimeException failure) {
+      this.response = response;
+      this.failure = failure;
+    }
+  }
+
+  private final int numShards;
+  private final List<BlockingQueue<Element>> queues;
+  private final ExecutorService executor;
+
+  private int currentShard = 0;
+  private int numShardsDone = 0;
+  private StreamVariantsResponse nextResponse = null;
+  private volatile boolean closed = false;
+
+  private ParallelVariantStreamer(Builder builder) {
+    numShards = builder.requests.size();
+    ImmutableList.Builder<BlockingQueue<Element>> queuesBuilder = ImmutableList.builder();
+    if (Delivery.ORDERED == builder.delivery) {
+      for (int i = 0; i < numShards; i++) {
+        queuesBuilder.add(new LinkedBlockingQueue<Element>(builder.queueCapacity));
+      }
+    } else {
+      BlockingQueue<Element> sharedQueue = new LinkedBlockingQueue<>(builder.queueCapacity);
+      for (int i = 0; i < numShards; i++) {
+        queuesBuilder.add(sharedQueue);
+      }
+    }
+    queues = queuesBuilder.build();
+
+    executor = Executors.newFixedThreadPool(builder.concurrency, new ThreadFactoryBuilder()
+        .setNameFormat("variant-streamer-%d").setDaemon(true).build());
+    // The pool starts tasks in submission order, so for ordered delivery the shard that the
+    // consumer is waiting on is always already in flight.
+    for (int i = 0; i < numShards; i++) {
+      executor.execute(new ShardStreamer(builder, i));
+    }
+    executor.shutdown();
+  }
+
+  private class ShardStreamer implements Runnable {
+    private final ManagedChannel channel;
+    private final GenomicsChannelPool pool;
+    private final OfflineAuth auth;
+    private final StreamVariantsRequest request;
+    private final ShardBoundary.Requirement shardBoundary;
+    private final String fields;
+    private final BlockingQueue<Element> queue;
+
+    ShardStreamer(Builder builder, int shard) {
+      this.channel = builder.channel;
+      this.pool = builder.pool;
+      this.auth = builder.auth;
+      this.request = builder.requests.get(shard);
+      this.shardBoundary = builder.shardBoundary;
+      this.fields = builder.fields;
+      this.queue = queues.get(shard);
+    }
+
+    private VariantStreamIterator createStream() {
+      if (null == pool) {
+        VariantStreamIterator iter =
+            VariantStreamIterator.enforceShardBoundary(channel, request, shardBoundary, fields);
+        iter.leaveChannelOpen();
+        return iter;
+      }
+      try {
+        return VariantStreamIterator.enforceShardBoundary(pool, auth, request, shardBoundary,
+            fields);
+      } catch (IOException | GeneralSecurityException e) {
+        throw new RuntimeException("Could not lease a channel for the shard", e);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (closed) {
+          return;
+        }
+        Element end = Element.END_OF_SHARD;
+        VariantStreamIterator iter = null;
+        try {
+          iter = createStream();
+          while (!closed && iter.hasNext()) {
+            queue.put(new Element(iter.next(), null));
+          }
+        } catch (RuntimeException e) {
+          end = new Element(null, e);
+        } finally {
+          if (null != iter) {
+            // Release the lease even if the shard was not streamed to its end.
+            iter.shutdownChannel();
+          }
+        }
+        queue.put(end);
+      } catch (InterruptedException e) {
+        // The streamer was closed while this shard was waiting on the consumer.
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    while (null == nextResponse && numShardsDone < numShards) {
+      Preconditions.checkState(!closed, "This streamer has been closed.");
+      Element element;
+      try {
+        element = queues.get(currentShard).take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for variants", e);
+      }
+      if (null != element.failure) {
+        close();
+        throw element.failure;
+      }
+      if (Element.END_OF_SHARD == element) {
+        numShardsDone++;
+        // For unordered delivery every shard shares the same queue, so this only matters when
+        // delivery is ordered.
+        currentShard = Math.min(currentShard + 1, numShards - 1);
+      } else {
+        nextResponse = element.response;
+      }
+    }
+    return null != nextResponse;
+  }
+
+  /**
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public StreamVariantsResponse next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    StreamVariantsResponse response = nextResponse;
+    nextResponse = null;
+    return response;
+  }
+
+  /**
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop all streams still in flight.  The shared channel is left open.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+  }
+}
@@ -58,6 +58,33 @@ public class ReadStreamIterator
         shardBoundary, fields);
   }
 
+  /**
+   * Create a stream iterator that can enforce shard boundary semantics, using a channel leased
+   * from the pool. The lease is released once the stream is exhausted or has failed.
+   *
+   * @param pool The pool of channels.
+   * @param auth The OfflineAuth to use for the request.
+   * @param request The request for the shard of data.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static ReadStreamIterator enforceShardBoundary(GenomicsChannelPool pool, OfflineAuth auth,
+      StreamReadsRequest request, Requirement shardBoundary, String fields) throws IOException,
+      GeneralSecurityException {
+    GenomicsChannelPool.Lease lease = pool.acquire(auth, fields);
+    try {
+      ReadStreamIterator iter =
+          ReadStreamIterator.enforceShardBoundary(lease.getChannel(), request, shardBoundary, fields);
+      iter.releaseWhenDone(lease);
+      return iter;
+    } catch (RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+  }
+
   /**
    * Create a stream iterator that can enforce shard boundary semantics.
    *
@@ -72,7 +99,50 @@ public class ReadStreamIterator
     Predicate<Read> shardPredicate =
         (ShardBoundary.Requirement.STRICT == shardBoundary) ? ShardBoundary
             .getStrictReadPredicate(request.getStart(), fields) : null;
-    return new ReadStreamIterator(channel, request, shardPredicate);
+    ReadStreamIterator iter = new ReadStreamIterator(channel, request, shardPredicate);
+    if (null != shardPredicate) {
+      iter.useStrictShardBoundary();
+    }
+    return iter;
+  }
+
+  /**
+   * Create a stream iterator that continues exactly where an earlier stream for the same shard
+   * stopped, e.g. in a worker that died, and enforces shard boundary semantics.
+   *
+   * @param auth The OfflineAuth to use for the request.
+   * @param cursor The cursor of the earlier stream.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static ReadStreamIterator resume(OfflineAuth auth, StreamCursor<StreamReadsRequest> cursor,
+      Requirement shardBoundary, String fields) throws IOException, GeneralSecurityException {
+    return ReadStreamIterator.resume(GenomicsChannel.fromOfflineAuth(auth, fields), cursor,
+        shardBoundary, fields);
+  }
+
+  /**
+   * Create a stream iterator that continues exactly where an earlier stream for the same shard
+   * stopped, e.g. in a worker that died, and enforces shard boundary semantics.
+   *
+   * @param channel The ManagedChannel.
+   * @param cursor The cursor of the earlier stream.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Used to check whether the specified fields would meet the minimum required
+   *    fields for the shard boundary predicate, if applicable.
+   */
+  public static ReadStreamIterator resume(ManagedChannel channel, StreamCursor<StreamReadsRequest> cursor,
+      Requirement shardBoundary, String fields) {
+    Predicate<Read> shardPredicate =
+        (ShardBoundary.Requirement.STRICT == shardBoundary) ? ShardBoundary
+            .getStrictReadPredicate(cursor.getRequest().getStart(), fields) : null;
+    ReadStreamIterator iter = new ReadStreamIterator(channel, cursor, shardPredicate);
+    if (null != shardPredicate) {
+      iter.useStrictShardBoundary();
+    }
+    return iter;
   }
 
   /**
@@ -88,6 +158,19 @@ public class ReadStreamIterator
     super(channel, request, shardPredicate);
   }
 
+  /**
+   * Create a stream iterator that continues from the cursor of an earlier stream.
+   *
+   * @param channel The ManagedChannel.
+   * @param cursor The cursor of the earlier stream.
+   * @param shardPredicate A predicate used to client-side filter results returned (e.g., enforce a
+   *        shard boundary and/or limit to SNPs only) or null for no filtering.
+   */
+  public ReadStreamIterator(ManagedChannel channel, StreamCursor<StreamReadsRequest> cursor,
+      Predicate<Read> shardPredicate) {
+    super(channel, cursor, shardPredicate);
+  }
+
   @Override
   StreamingReadServiceBlockingStub createStub(ManagedChannel channel) {
     return StreamingReadServiceGrpc.newBlockingStub(channel);
@@ -15,7 +15,6 @@
  */
 package com.google.cloud.genomics.utils.grpc;
 
-import com.google.common.base.Function;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.Lists;
@@ -27,6 +26,7 @@ import com.google.genomics.v1.ReadGroup;
 import com.google.genomics.v1.ReadGroup.Program;
 import com.google.genomics.v1.ReadGroupSet;
 import com.google.genomics.v1.Reference;
+import com.google.genomics.v1.StreamReadsResponse;
 import com.google.protobuf.ListValue;
 import com.google.protobuf.Value;
 
@@ -48,10 +48,9 @@ import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringLineReader;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
   protected static BiMap<String, CigarUnit.Operation> CIGAR_OPERATIONS_INV_GRPC;
@@ -121,47 +120,56 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
     return s;
   }
 
+  // The gRPC cigar operation of each htsjdk cigar operator, indexed by its ordinal.
+  private static final CigarUnit.Operation[] CIGAR_OPERATIONS_BY_OPERATOR =
+      new CigarUnit.Operation[CigarOperator.values().length];
+
+  static {
+    for (CigarOperator operator : CigarOperator.values()) {
+      CIGAR_OPERATIONS_BY_OPERATOR[operator.ordinal()] =
+          CIGAR_OPERATIONS_INV_GRPC.get(operator.toString());
+    }
+  }
+
+  // Each thread converting records reuses its builders, which are cleared for every record.
+  private static final ThreadLocal<ReadBuilders> READ_BUILDERS = new ThreadLocal<ReadBuilders>() {
+    @Override
+    protected ReadBuilders initialValue() {
+      return new ReadBuilders();
+    }
+  };
+
+  private static class ReadBuilders {
+    final Read.Builder read = Read.newBuilder();
+    final CigarUnit.Builder cigarUnit = CigarUnit.newBuilder();
+    final ListValue.Builder listValue = ListValue.newBuilder();
+    final Value.Builder value = Value.newBuilder();
+  }
+
   /**
    * Generates a Read from a SAMRecord.
+   *
+   * If the record has an MD tag, each DELETE and SEQUENCE_MISMATCH cigar unit is given the
+   * reference bases it covers.
    */
   public static final Read makeReadGrpc(final SAMRecord record) {
-    Read.Builder read = Read.newBuilder();
+    ReadBuilders builders = READ_BUILDERS.get();
+    Read.Builder read = builders.read.clear();
     read.setId(safeStr(record.getReadName())); // TODO: make more unique
     read.setFragmentName(safeStr(record.getReadName()));
     read.setReadGroupId(safeStr(getAttr(record, "RG")));
     read.setNumberReads(record.getReadPairedFlag() ? 2 : 1);
     read.setProperPlacement(record.getReadPairedFlag() && record.getProperPairFlag());
     if (!record.getReadUnmappedFlag() && record.getAlignmentStart() > 0) {
-      LinearAlignment.Builder alignment = LinearAlignment.newBuilder();
+      LinearAlignment.Builder alignment = read.getAlignmentBuilder();
 
-      Position.Builder position = Position.newBuilder();
+      Position.Builder position = alignment.getPositionBuilder();
       position.setPosition((long) record.getAlignmentStart() - 1);
       position.setReferenceName(safeStr(record.getReferenceName()));
       position.setReverseStrand(record.getReadNegativeStrandFlag());
-      alignment.setPosition(position);
 
       alignment.setMappingQuality(record.getMappingQuality());
-
-      final String referenceSequence = (record.getAttribute("MD") != null) ? new String(
-              SequenceUtil.makeReferenceFromAlignment(record, true))
-              : null;
-      List<CigarUnit> cigar = Lists.transform(record.getCigar().getCigarElements(),
-              new Function<CigarElement, CigarUnit>() {
-                @Override
-                public CigarUnit apply(CigarElement c) {
-                  CigarUnit.Builder u = CigarUnit.newBuilder();
-                  CigarOperator o = c.getOperator();
-                  u.setOperation(CIGAR_OPERATIONS_INV_GRPC.get(o.toString()));
-                  u.setOperationLength(c.getLength());
-                  if (referenceSequence != null && (u.getOperation().equals("SEQUENCE_MISMATCH")
-                          || u.getOperation().equals("DELETE"))) {
-                    u.setReferenceSequence(referenceSequence);
-                  }
-                  return u.build();
-                }
-              });
-      alignment.addAllCigar(cigar);
-      read.setAlignment(alignment);
+      addCigar(record, alignment, builders.cigarUnit);
     }
     read.setDuplicateFragment(record.getDuplicateReadFlag());
     read.setFragmentLength(record.getInferredInsertSize());
@@ -173,28 +181,21 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
       }
 
       if (!record.getMateUnmappedFlag()) {
-        Position.Builder matePosition = Position.newBuilder();
+        Position.Builder matePosition = read.getNextMatePositionBuilder();
         matePosition.setPosition((long) record.getMateAlignmentStart() - 1);
         matePosition.setReferenceName(record.getMateReferenceName());
         matePosition.setReverseStrand(record.getMateNegativeStrandFlag());
-        read.setNextMatePosition(matePosition);
       }
     }
     read.setFailedVendorQualityChecks(record.getReadFailsVendorQualityCheckFlag());
     read.setSecondaryAlignment(record.getNotPrimaryAlignmentFlag());
     read.setSupplementaryAlignment(record.getSupplementaryAlignmentFlag());
     read.setAlignedSequence(safeStr(record.getReadString()));
-    byte[] baseQualities = record.getBaseQualities();
-    if (baseQualities.length > 0) {
-      List<Integer> readBaseQualities = new ArrayList<>(baseQualities.length);
-      for (byte b : baseQualities) {
-        readBaseQualities.add(new Integer(b));
-      }
-      read.addAllAlignedQuality(readBaseQualities);
+    for (byte quality : record.getBaseQualities()) {
+      read.addAlignedQuality(quality);
     }
 
-    Map<String, ListValue> attributes =  read.getMutableInfo();
-    for( SAMRecord.SAMTagAndValue tagAndValue: record.getAttributes()) {
+    for (SAMRecord.SAMTagAndValue tagAndValue : record.getAttributes()) {
       if (tagAndValue.value == null) {
         continue;
       }
@@ -209,18 +210,57 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
         value = tagAndValue.value.toString();
       }
 
-      ListValue listValue = attributes.get(tag);
-      ListValue.Builder listValueBuilder = listValue == null ?
-          ListValue.newBuilder() :
-          ListValue.newBuilder(listValue);
-      listValueBuilder.addValues(Value.newBuilder().setStringValue(value));
-      attributes.put(tag, listValueBuilder.build());
+      // The tags of a record are distinct, so the values of a tag are only merged with earlier
+      // ones if it was set more than once.
+      ListValue.Builder values = builders.listValue.clear();
+      if (read.containsInfo(tag)) {
+        values.mergeFrom(read.getInfoOrThrow(tag));
+      }
+      values.addValues(builders.value.clear().setStringValue(value));
+      read.putInfo(tag, values.build());
     }
 
-
     return read.build();
   }
 
+  /**
+   * Add the cigar units of a record to an alignment.
+   */
+  private static void addCigar(SAMRecord record, LinearAlignment.Builder alignment,
+      CigarUnit.Builder unit) {
+    List<CigarElement> elements = record.getCigar().getCigarElements();
+    // The reference is only needed for deletions and mismatches, so it is only made from the MD
+    // tag if there are any.
+    byte[] reference = null;
+    for (CigarElement element : elements) {
+      if (element.getOperator() == CigarOperator.D || element.getOperator() == CigarOperator.X) {
+        if (record.getAttribute("MD") != null) {
+          reference = SequenceUtil.makeReferenceFromAlignment(record, true);
+        }
+        break;
+      }
+    }
+
+    // The reference has a base for each read or reference base of the alignment, that is for
+    // every cigar operator but hard clips and padding.
+    int referenceOffset = 0;
+    for (CigarElement element : elements) {
+      CigarOperator operator = element.getOperator();
+      int length = element.getLength();
+      unit.clear();
+      unit.setOperation(CIGAR_OPERATIONS_BY_OPERATOR[operator.ordinal()]);
+      unit.setOperationLength(length);
+      if (reference != null && (operator == CigarOperator.D || operator == CigarOperator.X)
+          && referenceOffset + length <= reference.length) {
+        unit.setReferenceSequence(new String(reference, referenceOffset, length));
+      }
+      if (operator != CigarOperator.H && operator != CigarOperator.P) {
+        referenceOffset += length;
+      }
+      alignment.addCigar(unit.build());
+    }
+  }
+
   public static String getAttr(SAMRecord record, String attributeName) {
     try {
       return record.getStringAttribute(attributeName);
@@ -469,20 +509,6 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
     return finalHeader;
   }
 
-  /*
-   * Regular expression for MD tag.
-   *
-   * \G = end of previous match.
-   * (?:[0-9]+) Number of bases in which read matches reference.
-   *  - or -
-   * Single reference base for case in which reference differs from read.
-   *  - or -
-   * ^one or more reference bases that are deleted in read.
-   *
-   */
-  private static final Pattern mdPattern =
-      Pattern.compile("\\G(?:([0-9]+)|([ACTGNactgn])|(\\^[ACTGNactgn]+))");
-
   /**
    * Grab the value of the provided SAM tag if it exists (returns null otherwise)
    * @param read    the read whose SAM tags need to be searched
@@ -513,10 +539,75 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
       return null;
     }
 
+    char[] refSeq = new char[getMaxReferenceSequenceLength(read)];
+    int length = inferReferenceSequence(read, mdTag, refSeq);
+    return new String(refSeq, 0, length);
+  }
+
+  /**
+   * Create the overlapping reference sequences of all reads of a response, as
+   * {@link #inferReferenceSequenceByParsingMdFlag(Read)} does for one read.
+   * @param response    the response whose reads to parse
+   * @return            the overlapping reference string of each read, or null for those for which
+   *                    it is not possible to compute
+   */
+  public static List<String> inferReferenceSequencesByParsingMdFlag(StreamReadsResponse response) {
+    List<String> refSeqs = new ArrayList<String>(response.getAlignmentsCount());
+    // The reference of each read is written to the same buffer, which grows to the longest one.
+    char[] refSeq = new char[0];
+    for (Read read : response.getAlignmentsList()) {
+      String mdTag = getSamTag(read, "MD");
+      if (!read.hasAlignment() || (read.getAlignment().getCigarCount() == 0) || mdTag == null) {
+        refSeqs.add(null);
+        continue;
+      }
+      int maxLength = getMaxReferenceSequenceLength(read);
+      if (refSeq.length < maxLength) {
+        refSeq = new char[Math.max(maxLength, 2 * refSeq.length)];
+      }
+      refSeqs.add(new String(refSeq, 0, inferReferenceSequence(read, mdTag, refSeq)));
+    }
+    return refSeqs;
+  }
+
+  /**
+   * @return an upper bound on the length of the overlapping reference string of the read, as each
+   *         cigar unit adds at most its length to it
+   */
+  private static int getMaxReferenceSequenceLength(Read read) {
+    int length = 0;
+    for (CigarUnit unit : read.getAlignment().getCigarList()) {
+      switch (unit.getOperation()) {
+        case ALIGNMENT_MATCH:
+        case SEQUENCE_MISMATCH:
+        case SEQUENCE_MATCH:
+        case DELETE:
+        case CLIP_SOFT:
+        case INSERT:
+          length += (int) unit.getOperationLength();
+          break;
+        default:
+          break;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Walk the cigar units of the read and the tokens of its MD tag together in a single pass,
+   * writing the overlapping reference to refSeq.
+   *
+   * The MD tag is a series of tokens: a number of bases in which the read matches the reference, a
+   * single reference base for a base in which the reference differs from the read, or a caret
+   * followed by the reference bases which are deleted in the read.
+   *
+   * @return the length of the overlapping reference
+   */
+  private static int inferReferenceSequence(Read read, String mdTag, char[] refSeq) {
     String readSeq = read.getAlignedSequence();
-    StringBuilder refSeqBuilder = new StringBuilder();
-    Matcher match = mdPattern.matcher(mdTag);
+    int length = 0;
     int curReadPos = 0;
+    int curMdPos = 0;
     int numSavedBases = 0;
 
     for (CigarUnit unit : read.getAlignment().getCigarList()) {
@@ -528,47 +619,46 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
         case SEQUENCE_MATCH:
         case DELETE:
           // these operators consume both read and reference bases so we need to parse the MD tag
-          int numMatchedBases = 0;
 
           // Do we have any saved matched bases from a previous cigar operator?
-          while ((numSavedBases > 0) && (numMatchedBases < cigarOpLength)) {
-            refSeqBuilder.append(readSeq.charAt(curReadPos++));
-            numSavedBases--;
-            numMatchedBases++;
-          }
+          int numMatchedBases = Math.min(numSavedBases, cigarOpLength);
+          readSeq.getChars(curReadPos, curReadPos + numMatchedBases, refSeq, length);
+          length += numMatchedBases;
+          curReadPos += numMatchedBases;
+          numSavedBases -= numMatchedBases;
 
           while (numMatchedBases < cigarOpLength) {
-            boolean matched = match.find();
-            if (matched) {
-              // need to use the regular expression to parse the MD tag
-              String mg1 = match.group(1);
-              String mg2 = match.group(2);
-              String mg3 = match.group(3);
-              if (mg1 != null && mg1.length() > 0) {
-                // this token is a number which means a series of matches
-                int numMatches = Integer.parseInt(mg1);
-                for (int i = 0; i < numMatches; i++) {
-                  if (numMatchedBases < cigarOpLength) {
-                    refSeqBuilder.append(readSeq.charAt(curReadPos++));
-                  } else {
-                    numSavedBases++;
-                  }
-                  numMatchedBases++;
-                }
-              } else if (mg2 != null && mg2.length() > 0) {
-                // this token is a single nucleotide which means a mismatching base
-                refSeqBuilder.append(mg2.charAt(0));
-                curReadPos++;
+            char c = (curMdPos < mdTag.length()) ? mdTag.charAt(curMdPos) : 0;
+            if ('0' <= c && c <= '9') {
+              // this token is a number which means a series of matches
+              int numMatches = 0;
+              while (curMdPos < mdTag.length()
+                  && '0' <= (c = mdTag.charAt(curMdPos)) && c <= '9') {
+                numMatches = 10 * numMatches + (c - '0');
+                curMdPos++;
+              }
+              // the matches beyond this cigar operator are saved for the next one
+              int numAppended = Math.min(numMatches, cigarOpLength - numMatchedBases);
+              readSeq.getChars(curReadPos, curReadPos + numAppended, refSeq, length);
+              length += numAppended;
+              curReadPos += numAppended;
+              numSavedBases += numMatches - numAppended;
+              numMatchedBases += numMatches;
+            } else if (isMdBase(c)) {
+              // this token is a single nucleotide which means a mismatching base
+              refSeq[length++] = c;
+              curMdPos++;
+              curReadPos++;
+              numMatchedBases++;
+            } else if (c == '^' && curMdPos + 1 < mdTag.length()
+                && isMdBase(mdTag.charAt(curMdPos + 1))) {
+              // this token starts with a caret which means deleted bases
+              curMdPos++;
+              while (curMdPos < mdTag.length() && isMdBase(mdTag.charAt(curMdPos))) {
+                curMdPos++;
                 numMatchedBases++;
-              } else if (mg3 != null && mg3.length() > 0) {
-                // this token starts with a caret which means deleted bases
-                numMatchedBases += mg3.length() - 1; // don't include the caret
-              } else {
-                matched = false;
               }
-            }
-
-            if (!matched) {
+            } else {
               throw new IllegalStateException("Unusable or malformatted MD tag found: " + mdTag);
             }
           }
@@ -577,10 +667,10 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
         case CLIP_SOFT:
         case INSERT:
           // these operators consume read bases but not reference bases
-          for (int i = 0; i < unit.getOperationLength(); i++) {
-            refSeqBuilder.append(cigarOp.equals(CigarUnit.Operation.CLIP_SOFT) ? '0' : '-');
-            curReadPos++;
-          }
+          Arrays.fill(refSeq, length, length + cigarOpLength,
+              cigarOp.equals(CigarUnit.Operation.CLIP_SOFT) ? '0' : '-');
+          length += cigarOpLength;
+          curReadPos += cigarOpLength;
           break;
         case SKIP:
         case PAD:
@@ -592,6 +682,24 @@ public class ReadUtils extends com.google.cloud.genomics.utils.ReadUtils {
       }
     }
 
-    return refSeqBuilder.toString();
+    return length;
+  }
+
+  private static boolean isMdBase(char c) {
+    switch (c) {
+      case 'A':
+      case 'C':
+      case 'T':
+      case 'G':
+      case 'N':
+      case 'a':
+      case 'c':
+      case 't':
+      case 'g':
+      case 'n':
+        return true;
+      default:
+        return false;
+    }
   }
 }
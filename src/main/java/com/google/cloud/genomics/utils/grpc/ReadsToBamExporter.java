@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import io.grpc.ManagedChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports the reads of many shards, such as those returned by ShardUtils.getReadRequests, to a
+ * single BAM file.
+ *
+ * Each shard is streamed with a strict shard boundary, so that reads overlapping two shards are
+ * exported once, and is converted and BGZF-compressed into its own run of blocks on a worker
+ * thread.  Since BGZF blocks are independent, the runs are then simply concatenated in the order of
+ * the requests, between the BAM header and the BGZF terminator, and the BAI index is built from
+ * the offsets of the records as the runs are written.
+ *
+ * The requests are exported in coordinate order, i.e. ordered by the position of their references
+ * in the sequence dictionary of the header and then by start, whatever their order in the list,
+ * so that the output is sorted as its header says.  Unmapped reads without a position are not part
+ * of any shard and so are not exported.
+ */
+public class ReadsToBamExporter {
+
+  public static final int DEFAULT_CONCURRENCY = 8;
+
+  /**
+   * A builder class for {@link ReadsToBamExporter} objects.
+   */
+  public static class Builder {
+    private final ManagedChannel channel;
+    private final ImmutableList<StreamReadsRequest> requests;
+    private final SAMFileHeader header;
+    private String fields = null;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private OutputStream indexOutput = null;
+
+    Builder(ManagedChannel channel, List<StreamReadsRequest> requests,
+        final SAMFileHeader header) {
+      this.channel = Preconditions.checkNotNull(channel);
+      this.header = Preconditions.checkNotNull(header);
+      for (StreamReadsRequest request : requests) {
+        Preconditions.checkArgument(0 <= header.getSequenceIndex(request.getReferenceName()),
+            "Reference %s is not in the sequence dictionary of the header",
+            request.getReferenceName());
+      }
+      // Shards such as those of ShardUtils.getReadRequests come shuffled.
+      this.requests = Ordering.from(new Comparator<StreamReadsRequest>() {
+        @Override
+        public int compare(StreamReadsRequest a, StreamReadsRequest b) {
+          return ComparisonChain.start()
+              .compare(header.getSequenceIndex(a.getReferenceName()),
+                  header.getSequenceIndex(b.getReferenceName()))
+              .compare(a.getStart(), b.getStart())
+              .result();
+        }
+      }).immutableSortedCopy(requests);
+    }
+
+    /**
+     * @param fields Which fields to return in the partial response, or null for all.
+     * @return this builder
+     */
+    public Builder setFields(String fields) {
+      this.fields = fields;
+      return this;
+    }
+
+    /**
+     * @param concurrency The maximum number of shards to stream and convert at the same time.
+     * @return this builder
+     */
+    public Builder setConcurrency(int concurrency) {
+      Preconditions.checkArgument(0 < concurrency, "concurrency must be positive");
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * @param indexOutput Where to write the BAI index of the BAM file, or null for no index.
+     * @return this builder
+     */
+    public Builder setIndexOutput(OutputStream indexOutput) {
+      this.indexOutput = indexOutput;
+      return this;
+    }
+
+    public ReadsToBamExporter build() {
+      return new ReadsToBamExporter(this);
+    }
+  }
+
+  /**
+   * @param channel The channel on which to stream the shards; it is not shut down by the exporter.
+   * @param requests The shards to export, in any order.
+   * @param header The header of the BAM file, e.g. from ReadUtils.makeSAMFileHeader.
+   * @return a builder for the exporter
+   */
+  public static Builder builder(ManagedChannel channel, List<StreamReadsRequest> requests,
+      SAMFileHeader header) {
+    return new Builder(channel, requests, header);
+  }
+
+  /**
+   * The compressed records of a shard.
+   */
+  private static class ShardPart {
+    final byte[] blocks;
+    final long numReads;
+    // The records to index, and their start and end offsets relative to the start of the blocks.
+    final List<IndexRecord> indexRecords;
+    final long[] recordOffsets;
+
+    ShardPart(byte[] blocks, long numReads, List<IndexRecord> indexRecords,
+        long[] recordOffsets) {
+      this.blocks = blocks;
+      this.numReads = numReads;
+      this.indexRecords = indexRecords;
+      this.recordOffsets = recordOffsets;
+    }
+  }
+
+  /**
+   * The fields of a record needed to index it: its position, cigar and flags.
+   */
+  private static class IndexRecord extends SAMRecord {
+    private static final long serialVersionUID = -8486260123372971057L;
+
+    IndexRecord(SAMRecord record) {
+      super(record.getHeader());
+      setReferenceIndex(record.getReferenceIndex());
+      setAlignmentStart(record.getAlignmentStart());
+      setCigar(record.getCigar());
+      setFlags(record.getFlags());
+    }
+
+    void setChunk(Chunk chunk) {
+      setFileSource(new SAMFileSource(null, new BAMFileSpan(chunk)));
+    }
+  }
+
+  private final ManagedChannel channel;
+  private final ImmutableList<StreamReadsRequest> requests;
+  private final SAMFileHeader header;
+  private final String fields;
+  private final int concurrency;
+  private final OutputStream indexOutput;
+
+  private ReadsToBamExporter(Builder builder) {
+    channel = builder.channel;
+    requests = builder.requests;
+    header = builder.header.clone();
+    header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+    fields = builder.fields;
+    concurrency = builder.concurrency;
+    indexOutput = builder.indexOutput;
+  }
+
+  /**
+   * Export all shards.  The output streams are not closed.
+   *
+   * @param output Where to write the BAM file.
+   * @return the number of reads exported
+   * @throws IOException
+   */
+  public long export(OutputStream output) throws IOException {
+    CountingOutputStream bam = new CountingOutputStream(output);
+    bam.write(makeHeaderBlocks(header));
+    BAMIndexer indexer = (null == indexOutput) ? null : new BAMIndexer(indexOutput, header);
+
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+        .setNameFormat("bam-exporter-%d").setDaemon(true).build());
+    long numReads = 0;
+    try {
+      // Keep twice as many shards in flight as there are workers, so that the workers stay busy
+      // while the shard being written is waited on, but the finished shards held in memory stay
+      // bounded.
+      List<Future<ShardPart>> parts = Lists.newArrayList();
+      int submitted = 0;
+      for (int i = 0; i < requests.size(); i++) {
+        while (submitted < requests.size() && submitted < i + 2 * concurrency) {
+          parts.add(executor.submit(convertShard(requests.get(submitted++))));
+        }
+        ShardPart part = getPart(parts.get(i));
+        parts.set(i, null);
+
+        long partAddress = bam.getCount();
+        bam.write(part.blocks);
+        numReads += part.numReads;
+        if (null != indexer) {
+          for (int r = 0; r < part.indexRecords.size(); r++) {
+            IndexRecord record = part.indexRecords.get(r);
+            record.setChunk(new Chunk(shift(part.recordOffsets[2 * r], partAddress),
+                shift(part.recordOffsets[2 * r + 1], partAddress)));
+            indexer.processAlignment(record);
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    bam.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+    bam.flush();
+    if (null != indexer) {
+      indexer.finish();
+    }
+    return numReads;
+  }
+
+  private static ShardPart getPart(Future<ShardPart> part) throws IOException {
+    try {
+      return part.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a shard", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Move a virtual file offset relative to the blocks of a shard to the BAM file.
+   */
+  private static long shift(long virtualOffset, long partAddress) {
+    return ((BlockCompressedFilePointerUtil.getBlockAddress(virtualOffset) + partAddress) << 16)
+        | BlockCompressedFilePointerUtil.getBlockOffset(virtualOffset);
+  }
+
+  private Callable<ShardPart> convertShard(final StreamReadsRequest request) {
+    return new Callable<ShardPart>() {
+      @Override
+      public ShardPart call() throws IOException {
+        ReadStreamIterator iter = ReadStreamIterator.enforceShardBoundary(channel, request,
+            ShardBoundary.Requirement.STRICT, fields);
+        iter.leaveChannelOpen();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BlockCompressedOutputStream blocks = new BlockCompressedOutputStream(bytes, (File) null);
+        BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setOutputStream(blocks);
+
+        long numReads = 0;
+        List<IndexRecord> indexRecords = Lists.newArrayList();
+        long[] recordOffsets = new long[64];
+        while (iter.hasNext()) {
+          for (Read read : iter.next().getAlignmentsList()) {
+            SAMRecord record = ReadUtils.makeSAMRecord(read, header);
+            long start = blocks.getFilePointer();
+            codec.encode(record);
+            numReads++;
+            if (null != indexOutput) {
+              if (recordOffsets.length < 2 * (indexRecords.size() + 1)) {
+                recordOffsets = Arrays.copyOf(recordOffsets, 2 * recordOffsets.length);
+              }
+              recordOffsets[2 * indexRecords.size()] = start;
+              recordOffsets[2 * indexRecords.size() + 1] = blocks.getFilePointer();
+              indexRecords.add(new IndexRecord(record));
+            }
+          }
+        }
+        blocks.close();
+        return new ShardPart(stripTerminator(bytes.toByteArray()), numReads, indexRecords,
+            recordOffsets);
+      }
+    };
+  }
+
+  /**
+   * @return the BAM header, as BGZF blocks without the terminator
+   */
+  static byte[] makeHeaderBlocks(SAMFileHeader header) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bytes);
+    writer.close();
+    return stripTerminator(bytes.toByteArray());
+  }
+
+  private static byte[] stripTerminator(byte[] blocks) throws IOException {
+    byte[] terminator = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+    int length = blocks.length - terminator.length;
+    if (length < 0
+        || !Arrays.equals(terminator, Arrays.copyOfRange(blocks, length, blocks.length))) {
+      throw new IOException("BGZF output does not end with the terminator block");
+    }
+    return Arrays.copyOf(blocks, length);
+  }
+}
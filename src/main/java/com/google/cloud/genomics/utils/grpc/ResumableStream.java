@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.api.client.util.BackOff;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The state shared by the blocking and asynchronous genomic data streams which allows a failed
+ * stream to be resumed at the last known good start position without returning duplicate data.
+ *
+ * @param <RequestT> Streaming request type.
+ * @param <ResponseT> Streaming response type.
+ * @param <ItemT> Genomic data type returned by stream.
+ * @param <StubT> Stub type.
+ */
+abstract class ResumableStream<RequestT, ResponseT, ItemT, StubT extends io.grpc.stub.AbstractStub<StubT>> {
+
+  protected final ManagedChannel genomicsChannel;
+  protected final Predicate<ItemT> shardPredicate;
+  protected final StubT stub;
+  protected final RequestT originalRequest;
+
+  // Whether the shard predicate is the strict shard boundary for the original request, which only
+  // excludes the data starting before the start of the shard.
+  private boolean strictShardBoundary = false;
+
+  // Whether the channel is shut down once the stream is exhausted or has failed.
+  private boolean shutdownChannelWhenDone = true;
+  // The lease on the channel to release instead, if the channel is from a GenomicsChannelPool.
+  private GenomicsChannelPool.Lease lease = null;
+  // Whether the channel was already shut down or its lease released.
+  private final AtomicBoolean channelDone = new AtomicBoolean(false);
+
+  private StreamRetryPolicy.Instance retryPolicy;
+  private StreamMetrics metrics;
+
+  /**
+   * The start and id of a data item, which are published together so that a cursor taken on
+   * another thread never pairs the start of one item with the id of another.
+   */
+  private static final class Position {
+    static final Position NONE = new Position(0, null);
+
+    final long itemStart;
+    final String itemId;
+
+    Position(long itemStart, String itemId) {
+      this.itemStart = itemStart;
+      this.itemId = itemId;
+    }
+  }
+
+  // Stateful members used to facilitate complex retry behavior for gRPC streams.
+  private volatile Position lastReceived;
+  private String idSentinel;
+  private boolean retrying;
+
+  // The position of the last data item returned to the client, from which the cursor is taken.  It
+  // is the last item received unless the client consumes the data one item at a time.
+  private volatile Position lastReturned;
+  private volatile boolean trackReturnedItems;
+
+  ResumableStream(ManagedChannel channel, RequestT request, Predicate<ItemT> shardPredicate) {
+    this.originalRequest = request;
+    this.shardPredicate = shardPredicate;
+    this.genomicsChannel = channel;
+    stub = createStub(genomicsChannel);
+
+    retryPolicy = StreamRetryPolicy.defaultPolicy().createInstance();
+    metrics = new StreamMetrics();
+
+    // RETRY STATE: Initialize settings.
+    lastReceived = Position.NONE;
+    idSentinel = null;
+    retrying = false;
+    lastReturned = Position.NONE;
+    trackReturnedItems = false;
+  }
+
+  abstract StubT createStub(ManagedChannel channel);
+
+  abstract long getRequestStart(RequestT streamRequest);
+
+  abstract long getDataItemStart(ItemT dataItem);
+
+  abstract String getDataItemId(ItemT dataItem);
+
+  abstract RequestT getRevisedRequest(long updatedStart);
+
+  abstract List<ItemT> getDataList(ResponseT response);
+
+  abstract ResponseT buildResponse(ResponseT response, Iterable<ItemT> dataList);
+
+  /**
+   * Declare that the shard predicate is exactly the strict shard boundary of the original request,
+   * so that it can be enforced with a binary search over the position-sorted data rather than by
+   * testing every data item.
+   */
+  void useStrictShardBoundary() {
+    strictShardBoundary = true;
+  }
+
+  /**
+   * @param retryPolicy The policy deciding when and after how long to retry this stream upon
+   *        failure. Defaults to {@link StreamRetryPolicy#defaultPolicy()}.
+   */
+  public void setRetryPolicy(StreamRetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy.createInstance();
+  }
+
+  /**
+   * @param metrics The metrics to which the retries of this stream are added, e.g. to aggregate
+   *        them across several streams.
+   */
+  public void setMetrics(StreamMetrics metrics) {
+    this.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  /**
+   * @return the metrics to which the retries of this stream are added
+   */
+  public StreamMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Consult the retry policy about a failure of the stream.
+   *
+   * @param t The failure.
+   * @return the number of milliseconds to wait before retrying, or {@link BackOff#STOP}
+   */
+  long nextBackOffMillis(Throwable t) {
+    long backOffMillis =
+        Thread.currentThread().isInterrupted() ? BackOff.STOP : retryPolicy.nextBackOffMillis(t);
+    if (BackOff.STOP == backOffMillis) {
+      retryPolicy.reset();
+    } else {
+      metrics.recordRetry(backOffMillis);
+      retrying = true;
+    }
+    return backOffMillis;
+  }
+
+  /**
+   * Leave the channel open when the stream is exhausted or has failed so that it can be shared by
+   * several streams, e.g. many concurrent shards over one connection. The caller then becomes
+   * responsible for shutting down the channel. Call this before the stream is started.
+   */
+  public void leaveChannelOpen() {
+    shutdownChannelWhenDone = false;
+  }
+
+  /**
+   * Release the lease on the channel when the stream is exhausted or has failed, instead of
+   * shutting the channel down.
+   *
+   * @param lease The lease on the channel of this stream.
+   */
+  void releaseWhenDone(GenomicsChannelPool.Lease lease) {
+    Preconditions.checkArgument(genomicsChannel == lease.getChannel(),
+        "The lease is not for the channel of this stream.");
+    this.lease = lease;
+    shutdownChannelWhenDone = false;
+  }
+
+  /**
+   * Shut down the channel, or release its lease, unless the channel is left open.  Only the first
+   * call has any effect, so that it is safe to call from both the stream and its consumer.
+   */
+  void shutdownChannel() {
+    if (!channelDone.compareAndSet(false, true)) {
+      return;
+    }
+    if (null != lease) {
+      lease.close();
+    } else if (shutdownChannelWhenDone) {
+      genomicsChannel.shutdownNow();
+    }
+  }
+
+  /**
+   * Snapshot the position of this stream, so that a new stream can later continue exactly where
+   * this one stopped, even in another process.  When the stream is consumed with a
+   * {@link StreamItemIterator}, the cursor is after the last item returned by that iterator, even
+   * if further responses were already read ahead.  The cursor can be taken on any thread.
+   *
+   * @return the cursor
+   */
+  public StreamCursor<RequestT> getCursor() {
+    Position position = lastReturned;
+    return new StreamCursor<RequestT>(originalRequest, position.itemStart, position.itemId);
+  }
+
+  /**
+   * Take the cursor from the data items as they are returned by {@link #itemReturned}, rather than
+   * from the responses as they are received.
+   */
+  void trackReturnedItems() {
+    trackReturnedItems = true;
+  }
+
+  /**
+   * Advance the cursor past a data item returned to the client.
+   *
+   * @param item The data item.
+   */
+  void itemReturned(ItemT item) {
+    lastReturned = new Position(getDataItemStart(item), getDataItemId(item));
+  }
+
+  /**
+   * Continue from the position of the cursor rather than from the start of the request.
+   *
+   * @param cursor A cursor from a stream for the same request.
+   */
+  void restoreCursor(StreamCursor<RequestT> cursor) {
+    Preconditions.checkArgument(originalRequest.equals(cursor.getRequest()),
+        "The cursor is not for the request of this stream.");
+    lastReceived = new Position(cursor.getLastItemStart(), cursor.getLastItemId());
+    lastReturned = lastReceived;
+  }
+
+  /**
+   * Determine the request with which to restart the stream after a failure, and set up the state
+   * needed to filter out data that was already returned.
+   *
+   * @return the request for the restarted stream
+   */
+  RequestT getRequestForRetry() {
+    Position position = lastReceived;
+    if (null == position.itemId) {
+      // We have never returned any data. No need to set up state needed to filter previously
+      // returned results.
+      return originalRequest;
+    }
+
+    // RETRY STATE: Enable the filtering of repeated data in filterResponse().
+    idSentinel = position.itemId;
+    metrics.recordResumedStream();
+
+    if (getRequestStart(originalRequest) < position.itemStart) {
+      // Create a new stream at the revised start position.
+      return getRevisedRequest(position.itemStart);
+    }
+    // The point at which the retry occurred was still within data overlapping the start of our
+    // original request but not beyond it yet.
+    return originalRequest;
+  }
+
+  /**
+   * Remove previously returned data and data failing the shard predicate from the response.
+   *
+   * The response is only rebuilt when data was actually removed; otherwise the original response
+   * is returned as-is.
+   *
+   * @param response A response received from the stream.
+   * @return the response to return to the client
+   */
+  ResponseT filterResponse(ResponseT response) {
+    if (retrying) {
+      // The stream is making progress again, so a later failure starts a new backoff sequence,
+      // unless the policy budgets its retries per stream, as the default policy does.
+      retryPolicy.reset();
+      retrying = false;
+    }
+    List<ItemT> dataList = getDataList(response);
+    int fromIndex = removeRepeatedData(dataList);
+    List<ItemT> filteredDataList = enforceShardPredicate(dataList, fromIndex);
+    if (filteredDataList.size() == dataList.size()) {
+      return response;
+    }
+    return buildResponse(response, filteredDataList);
+  }
+
+  /**
+   * @param dataList The data in a response received from the stream.
+   * @return the index of the first data item not previously returned
+   */
+  private int removeRepeatedData(List<ItemT> dataList) {
+    int fromIndex = 0;
+    if (null != idSentinel) {
+      // Filter out previously returned data items.
+      fromIndex = dataList.size();
+      for (int i = 0; i < dataList.size(); i++) {
+        if (idSentinel.equals(getDataItemId(dataList.get(i)))) {
+          // RETRY STATE: We're at the end of the repeated data. Unset the sentinel and proceed.
+          idSentinel = null;
+          fromIndex = i + 1;
+          break;
+        }
+      }
+      metrics.recordDuplicateItemsDropped(fromIndex);
+    }
+    // RETRY STATE: Keep the position of our last successfully returned data item in memory, just in
+    // case we need to retry.
+    if (fromIndex < dataList.size()) {
+      ItemT lastItem = dataList.get(dataList.size() - 1);
+      lastReceived = new Position(getDataItemStart(lastItem), getDataItemId(lastItem));
+      if (!trackReturnedItems) {
+        lastReturned = lastReceived;
+      }
+    }
+    return fromIndex;
+  }
+
+  private List<ItemT> enforceShardPredicate(List<ItemT> dataList, int fromIndex) {
+    if (null == shardPredicate) {
+      return dataList.subList(fromIndex, dataList.size());
+    }
+    if (strictShardBoundary) {
+      return dataList.subList(findStrictShardStart(dataList, fromIndex), dataList.size());
+    }
+    for (int i = fromIndex; i < dataList.size(); i++) {
+      if (!shardPredicate.apply(dataList.get(i))) {
+        // Only copy the data when some of it actually fails the predicate.
+        List<ItemT> filteredDataList = Lists.newArrayList(dataList.subList(fromIndex, i));
+        Iterables.addAll(filteredDataList,
+            Iterables.filter(dataList.subList(i + 1, dataList.size()), shardPredicate));
+        return filteredDataList;
+      }
+    }
+    return dataList.subList(fromIndex, dataList.size());
+  }
+
+  /**
+   * The stream returns data sorted by start position, so the data overlapping the start of the
+   * shard is a leading run which can be found with a binary search.
+   *
+   * @return the index of the first data item starting at or after the start of the shard
+   */
+  private int findStrictShardStart(List<ItemT> dataList, int fromIndex) {
+    long shardStart = getRequestStart(originalRequest);
+    int low = fromIndex;
+    int high = dataList.size();
+    // Once the stream is past the start of the shard, the first item is all we need to check.
+    if (low == high || getDataItemStart(dataList.get(low)) >= shardStart) {
+      return low;
+    }
+    low++;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getDataItemStart(dataList.get(mid)) < shardStart) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
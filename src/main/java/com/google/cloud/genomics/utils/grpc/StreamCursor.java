@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The position of a stream of genomic data: the original request, and the start and id of the last
+ * data item returned to the client.
+ *
+ * A cursor can be snapshotted periodically with {@link ResumableStream#getCursor()} and saved to a
+ * file, so that if the process dies a new stream can be created from the cursor, e.g. with
+ * {@link VariantStreamIterator#resume}, which continues exactly after the last data item returned
+ * before the snapshot.
+ *
+ * @param <RequestT> Streaming request type.
+ */
+@SuppressWarnings("serial")
+public class StreamCursor<RequestT> implements Serializable {
+  private final RequestT request;
+  private final long lastItemStart;
+  private final String lastItemId;
+
+  /**
+   * @param request The original request of the stream.
+   * @param lastItemStart The start position of the last data item returned, if any.
+   * @param lastItemId The id of the last data item returned, or null if none was returned.
+   */
+  public StreamCursor(RequestT request, long lastItemStart, String lastItemId) {
+    this.request = Preconditions.checkNotNull(request);
+    this.lastItemStart = lastItemStart;
+    this.lastItemId = lastItemId;
+  }
+
+  /**
+   * @return the original request of the stream
+   */
+  public RequestT getRequest() {
+    return request;
+  }
+
+  /**
+   * @return the start position of the last data item returned
+   */
+  public long getLastItemStart() {
+    return lastItemStart;
+  }
+
+  /**
+   * @return the id of the last data item returned, or null if none was returned
+   */
+  public String getLastItemId() {
+    return lastItemId;
+  }
+
+  /**
+   * Write the cursor to a file. The file is replaced atomically, so a crash while saving leaves the
+   * previous cursor intact.
+   *
+   * @param file The file.
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    File tempFile =
+        File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      try (FileOutputStream out = new FileOutputStream(tempFile);
+          ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+        objectOut.writeObject(this);
+        objectOut.flush();
+        out.getFD().sync();
+      }
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  /**
+   * Read a cursor written by {@link #save(File)}.
+   *
+   * @param file The file.
+   * @return the cursor
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public static <RequestT> StreamCursor<RequestT> load(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file);
+        ObjectInputStream objectIn = new ObjectInputStream(in)) {
+      return (StreamCursor<RequestT>) objectIn.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Not a stream cursor: " + file, e);
+    }
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof StreamCursor)) {
+      return false;
+    }
+    StreamCursor<?> that = (StreamCursor<?>) obj;
+    return request.equals(that.request) && lastItemStart == that.lastItemStart
+        && Objects.equal(lastItemId, that.lastItemId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(request, lastItemStart, lastItemId);
+  }
+
+  @Override
+  public String toString() {
+    return "request: " + request + ", last item start: " + lastItemStart + ", last item id: "
+        + lastItemId;
+  }
+}
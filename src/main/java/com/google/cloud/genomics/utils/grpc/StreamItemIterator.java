@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An iterator over the individual data items of a {@link GenomicsStreamIterator}, such as the
+ * variants of a {@link VariantStreamIterator} or the reads of a {@link ReadStreamIterator}.
+ *
+ * With a positive prefetch depth, a background thread reads up to that many responses from the
+ * stream ahead of the consumer, so receiving and parsing the next responses overlaps with the
+ * consumer's work on the current one.  With a prefetch depth of zero, responses are read on the
+ * consumer's thread as they are needed.
+ *
+ * Failures of the stream, after its retries are consumed, are rethrown to the consumer.
+ *
+ * The cursor of the stream, as returned by {@link #getCursor()}, is after the last item returned
+ * by this iterator rather than after the last response read ahead.
+ *
+ * @param <ItemT> Genomic data type returned by stream.
+ */
+public class StreamItemIterator<ItemT> implements Iterator<ItemT>, Closeable {
+
+  public static final int DEFAULT_PREFETCH_DEPTH = 2;
+
+  private static final ThreadFactory READER_THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("stream-item-reader-%d").setDaemon(true).build();
+
+  /**
+   * An entry in the prefetch queue: the data of a response, the end of the stream, or the failure
+   * of the stream.
+   */
+  private static class Page<ItemT> {
+    final List<ItemT> items;
+    final RuntimeException failure;
+
+    Page(List<ItemT> items, RuntimeException failure) {
+      this.items = items;
+      this.failure = failure;
+    }
+
+    boolean isEndOfStream() {
+      return null == items && null == failure;
+    }
+  }
+
+  private final GenomicsStreamIterator<?, ?, ItemT, ?> stream;
+  private final BlockingQueue<Page<ItemT>> queue;
+  private final Thread reader;
+
+  private Iterator<ItemT> currentPage = Collections.emptyIterator();
+  private boolean exhausted = false;
+  private volatile boolean closed = false;
+
+  StreamItemIterator(GenomicsStreamIterator<?, ?, ItemT, ?> stream, int prefetchDepth) {
+    Preconditions.checkArgument(0 <= prefetchDepth, "prefetchDepth must not be negative");
+    this.stream = stream;
+    stream.trackReturnedItems();
+    if (0 == prefetchDepth) {
+      queue = null;
+      reader = null;
+    } else {
+      queue = new LinkedBlockingQueue<>(prefetchDepth);
+      reader = READER_THREAD_FACTORY.newThread(new Reader());
+      reader.start();
+    }
+  }
+
+  private class Reader implements Runnable {
+    @Override
+    public void run() {
+      try {
+        Page<ItemT> end = new Page<>(null, null);
+        try {
+          while (!closed && stream.hasNext()) {
+            queue.put(new Page<>(stream.nextItems(), null));
+          }
+        } catch (RuntimeException e) {
+          end = new Page<>(null, e);
+        }
+        queue.put(end);
+      } catch (InterruptedException e) {
+        // The iterator was closed while the reader was waiting on the consumer.
+        Thread.currentThread().interrupt();
+      } finally {
+        if (closed) {
+          // The consumer stopped early, so the stream was not read to its end, which is where it
+          // would have shut down its channel itself.
+          stream.shutdownChannel();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the data of the next response, or null if the stream is exhausted
+   */
+  private List<ItemT> nextPage() {
+    if (null == queue) {
+      return stream.hasNext() ? stream.nextItems() : null;
+    }
+    Page<ItemT> page;
+    try {
+      page = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the stream", e);
+    }
+    if (null != page.failure) {
+      throw page.failure;
+    }
+    return page.isEndOfStream() ? null : page.items;
+  }
+
+  /**
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    while (!currentPage.hasNext()) {
+      Preconditions.checkState(!closed, "This iterator has been closed.");
+      if (exhausted) {
+        return false;
+      }
+      List<ItemT> items = nextPage();
+      if (null == items) {
+        exhausted = true;
+        return false;
+      }
+      currentPage = items.iterator();
+    }
+    return true;
+  }
+
+  /**
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public ItemT next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    ItemT item = currentPage.next();
+    stream.itemReturned(item);
+    return item;
+  }
+
+  /**
+   * Snapshot the position of the stream after the last item returned by this iterator, e.g. to
+   * save it with {@link StreamCursor#save}.  The cursor can be taken on any thread.
+   *
+   * @return the cursor
+   */
+  public StreamCursor<?> getCursor() {
+    return stream.getCursor();
+  }
+
+  /**
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop reading ahead, and shut down the channel of the stream, or release its lease, once the
+   * stream is no longer being read.  Once closed, this iterator can no longer be used.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (null == reader) {
+      stream.shutdownChannel();
+    } else {
+      // The reader shuts down the channel when it stops.
+      reader.interrupt();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the retries of gRPC streams. One instance may be shared by many streams to
+ * aggregate across them.
+ */
+public class StreamMetrics {
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong resumedStreams = new AtomicLong();
+  private final AtomicLong duplicateItemsDropped = new AtomicLong();
+  private final AtomicLong backOffMillis = new AtomicLong();
+
+  void recordRetry(long backOffMillis) {
+    retries.incrementAndGet();
+    this.backOffMillis.addAndGet(backOffMillis);
+  }
+
+  void recordResumedStream() {
+    resumedStreams.incrementAndGet();
+  }
+
+  void recordDuplicateItemsDropped(int count) {
+    duplicateItemsDropped.addAndGet(count);
+  }
+
+  /**
+   * @return the number of times a failed stream was retried
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return the number of retries which resumed a stream after some data had been returned
+   */
+  public long getResumedStreams() {
+    return resumedStreams.get();
+  }
+
+  /**
+   * @return the number of data items received again after a retry and dropped
+   */
+  public long getDuplicateItemsDropped() {
+    return duplicateItemsDropped.get();
+  }
+
+  /**
+   * @return the total time spent waiting to retry, in milliseconds
+   */
+  public long getBackOffMillis() {
+    return backOffMillis.get();
+  }
+
+  @Override
+  public String toString() {
+    return "retries: " + getRetries() + ", resumed streams: " + getResumedStreams()
+        + ", duplicate items dropped: " + getDuplicateItemsDropped() + ", backoff millis: "
+        + getBackOffMillis();
+  }
+}
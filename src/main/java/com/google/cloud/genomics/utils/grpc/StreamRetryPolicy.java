@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import io.grpc.Status;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An object describing when and after how long to retry a gRPC stream that failed.
+ *
+ * This is the streaming counterpart of {@link com.google.cloud.genomics.utils.RetryPolicy}.
+ */
+public abstract class StreamRetryPolicy implements Serializable {
+
+  private static final long serialVersionUID = -3875073316700472559L;
+
+  /**
+   * An instance is instantiated for each stream and is consulted each time the stream fails.
+   */
+  public abstract class Instance {
+
+    /**
+     * How long to wait before retrying the stream.
+     *
+     * @param t The failure.
+     * @return the number of milliseconds to wait, or {@link BackOff#STOP} to not retry
+     */
+    public abstract long nextBackOffMillis(Throwable t);
+
+    /**
+     * Called once the stream is making progress again after a retry, so that a later failure
+     * starts a new backoff sequence.
+     */
+    public void reset() {
+    }
+  }
+
+  public abstract Instance createInstance();
+
+  /**
+   * The same exponential backoff with random jitter that the stream iterators have always used.
+   * As before, its maximum elapsed time is measured from the start of the stream: unlike the other
+   * policies, it is not reset when the stream makes progress after a retry.  For details, see
+   * https://developers.google.com/api-client-library/java/google-http-java-client/reference/1.19.0/com/google/api/client/util/ExponentialBackOff
+   */
+  public static StreamRetryPolicy defaultPolicy() {
+    return exponentialBackOff(ExponentialBackOff.DEFAULT_INITIAL_INTERVAL_MILLIS,
+        ExponentialBackOff.DEFAULT_MULTIPLIER, ExponentialBackOff.DEFAULT_MAX_INTERVAL_MILLIS,
+        ExponentialBackOff.DEFAULT_MAX_ELAPSED_TIME_MILLIS, false);
+  }
+
+  public static StreamRetryPolicy neverRetry() {
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        return new Instance() {
+          @Override public long nextBackOffMillis(Throwable t) {
+            return BackOff.STOP;
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Exponential backoff with random jitter of up to half of each interval.
+   *
+   * @param initialIntervalMillis The first interval.
+   * @param multiplier The factor by which the interval grows after each retry.
+   * @param maxIntervalMillis The limit on the interval.
+   * @param maxElapsedTimeMillis How long to keep retrying before giving up, measured from the start
+   *        of the stream or from the last time it made progress after a retry.
+   */
+  public static StreamRetryPolicy exponentialBackOff(int initialIntervalMillis,
+      double multiplier, int maxIntervalMillis, int maxElapsedTimeMillis) {
+    return exponentialBackOff(initialIntervalMillis, multiplier, maxIntervalMillis,
+        maxElapsedTimeMillis, true);
+  }
+
+  /**
+   * @param resetOnProgress Whether to start a new backoff sequence once the stream makes progress
+   *        after a retry, or only once the stream gives up.
+   */
+  private static StreamRetryPolicy exponentialBackOff(final int initialIntervalMillis,
+      final double multiplier, final int maxIntervalMillis, final int maxElapsedTimeMillis,
+      final boolean resetOnProgress) {
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        final ExponentialBackOff backoff = new ExponentialBackOff.Builder()
+            .setInitialIntervalMillis(initialIntervalMillis)
+            .setMultiplier(multiplier)
+            .setMaxIntervalMillis(maxIntervalMillis)
+            .setMaxElapsedTimeMillis(maxElapsedTimeMillis)
+            .build();
+        return new Instance() {
+          @Override public long nextBackOffMillis(Throwable t) {
+            long backOffMillis;
+            try {
+              backOffMillis = backoff.nextBackOffMillis();
+            } catch (IOException e) {
+              // Something strange happened, just give up.
+              backOffMillis = BackOff.STOP;
+            }
+            if (BackOff.STOP == backOffMillis) {
+              backoff.reset();
+            }
+            return backOffMillis;
+          }
+
+          @Override public void reset() {
+            if (resetOnProgress) {
+              backoff.reset();
+            }
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * "Decorrelated jitter" backoff: each interval is chosen at random between the base interval and
+   * three times the previous interval, up to a cap. Streams that failed at the same moment, e.g.
+   * because a server went away, therefore spread out their retries instead of retrying in step.
+   *
+   * @param baseMillis The minimum interval.
+   * @param capMillis The maximum interval.
+   * @param maxAttempts How many consecutive retries to make before giving up.
+   */
+  public static StreamRetryPolicy decorrelatedJitter(final long baseMillis, final long capMillis,
+      final int maxAttempts) {
+    Preconditions.checkArgument(0 < baseMillis && baseMillis <= capMillis,
+        "baseMillis must be positive and no more than capMillis");
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        return new Instance() {
+          private long sleepMillis = baseMillis;
+          private int attempts = 0;
+
+          @Override public long nextBackOffMillis(Throwable t) {
+            if (attempts++ >= maxAttempts) {
+              return BackOff.STOP;
+            }
+            sleepMillis = Math.min(capMillis,
+                ThreadLocalRandom.current().nextLong(baseMillis, sleepMillis * 3 + 1));
+            return sleepMillis;
+          }
+
+          @Override public void reset() {
+            sleepMillis = baseMillis;
+            attempts = 0;
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Only retry failures with one of the given status codes, e.g. UNAVAILABLE and
+   * DEADLINE_EXCEEDED, and fail immediately on all others.
+   *
+   * @param codes The status codes to retry.
+   * @return a policy applying this policy to failures with those status codes
+   */
+  public StreamRetryPolicy retryOn(Status.Code... codes) {
+    Preconditions.checkArgument(codes.length > 0, "At least one status code must be given");
+    final StreamRetryPolicy delegate = this;
+    final Set<Status.Code> retryableCodes = ImmutableSet.copyOf(EnumSet.of(codes[0], codes));
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        final Instance instance = delegate.createInstance();
+        return new Instance() {
+          @Override public long nextBackOffMillis(Throwable t) {
+            if (!retryableCodes.contains(Status.fromThrowable(t).getCode())) {
+              return BackOff.STOP;
+            }
+            return instance.nextBackOffMillis(t);
+          }
+
+          @Override public void reset() {
+            instance.reset();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Limit the retries of all streams using the returned policy by a shared budget, so that a
+   * server outage does not turn into a storm of retries from every stream on the channel.
+   *
+   * @param budget The budget, typically one per channel.
+   * @return a policy applying this policy as long as the budget is not exhausted
+   */
+  public StreamRetryPolicy withBudget(final RetryBudget budget) {
+    Preconditions.checkNotNull(budget);
+    final StreamRetryPolicy delegate = this;
+    return new StreamRetryPolicy() {
+      private static final long serialVersionUID = 1L;
+
+      @Override public Instance createInstance() {
+        final Instance instance = delegate.createInstance();
+        return new Instance() {
+          @Override public long nextBackOffMillis(Throwable t) {
+            long backOffMillis = instance.nextBackOffMillis(t);
+            if (BackOff.STOP == backOffMillis || !budget.tryAcquire()) {
+              return BackOff.STOP;
+            }
+            return backOffMillis;
+          }
+
+          @Override public void reset() {
+            instance.reset();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * A token bucket of retries shared by several streams. Each retry takes a token and tokens are
+   * replenished at a fixed rate up to the size of the bucket.
+   */
+  public static class RetryBudget implements Serializable {
+    private static final long serialVersionUID = -6742578051888976571L;
+
+    private final double maxTokens;
+    private final double tokensPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param maxRetries The number of retries that may be made in a burst.
+     * @param retriesPerSecond The sustained rate of retries allowed.
+     */
+    public RetryBudget(int maxRetries, double retriesPerSecond) {
+      Preconditions.checkArgument(0 < maxRetries, "maxRetries must be positive");
+      Preconditions.checkArgument(0 <= retriesPerSecond, "retriesPerSecond must not be negative");
+      this.maxTokens = maxRetries;
+      this.tokensPerSecond = retriesPerSecond;
+      this.tokens = maxRetries;
+      this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return whether a retry may be made now
+     */
+    public synchronized boolean tryAcquire() {
+      long now = System.nanoTime();
+      tokens = Math.min(maxTokens, tokens + (now - lastRefillNanos) * tokensPerSecond / 1e9);
+      lastRefillNanos = now;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.genomics.v1.Variant;
+import com.google.genomics.v1.VariantCall;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, columnar block of variants.
+ *
+ * Instead of a protocol buffer per variant and per call, the block keeps the fields used for
+ * merging and analysis in arrays: start and end positions as longs, reference names, alleles and
+ * callset names as indexes into dictionaries shared by all variants of the block, and genotypes as
+ * a packed byte array.  The remaining fields, such as ids, quality and info, are only kept for the
+ * variants and calls which have them.  Converting a variant to the block and back therefore
+ * returns an equal variant.
+ *
+ * The predicates of {@link VariantUtils} have counterparts here which work on the columns
+ * directly, without materializing the variant.
+ *
+ * Variants are addressed by their index in the block and calls by their index within the variant.
+ */
+public final class VariantBlock {
+
+  /**
+   * A builder class for {@link VariantBlock} objects.
+   */
+  public static class Builder {
+    private final Map<String, Integer> referenceNameIndexes = Maps.newHashMap();
+    private final List<String> referenceNames = Lists.newArrayList();
+    private final Map<String, Integer> alleleIndexes = Maps.newHashMap();
+    private final List<String> alleles = Lists.newArrayList();
+    private final Map<String, Integer> callSetIndexes = Maps.newHashMap();
+    private final List<String> callSetNames = Lists.newArrayList();
+
+    private int size = 0;
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int[] referenceNameColumn = new int[16];
+    private int[] referenceBasesColumn = new int[16];
+    private int[] alternateOffsets = new int[17];
+    private int[] alternateBasesColumn = new int[16];
+    private int[] callOffsets = new int[17];
+    private int[] callSetColumn = new int[16];
+    private int[] genotypeOffsets = new int[17];
+    private byte[] genotypeColumn = new byte[16];
+    private final List<Variant> variantRest = Lists.newArrayList();
+    private final List<VariantCall> callRest = Lists.newArrayList();
+
+    Builder() {
+    }
+
+    /**
+     * Add a variant to the end of the block.
+     *
+     * @param variant The variant.
+     * @return this builder
+     * @throws IllegalArgumentException if a genotype does not fit in a byte
+     */
+    public Builder add(Variant variant) {
+      if (starts.length == size) {
+        int capacity = 2 * size;
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        referenceNameColumn = Arrays.copyOf(referenceNameColumn, capacity);
+        referenceBasesColumn = Arrays.copyOf(referenceBasesColumn, capacity);
+        alternateOffsets = Arrays.copyOf(alternateOffsets, capacity + 1);
+        callOffsets = Arrays.copyOf(callOffsets, capacity + 1);
+      }
+      starts[size] = variant.getStart();
+      ends[size] = variant.getEnd();
+      referenceNameColumn[size] = index(referenceNameIndexes, referenceNames,
+          variant.getReferenceName());
+      referenceBasesColumn[size] = index(alleleIndexes, alleles, variant.getReferenceBases());
+
+      int alternates = alternateOffsets[size];
+      alternateBasesColumn = ensureCapacity(alternateBasesColumn,
+          alternates + variant.getAlternateBasesCount());
+      for (String alternateBases : variant.getAlternateBasesList()) {
+        alternateBasesColumn[alternates++] = index(alleleIndexes, alleles, alternateBases);
+      }
+      alternateOffsets[size + 1] = alternates;
+
+      int calls = callOffsets[size];
+      callSetColumn = ensureCapacity(callSetColumn, calls + variant.getCallsCount());
+      if (genotypeOffsets.length < calls + variant.getCallsCount() + 1) {
+        genotypeOffsets = Arrays.copyOf(genotypeOffsets,
+            Math.max(2 * genotypeOffsets.length, calls + variant.getCallsCount() + 1));
+      }
+      for (VariantCall call : variant.getCallsList()) {
+        callSetColumn[calls] = index(callSetIndexes, callSetNames, call.getCallSetName());
+        int genotypes = genotypeOffsets[calls];
+        if (genotypeColumn.length < genotypes + call.getGenotypeCount()) {
+          genotypeColumn = Arrays.copyOf(genotypeColumn,
+              Math.max(2 * genotypeColumn.length, genotypes + call.getGenotypeCount()));
+        }
+        for (int genotype : call.getGenotypeList()) {
+          Preconditions.checkArgument(Byte.MIN_VALUE <= genotype && genotype <= Byte.MAX_VALUE,
+              "Genotype %s of callset %s is out of range", genotype, call.getCallSetName());
+          genotypeColumn[genotypes++] = (byte) genotype;
+        }
+        genotypeOffsets[calls + 1] = genotypes;
+        VariantCall rest = call.toBuilder().clearCallSetName().clearGenotype().build();
+        callRest.add(rest.equals(VariantCall.getDefaultInstance()) ? null : rest);
+        calls++;
+      }
+      callOffsets[size + 1] = calls;
+
+      Variant rest = variant.toBuilder().clearReferenceName().clearStart().clearEnd()
+          .clearReferenceBases().clearAlternateBases().clearCalls().build();
+      variantRest.add(rest.equals(Variant.getDefaultInstance()) ? null : rest);
+      size++;
+      return this;
+    }
+
+    /**
+     * Add variants to the end of the block.
+     *
+     * @param variants The variants.
+     * @return this builder
+     */
+    public Builder addAll(Iterable<Variant> variants) {
+      for (Variant variant : variants) {
+        add(variant);
+      }
+      return this;
+    }
+
+    public VariantBlock build() {
+      return new VariantBlock(this);
+    }
+
+    private static int index(Map<String, Integer> indexes, List<String> dictionary, String value) {
+      Integer index = indexes.get(value);
+      if (null == index) {
+        index = dictionary.size();
+        indexes.put(value, index);
+        dictionary.add(value);
+      }
+      return index;
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+      return (array.length < capacity)
+          ? Arrays.copyOf(array, Math.max(2 * array.length, capacity)) : array;
+    }
+  }
+
+  /**
+   * @return a builder for an empty block
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @param variants The variants.
+   * @return a block holding the variants, in order
+   */
+  public static VariantBlock of(Iterable<Variant> variants) {
+    return builder().addAll(variants).build();
+  }
+
+  private final int size;
+  private final String[] referenceNames;
+  private final String[] alleles;
+  private final String[] callSetNames;
+  private final long[] starts;
+  private final long[] ends;
+  private final int[] referenceNameColumn;
+  private final int[] referenceBasesColumn;
+  private final int[] alternateOffsets;
+  private final int[] alternateBasesColumn;
+  private final int[] callOffsets;
+  private final int[] callSetColumn;
+  private final int[] genotypeOffsets;
+  private final byte[] genotypeColumn;
+  private final Variant[] variantRest;
+  private final VariantCall[] callRest;
+
+  // Per allele of the dictionary: whether it is a single base, and whether it is the GATK
+  // non-variant segment alternate.
+  private final boolean[] alleleIsOneBase;
+  private final boolean[] alleleIsNonVariantSegmentAlt;
+
+  private VariantBlock(Builder builder) {
+    size = builder.size;
+    int calls = builder.callOffsets[size];
+    referenceNames = builder.referenceNames.toArray(new String[0]);
+    alleles = builder.alleles.toArray(new String[0]);
+    callSetNames = builder.callSetNames.toArray(new String[0]);
+    starts = Arrays.copyOf(builder.starts, size);
+    ends = Arrays.copyOf(builder.ends, size);
+    referenceNameColumn = Arrays.copyOf(builder.referenceNameColumn, size);
+    referenceBasesColumn = Arrays.copyOf(builder.referenceBasesColumn, size);
+    alternateOffsets = Arrays.copyOf(builder.alternateOffsets, size + 1);
+    alternateBasesColumn =
+        Arrays.copyOf(builder.alternateBasesColumn, builder.alternateOffsets[size]);
+    callOffsets = Arrays.copyOf(builder.callOffsets, size + 1);
+    callSetColumn = Arrays.copyOf(builder.callSetColumn, calls);
+    genotypeOffsets = Arrays.copyOf(builder.genotypeOffsets, calls + 1);
+    genotypeColumn = Arrays.copyOf(builder.genotypeColumn, builder.genotypeOffsets[calls]);
+    variantRest = builder.variantRest.toArray(new Variant[0]);
+    callRest = builder.callRest.toArray(new VariantCall[0]);
+
+    alleleIsOneBase = new boolean[alleles.length];
+    alleleIsNonVariantSegmentAlt = new boolean[alleles.length];
+    for (int i = 0; i < alleles.length; i++) {
+      alleleIsOneBase[i] = 1 == alleles[i].length();
+      alleleIsNonVariantSegmentAlt[i] =
+          VariantUtils.GATK_NON_VARIANT_SEGMENT_ALT.equals(alleles[i]);
+    }
+  }
+
+  /**
+   * @return the number of variants in the block
+   */
+  public int size() {
+    return size;
+  }
+
+  public String getReferenceName(int variant) {
+    return referenceNames[referenceNameColumn[variant]];
+  }
+
+  public long getStart(int variant) {
+    return starts[variant];
+  }
+
+  public long getEnd(int variant) {
+    return ends[variant];
+  }
+
+  public String getReferenceBases(int variant) {
+    return alleles[referenceBasesColumn[variant]];
+  }
+
+  public int getAlternateBasesCount(int variant) {
+    return alternateOffsets[variant + 1] - alternateOffsets[variant];
+  }
+
+  public String getAlternateBases(int variant, int alternate) {
+    Preconditions.checkElementIndex(alternate, getAlternateBasesCount(variant));
+    return alleles[alternateBasesColumn[alternateOffsets[variant] + alternate]];
+  }
+
+  public int getCallCount(int variant) {
+    return callOffsets[variant + 1] - callOffsets[variant];
+  }
+
+  public String getCallSetName(int variant, int call) {
+    return callSetNames[callSetColumn[callIndex(variant, call)]];
+  }
+
+  public int getGenotypeCount(int variant, int call) {
+    int index = callIndex(variant, call);
+    return genotypeOffsets[index + 1] - genotypeOffsets[index];
+  }
+
+  public int getGenotype(int variant, int call, int genotype) {
+    Preconditions.checkElementIndex(genotype, getGenotypeCount(variant, call));
+    return genotypeColumn[genotypeOffsets[callIndex(variant, call)] + genotype];
+  }
+
+  private int callIndex(int variant, int call) {
+    Preconditions.checkElementIndex(call, getCallCount(variant));
+    return callOffsets[variant] + call;
+  }
+
+  /**
+   * @return the callset names of the block, indexed as in {@link #getCallSetIndex}
+   */
+  public List<String> getCallSetNames() {
+    return Arrays.asList(callSetNames);
+  }
+
+  /**
+   * @return the index of the callset of the call in {@link #getCallSetNames}
+   */
+  public int getCallSetIndex(int variant, int call) {
+    return callSetColumn[callIndex(variant, call)];
+  }
+
+  /**
+   * @see VariantUtils#HAS_ALTERNATE
+   */
+  public boolean hasAlternate(int variant) {
+    return 0 < getAlternateBasesCount(variant);
+  }
+
+  /**
+   * @see VariantUtils#IS_SNP
+   */
+  public boolean isSnp(int variant) {
+    if (!hasAlternate(variant) || !alleleIsOneBase[referenceBasesColumn[variant]]) {
+      return false;
+    }
+    for (int i = alternateOffsets[variant]; i < alternateOffsets[variant + 1]; i++) {
+      if (!alleleIsOneBase[alternateBasesColumn[i]]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @see VariantUtils#IS_NON_VARIANT_SEGMENT
+   */
+  public boolean isNonVariantSegment(int variant) {
+    if (!hasAlternate(variant) && alleleIsOneBase[referenceBasesColumn[variant]]) {
+      return true;
+    }
+    for (int i = alternateOffsets[variant]; i < alternateOffsets[variant + 1]; i++) {
+      if (!alleleIsNonVariantSegmentAlt[alternateBasesColumn[i]]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @see VariantUtils#isOverlapping(Variant, Variant)
+   */
+  public boolean isOverlapping(int blockRecord, int variant) {
+    return starts[blockRecord] <= starts[variant] && ends[blockRecord] >= starts[variant] + 1;
+  }
+
+  /**
+   * Materialize a variant of the block.
+   *
+   * @param variant The index of the variant.
+   * @return the variant, equal to the one which was added
+   */
+  public Variant getVariant(int variant) {
+    Preconditions.checkElementIndex(variant, size);
+    Variant.Builder builder = (null == variantRest[variant])
+        ? Variant.newBuilder() : variantRest[variant].toBuilder();
+    builder.setReferenceName(getReferenceName(variant))
+        .setStart(starts[variant])
+        .setEnd(ends[variant])
+        .setReferenceBases(getReferenceBases(variant));
+    for (int i = alternateOffsets[variant]; i < alternateOffsets[variant + 1]; i++) {
+      builder.addAlternateBases(alleles[alternateBasesColumn[i]]);
+    }
+    for (int i = callOffsets[variant]; i < callOffsets[variant + 1]; i++) {
+      VariantCall.Builder call = (null == callRest[i])
+          ? VariantCall.newBuilder() : callRest[i].toBuilder();
+      call.setCallSetName(callSetNames[callSetColumn[i]]);
+      for (int j = genotypeOffsets[i]; j < genotypeOffsets[i + 1]; j++) {
+        call.addGenotype(genotypeColumn[j]);
+      }
+      builder.addCalls(call);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return all variants of the block, materialized
+   */
+  public List<Variant> toVariants() {
+    List<Variant> variants = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      variants.add(getVariant(i));
+    }
+    return variants;
+  }
+}
@@ -13,8 +13,11 @@
  */
 package com.google.cloud.genomics.utils.grpc;
 
+import com.google.common.collect.ImmutableList;
 import com.google.genomics.v1.Variant;
 
+import java.util.Iterator;
+
 /**
  * Strategy pattern interface for variant merging logic.
  */
@@ -30,4 +33,20 @@ public interface VariantMergeStrategy {
    */
   public void merge(Long windowStart, Iterable<Variant> variants, VariantEmitterStrategy emitter);
 
+  /**
+   * Like {@link #merge}, but for variants and non-variant segments which are already sorted by
+   * {@link VariantUtils#NON_VARIANT_SEGMENT_COMPARATOR}, such as those from a
+   * {@link VariantStreamMerger}.  Implementations should consume the records incrementally and
+   * hold on only to those which may still overlap later records; this default implementation
+   * buffers them all and calls {@link #merge}.
+   *
+   * @param windowStart - use this to identify records that begin prior to the region we are computing, but overlap it
+   * @param sortedVariants - the sorted variants that overlap the region we are computing
+   * @param emitter - the strategy instance to use to emit results
+   */
+  public default void mergeSorted(Long windowStart, Iterator<Variant> sortedVariants,
+      VariantEmitterStrategy emitter) {
+    merge(windowStart, ImmutableList.copyOf(sortedVariants), emitter);
+  }
+
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.genomics.v1.Variant;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A k-way merge of several position-sorted streams of variants, such as the variants of
+ * {@link VariantStreamIterator}s for different variant sets over the same genomic region.
+ *
+ * The heads of the streams are kept in a heap ordered by {@link VariantUtils#CHROMOSOMAL_ORDER}.
+ * All records starting at the same position are gathered and returned sorted by
+ * {@link VariantUtils#NON_VARIANT_SEGMENT_COMPARATOR}, so the result can be fed straight into
+ * {@link MergeAllVariantsAtSameSite#mergeSorted}.  Only the head of each stream and the records at
+ * the current position are held in memory, rather than the whole window.
+ */
+public class VariantStreamMerger implements Iterator<Variant> {
+
+  /**
+   * The head of one of the streams being merged.
+   */
+  private static class Source {
+    final PeekingIterator<Variant> variants;
+    final int index;
+
+    Source(Iterator<Variant> variants, int index) {
+      this.variants = Iterators.peekingIterator(variants);
+      this.index = index;
+    }
+  }
+
+  // Ties are broken by the order of the streams so that the result is deterministic.
+  private static final Comparator<Source> BY_HEAD = new Comparator<Source>() {
+    @Override
+    public int compare(Source s1, Source s2) {
+      int comparison =
+          VariantUtils.CHROMOSOMAL_ORDER.compare(s1.variants.peek(), s2.variants.peek());
+      return (0 != comparison) ? comparison : Integer.compare(s1.index, s2.index);
+    }
+  };
+
+  private final PriorityQueue<Source> heap;
+  private final List<Variant> currentPosition = Lists.newArrayList();
+  private Iterator<Variant> currentPositionIterator = Collections.emptyIterator();
+
+  /**
+   * @param streams The streams to merge, each sorted by reference name and start position, such
+   *        as those returned by {@link GenomicsStreamIterator#items()}.
+   */
+  public VariantStreamMerger(List<? extends Iterator<Variant>> streams) {
+    heap = new PriorityQueue<>(Math.max(1, streams.size()), BY_HEAD);
+    for (int i = 0; i < streams.size(); i++) {
+      addSource(new Source(streams.get(i), i));
+    }
+  }
+
+  private void addSource(Source source) {
+    if (source.variants.hasNext()) {
+      heap.add(source);
+    }
+  }
+
+  /**
+   * Gather all records at the next position from the heads of the streams.
+   */
+  private void fillCurrentPosition() {
+    currentPosition.clear();
+    Variant first = heap.peek().variants.peek();
+    while (!heap.isEmpty() && isSamePosition(first, heap.peek().variants.peek())) {
+      Source source = heap.poll();
+      currentPosition.add(source.variants.next());
+      if (source.variants.hasNext()) {
+        Preconditions.checkState(
+            !isBefore(source.variants.peek(), first),
+            "Stream %s is not sorted by position: %s:%s follows %s:%s", source.index,
+            source.variants.peek().getReferenceName(), source.variants.peek().getStart(),
+            first.getReferenceName(), first.getStart());
+        heap.add(source);
+      }
+    }
+    Collections.sort(currentPosition, VariantUtils.NON_VARIANT_SEGMENT_COMPARATOR);
+    currentPositionIterator = currentPosition.iterator();
+  }
+
+  private static boolean isSamePosition(Variant v1, Variant v2) {
+    return v1.getStart() == v2.getStart() && v1.getReferenceName().equals(v2.getReferenceName());
+  }
+
+  private static boolean isBefore(Variant v1, Variant v2) {
+    int comparison = v1.getReferenceName().compareTo(v2.getReferenceName());
+    return comparison < 0 || (0 == comparison && v1.getStart() < v2.getStart());
+  }
+
+  /**
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    if (!currentPositionIterator.hasNext() && !heap.isEmpty()) {
+      fillCurrentPosition();
+    }
+    return currentPositionIterator.hasNext();
+  }
+
+  /**
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Variant next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return currentPositionIterator.next();
+  }
+
+  /**
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
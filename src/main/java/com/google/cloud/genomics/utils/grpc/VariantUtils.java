@@ -15,9 +15,7 @@ package com.google.cloud.genomics.utils.grpc;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import com.google.common.collect.ComparisonChain;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 import com.google.genomics.v1.Variant;
 
@@ -39,26 +37,112 @@ public class VariantUtils {
   public static final String GATK_NON_VARIANT_SEGMENT_ALT = "<NON_REF>";
 
   /**
-   * Determines whether a variant represents a multi-nucleotide change.
+   * Bits of the class of a variant, as computed by {@link #classify(Variant)}.  A variant may
+   * belong to several classes, e.g. the deletion of reference AT to alternate A has an alternate,
+   * is an indel and is multi-nucleotide.
    */
-  public static final Predicate<Variant> IS_MULTI_NUCLEOTIDE = new Predicate<Variant>() {
-    @Override
-    public boolean apply(Variant variant) {
-      int refSize = variant.getReferenceBases().length();
-      if (refSize < 1) {
-        return false;
-      } else if (refSize > 1) {
-        return true;
+  public static final int CLASS_HAS_ALTERNATE = 1;
+  public static final int CLASS_SNP = 1 << 1;
+  /**
+   * The reference and at least one alternate other than &lt;NON_REF&gt; have the same length, which
+   * is more than one.
+   */
+  public static final int CLASS_MNP = 1 << 2;
+  /**
+   * At least one alternate other than &lt;NON_REF&gt; differs in length from the reference.
+   */
+  public static final int CLASS_INDEL = 1 << 3;
+  public static final int CLASS_MULTI_NUCLEOTIDE = 1 << 4;
+  public static final int CLASS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT = 1 << 5;
+  public static final int CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT = 1 << 6;
+  public static final int CLASS_NON_VARIANT_SEGMENT =
+      CLASS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT | CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT;
+
+  /**
+   * Compute all classes of a variant in a single pass over its alleles.
+   *
+   * The predicates below are evaluated this way, so callers testing several of them for the same
+   * variant should classify it once and test the bits instead.
+   *
+   * @param variant
+   * @return the bitwise or of the CLASS_* bits the variant belongs to
+   */
+  public static int classify(Variant variant) {
+    int refLength = variant.getReferenceBases().length();
+    int alternateCount = variant.getAlternateBasesCount();
+    boolean allAltsOneBase = true;
+    boolean allAltsGatk = true;
+    boolean anyAltLongerThanRef = false;
+    int classes = 0;
+    for (int i = 0; i < alternateCount; i++) {
+      String alt = variant.getAlternateBases(i);
+      int altLength = alt.length();
+      allAltsOneBase &= 1 == altLength;
+      anyAltLongerThanRef |= altLength > refLength;
+      if (GATK_NON_VARIANT_SEGMENT_ALT.equals(alt)) {
+        continue;
       }
-      for (String alt : variant.getAlternateBasesList()) {
-        if (alt.length() > refSize) {
-          return true;
-        }
+      allAltsGatk = false;
+      if (altLength != refLength) {
+        classes |= CLASS_INDEL;
+      } else if (1 < refLength) {
+        classes |= CLASS_MNP;
       }
+    }
 
-      return false;
+    if (0 < alternateCount) {
+      classes |= CLASS_HAS_ALTERNATE;
+      if (1 == refLength && allAltsOneBase) {
+        classes |= CLASS_SNP;
+      }
+    } else if (1 == refLength) {
+      // The same deletion can be specified as [CAG -> C] or [AG -> null], so double check that
+      // the reference bases are also of length 1 when there are no alternates.
+      classes |= CLASS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT;
     }
-  };
+    if (allAltsGatk) {
+      classes |= CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT;
+    }
+    if (1 < refLength || (1 == refLength && anyAltLongerThanRef)) {
+      classes |= CLASS_MULTI_NUCLEOTIDE;
+    }
+    return classes;
+  }
+
+  /**
+   * Classify many variants at once, e.g. to test several classes of each without reclassifying.
+   *
+   * @param variants
+   * @return the classes of each variant, as computed by {@link #classify(Variant)}
+   */
+  public static int[] classify(List<Variant> variants) {
+    int[] classes = new int[variants.size()];
+    int i = 0;
+    for (Variant variant : variants) {
+      classes[i++] = classify(variant);
+    }
+    return classes;
+  }
+
+  /**
+   * A predicate for variants of any of the given classes, e.g. to client-side filter a stream.
+   *
+   * @param classes The bitwise or of CLASS_* bits.
+   * @return a predicate which is true if the variant belongs to any of the classes
+   */
+  public static Predicate<Variant> isAnyOf(final int classes) {
+    return new Predicate<Variant>() {
+      @Override
+      public boolean apply(Variant variant) {
+        return 0 != (classify(variant) & classes);
+      }
+    };
+  }
+
+  /**
+   * Determines whether a variant represents a multi-nucleotide change.
+   */
+  public static final Predicate<Variant> IS_MULTI_NUCLEOTIDE = isAnyOf(CLASS_MULTI_NUCLEOTIDE);
 
   /**
    * Determine whether the variant has any values in alternate bases.
@@ -66,33 +150,24 @@ public class VariantUtils {
   public static final Predicate<Variant> HAS_ALTERNATE = new Predicate<Variant>() {
     @Override
     public boolean apply(Variant variant) {
-      List<String> alternateBases = variant.getAlternateBasesList();
-      return !(null == alternateBases || alternateBases.isEmpty());
+      return 0 < variant.getAlternateBasesCount();
     }
   };
 
   /**
    * Determine whether the sequence is of length one (e.g., a SNP).
    */
-  public static final Predicate<String> LENGTH_IS_1 = Predicates.compose(Predicates.equalTo(1),
-      new Function<String, Integer>() {
-        @Override
-        public Integer apply(String string) {
-          return string.length();
-        }
-      });
+  public static final Predicate<String> LENGTH_IS_1 = new Predicate<String>() {
+    @Override
+    public boolean apply(String string) {
+      return 1 == string.length();
+    }
+  };
 
   /**
    * Determine whether the variant is a SNP.
    */
-  public static final Predicate<Variant> IS_SNP = Predicates.and(HAS_ALTERNATE,
-      new Predicate<Variant>() {
-        @Override
-        public boolean apply(Variant variant) {
-          return LENGTH_IS_1.apply(variant.getReferenceBases())
-              && Iterables.all(variant.getAlternateBasesList(), LENGTH_IS_1);
-        }
-      });
+  public static final Predicate<Variant> IS_SNP = isAnyOf(CLASS_SNP);
 
   /**
    * Determine whether the variant is a non-variant segment (a.k.a. non-variant block record).
@@ -101,15 +176,8 @@ public class VariantUtils {
    * (the missing value indicator "." in the VCF ALT field gets converted to null). See
    * https://sites.google.com/site/gvcftools/home/about-gvcf for more detail.
    */
-  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT = Predicates.and(
-      Predicates.not(HAS_ALTERNATE), new Predicate<Variant>() {
-        @Override
-        public boolean apply(Variant variant) {
-          // The same deletion can be specified as [CAG -> C] or [AG -> null], so double check that
-          // the reference bases are also of length 1 when there are no alternates.
-          return LENGTH_IS_1.apply(variant.getReferenceBases());
-        }
-      });
+  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT =
+      isAnyOf(CLASS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT);
 
   /**
    * Determine whether the variant is a non-variant segment (a.k.a. non-variant block record).
@@ -120,19 +188,14 @@ public class VariantUtils {
    * Note that alternate bases may include true variants (e.g., C,&lt;NON_REF&gt;) but still correspond to
    * a non-variant segment.
    */
-  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT_WITH_GATK_ALT = new Predicate<Variant>() {
-        @Override
-        public boolean apply(Variant variant) {
-          return Iterables.all(variant.getAlternateBasesList(),
-              Predicates.equalTo(GATK_NON_VARIANT_SEGMENT_ALT));
-        }
-      };
+  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT_WITH_GATK_ALT =
+      isAnyOf(CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT);
 
   /**
    * Determine whether the variant is a non-variant segment (a.k.a. non-variant block record).
    */
-  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT = Predicates.or(
-      IS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT, IS_NON_VARIANT_SEGMENT_WITH_GATK_ALT);
+  public static final Predicate<Variant> IS_NON_VARIANT_SEGMENT =
+      isAnyOf(CLASS_NON_VARIANT_SEGMENT);
 
   public static final Ordering<Variant> BY_START = Ordering.natural().onResultOf(
       new Function<Variant, Long>() {
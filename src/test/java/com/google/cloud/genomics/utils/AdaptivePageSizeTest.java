@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptivePageSizeTest {
+
+  @Test
+  public void testGrowsAfterFastFullPages() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(256, 2048, 1000);
+    assertEquals(256, pageSize.getPageSize());
+    pageSize.update(256, 256, 100, -1);
+    assertEquals(512, pageSize.getPageSize());
+    pageSize.update(512, 512, 400, -1);
+    assertEquals(1024, pageSize.getPageSize());
+    pageSize.update(1024, 1024, 800, -1);
+    assertEquals(1280, pageSize.getPageSize());
+    for (int i = 0; i < 5; i++) {
+      pageSize.update(pageSize.getPageSize(), pageSize.getPageSize(), 0, -1);
+    }
+    assertEquals(2048, pageSize.getPageSize());
+  }
+
+  @Test
+  public void testShrinksAfterSlowPages() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000, 2048, 1000);
+    pageSize.update(1000, 1000, 1250, -1);
+    assertEquals(800, pageSize.getPageSize());
+    pageSize.update(800, 800, 60000, -1);
+    assertEquals(400, pageSize.getPageSize());
+    pageSize.timedOut(400);
+    assertEquals(200, pageSize.getPageSize());
+  }
+
+  @Test
+  public void testLimitsBytesPerPage() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(1000, 10000, 1000);
+    pageSize.update(1000, 1000, 10, AdaptivePageSize.MAX_PAGE_BYTES * 4 / 3);
+    assertEquals(750, pageSize.getPageSize());
+  }
+
+  @Test
+  public void testDoesNotGrowAfterPartialPages() {
+    AdaptivePageSize pageSize = new AdaptivePageSize(256, 2048, 1000);
+    pageSize.update(256, 10, 1, -1);
+    assertEquals(256, pageSize.getPageSize());
+    pageSize.update(256, 0, 5000, -1);
+    assertEquals(256, pageSize.getPageSize());
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.services.genomics.model.ReferenceBound;
+import com.google.api.services.genomics.model.VariantSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class MetadataCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final OfflineAuth AUTH = new OfflineAuth("key");
+
+  /**
+   * Counts the lookups of the reference bounds of a variant set.
+   */
+  private static class CountingLoader implements MetadataCache.Loader<VariantSet> {
+    final AtomicInteger loads = new AtomicInteger();
+
+    @Override
+    public VariantSet load() throws IOException {
+      loads.incrementAndGet();
+      return new VariantSet().setId("vs").setReferenceBounds(Lists.newArrayList(
+          new ReferenceBound().setReferenceName("chr1").setUpperBound(1000L)));
+    }
+  }
+
+  private static VariantSet get(MetadataCache cache, OfflineAuth auth,
+      MetadataCache.Loader<VariantSet> loader) throws IOException {
+    return cache.get("referenceBounds", "vs", auth, VariantSet.class, loader);
+  }
+
+  @Test
+  public void testInMemory() throws Exception {
+    MetadataCache cache = MetadataCache.builder().build();
+    CountingLoader loader = new CountingLoader();
+    VariantSet variantSet = get(cache, AUTH, loader);
+    assertEquals(Long.valueOf(1000L), variantSet.getReferenceBounds().get(0).getUpperBound());
+    assertEquals(variantSet, get(cache, AUTH, loader));
+    assertEquals(1, loader.loads.get());
+
+    // Entries are not shared between credentials.
+    get(cache, new OfflineAuth("other key"), loader);
+    get(cache, new OfflineAuth(), loader);
+    assertEquals(3, loader.loads.get());
+
+    cache.invalidateAll();
+    get(cache, AUTH, loader);
+    assertEquals(4, loader.loads.get());
+  }
+
+  @Test
+  public void testConcurrentMissesLoadOnce() throws Exception {
+    final MetadataCache cache = MetadataCache.builder().build();
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountingLoader counter = new CountingLoader();
+    final MetadataCache.Loader<VariantSet> loader = new MetadataCache.Loader<VariantSet>() {
+      @Override
+      public VariantSet load() throws IOException {
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return counter.load();
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<VariantSet>> results = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(new Callable<VariantSet>() {
+          @Override
+          public VariantSet call() throws IOException {
+            return get(cache, AUTH, loader);
+          }
+        }));
+      }
+      assertTrue(loading.await(10, TimeUnit.SECONDS));
+      release.countDown();
+      for (Future<VariantSet> result : results) {
+        assertEquals("vs", result.get().getId());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, counter.loads.get());
+  }
+
+  @Test
+  public void testOnDisk() throws Exception {
+    File directory = new File(folder.getRoot(), "metadata");
+    CountingLoader loader = new CountingLoader();
+    VariantSet variantSet = get(MetadataCache.builder().setDirectory(directory).build(), AUTH,
+        loader);
+
+    // A new cache, e.g. of the next process, finds the entry on disk.
+    VariantSet fromDisk = get(MetadataCache.builder().setDirectory(directory).build(), AUTH,
+        loader);
+    assertEquals(1, loader.loads.get());
+    assertEquals(variantSet.getId(), fromDisk.getId());
+    assertEquals(variantSet.getReferenceBounds(), fromDisk.getReferenceBounds());
+
+    // Expired entries are looked up again.
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    assertTrue(files[0].setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    get(MetadataCache.builder().setDirectory(directory).build(), AUTH, loader);
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test
+  public void testOnDiskLimits() throws Exception {
+    File directory = new File(folder.getRoot(), "metadata");
+    MetadataCache cache = MetadataCache.builder().setDirectory(directory).setMaximumSize(2).build();
+    CountingLoader loader = new CountingLoader();
+    long now = System.currentTimeMillis();
+    cache.get("referenceBounds", "expired", AUTH, VariantSet.class, loader);
+    File expired = directory.listFiles()[0];
+    assertTrue(expired.setLastModified(now - TimeUnit.HOURS.toMillis(2)));
+    cache.get("referenceBounds", "oldest", AUTH, VariantSet.class, loader);
+    File oldest = null;
+    for (File file : directory.listFiles()) {
+      if (!file.equals(expired)) {
+        oldest = file;
+      }
+    }
+    assertTrue(oldest.setLastModified(now - TimeUnit.MINUTES.toMillis(2)));
+    assertEquals(1, directory.listFiles().length);
+
+    // Writing more entries than the maximum deletes the oldest ones.
+    cache.get("referenceBounds", "newer", AUTH, VariantSet.class, loader);
+    cache.get("referenceBounds", "newest", AUTH, VariantSet.class, loader);
+    File[] files = directory.listFiles();
+    assertEquals(2, files.length);
+    for (File file : files) {
+      assertFalse(file.equals(oldest));
+    }
+  }
+
+  @Test
+  public void testFailedLookup() throws Exception {
+    MetadataCache cache = MetadataCache.builder().build();
+    try {
+      get(cache, AUTH, new MetadataCache.Loader<VariantSet>() {
+        @Override
+        public VariantSet load() throws IOException {
+          throw new IOException("Lookup failed");
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      assertEquals("Lookup failed", e.getMessage());
+    }
+
+    // Failures are not cached.
+    CountingLoader loader = new CountingLoader();
+    get(cache, AUTH, loader);
+    assertEquals(1, loader.loads.get());
+  }
+}
@@ -33,6 +33,7 @@ import com.google.api.services.genomics.model.SearchReadsResponse;
 import com.google.api.services.genomics.model.SearchVariantsRequest;
 import com.google.api.services.genomics.model.SearchVariantsResponse;
 import com.google.api.services.genomics.model.Variant;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import org.hamcrest.CoreMatchers;
@@ -45,8 +46,13 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 @RunWith(JUnit4.class)
@@ -99,6 +105,66 @@ public class PaginatorTest {
     assertEquals(Lists.newArrayList("r1", "r2"), ids);
   }
 
+  @Test
+  public void testPaginationWithPrefetch() throws Exception {
+    Mockito.when(readGroupSets.search(Mockito.any(SearchReadGroupSetsRequest.class)))
+        .thenReturn(readGroupSetSearch);
+    Mockito.when(readGroupSetSearch.execute()).thenReturn(
+        new SearchReadGroupSetsResponse()
+            .setReadGroupSets(Lists.newArrayList(new ReadGroupSet().setId("r1")))
+            .setNextPageToken("page2"),
+        new SearchReadGroupSetsResponse()
+            .setReadGroupSets(Lists.newArrayList(new ReadGroupSet().setId("r2")))
+            .setNextPageToken("page3"),
+        new SearchReadGroupSetsResponse(),
+        new SearchReadGroupSetsResponse()
+            .setReadGroupSets(Lists.newArrayList(new ReadGroupSet().setId("r3"))));
+
+    Paginator.ReadGroupSets paginator = Paginator.ReadGroupSets.create(genomics);
+    paginator.setPrefetchDepth(2);
+    List<String> ids = Lists.newArrayList();
+    for (ReadGroupSet readGroupSet : paginator.search(
+        new SearchReadGroupSetsRequest().setName("HG"))) {
+      ids.add(readGroupSet.getId());
+    }
+
+    // The third page is the last one, so the fourth response is never requested.
+    assertEquals(Lists.newArrayList("r1", "r2"), ids);
+    Mockito.verify(readGroupSetSearch, Mockito.times(3)).execute();
+  }
+
+  @Test
+  public void testPaginationWithPrefetchFailure() throws Exception {
+    Mockito.when(readGroupSets.search(Mockito.any(SearchReadGroupSetsRequest.class)))
+        .thenReturn(readGroupSetSearch);
+    Mockito.when(readGroupSetSearch.execute())
+        .thenReturn(new SearchReadGroupSetsResponse()
+            .setReadGroupSets(Lists.newArrayList(new ReadGroupSet().setId("r1")))
+            .setNextPageToken("page2"))
+        .thenThrow(new IOException("Page 2 failed"));
+
+    Paginator.ReadGroupSets paginator = Paginator.ReadGroupSets.create(genomics);
+    paginator.setPrefetchDepth(1);
+    final List<String> ids = Lists.newArrayList();
+    try {
+      paginator.search(new SearchReadGroupSetsRequest().setName("HG"),
+          Paginator.DEFAULT_INITIALIZER,
+          new Paginator.Callback<ReadGroupSet, Void>() {
+            @Override public Void consumeResponses(Iterable<ReadGroupSet> responses) {
+              for (ReadGroupSet readGroupSet : responses) {
+                ids.add(readGroupSet.getId());
+              }
+              return null;
+            }
+          },
+          RetryPolicy.neverRetry());
+      fail("should have thrown an IOException");
+    } catch (IOException e) {
+      assertEquals("Page 2 failed", e.getMessage());
+    }
+    assertEquals(Lists.newArrayList("r1"), ids);
+  }
+
   @Test
   public void testPagination_withNullResults() throws Exception {
     Mockito.when(readGroupSets.search(new SearchReadGroupSetsRequest()))
@@ -287,4 +353,160 @@ public class PaginatorTest {
     overlappingPaginator.search(request, "reads(id,alignment(cigar,position))").iterator().next();
   }
 
+  private List<Read> searchShardedReads(Paginator.ShardOrder order) throws Exception {
+    final List<Genomics.Reads.Search> shardSearches = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      shardSearches.add(Mockito.mock(Genomics.Reads.Search.class));
+    }
+    Mockito.when(reads.search(Mockito.any(SearchReadsRequest.class))).thenAnswer(
+        new Answer<Genomics.Reads.Search>() {
+          @Override
+          public Genomics.Reads.Search answer(InvocationOnMock invocation) {
+            SearchReadsRequest request = (SearchReadsRequest) invocation.getArguments()[0];
+            assertEquals("rgs", request.getReadGroupSetIds().get(0));
+            assertEquals(request.getStart() + 100, (long) request.getEnd());
+            return shardSearches.get((int) (request.getStart() / 100));
+          }
+        });
+    Mockito.when(shardSearches.get(0).execute()).thenReturn(
+        new SearchReadsResponse().setAlignments(Lists.newArrayList(readHelper(10, 20)))
+            .setNextPageToken("page2"),
+        new SearchReadsResponse().setAlignments(Lists.newArrayList(readHelper(90, 150))));
+    // The read starting in the first shard is also returned by the second one.
+    Mockito.when(shardSearches.get(1).execute()).thenReturn(
+        new SearchReadsResponse().setAlignments(
+            Lists.newArrayList(readHelper(90, 150), readHelper(120, 130))));
+    Mockito.when(shardSearches.get(2).execute()).thenReturn(
+        new SearchReadsResponse().setAlignments(Lists.newArrayList(readHelper(250, 260))));
+
+    List<Contig> shards = Lists.newArrayList(new Contig("chr1", 0, 100),
+        new Contig("chr1", 100, 200), new Contig("chr1", 200, 300));
+    return Paginator.Reads.create(genomics, ShardBoundary.Requirement.STRICT).searchSharded(
+        new SearchReadsRequest().setReadGroupSetIds(Lists.newArrayList("rgs")), shards,
+        "nextPageToken,alignments(alignment(position))", 2, order,
+        new Paginator.Callback<Read, List<Read>>() {
+          @Override
+          public List<Read> consumeResponses(Iterable<Read> responses) {
+            return Lists.newArrayList(responses);
+          }
+        });
+  }
+
+  @Test
+  public void testSearchShardedOrdered() throws Exception {
+    List<Read> results = searchShardedReads(Paginator.ShardOrder.ORDERED);
+    assertEquals(Lists.newArrayList(readHelper(10, 20), readHelper(90, 150),
+        readHelper(120, 130), readHelper(250, 260)), results);
+  }
+
+  @Test
+  public void testSearchShardedUnordered() throws Exception {
+    List<Read> results = searchShardedReads(Paginator.ShardOrder.UNORDERED);
+    assertEquals(4, results.size());
+    assertEquals(new HashSet<Read>(Lists.newArrayList(readHelper(10, 20), readHelper(90, 150),
+        readHelper(120, 130), readHelper(250, 260))), new HashSet<Read>(results));
+  }
+
+  @Test
+  public void testSearchShardedFailure() throws Exception {
+    Mockito.when(reads.search(Mockito.any(SearchReadsRequest.class))).thenReturn(readsSearch);
+    Mockito.when(readsSearch.execute()).thenThrow(new IOException("Shard failed"));
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Shard failed");
+    Paginator.Reads.create(genomics, ShardBoundary.Requirement.OVERLAPS).searchSharded(
+        new SearchReadsRequest(), Lists.newArrayList(new Contig("chr1", 0, 100)), null, 1,
+        Paginator.ShardOrder.ORDERED,
+        new Paginator.Callback<Read, Integer>() {
+          @Override
+          public Integer consumeResponses(Iterable<Read> responses) {
+            return Lists.newArrayList(responses).size();
+          }
+        });
+  }
+
+  @Test
+  public void testSearchShardedUnsupported() throws Exception {
+    thrown.expect(UnsupportedOperationException.class);
+    Paginator.ReadGroupSets.create(genomics).searchSharded(new SearchReadGroupSetsRequest(),
+        Lists.newArrayList(new Contig("chr1", 0, 100)), null, 1, Paginator.ShardOrder.ORDERED,
+        new Paginator.Callback<ReadGroupSet, Integer>() {
+          @Override
+          public Integer consumeResponses(Iterable<ReadGroupSet> responses) {
+            return Lists.newArrayList(responses).size();
+          }
+        });
+  }
+
+  @Test
+  public void testAdaptivePageSize() throws Exception {
+    final List<Integer> pageSizes = Lists.newArrayList();
+    Mockito.when(reads.search(Mockito.any(SearchReadsRequest.class))).thenAnswer(
+        new Answer<Genomics.Reads.Search>() {
+          @Override
+          public Genomics.Reads.Search answer(InvocationOnMock invocation) {
+            pageSizes.add(((SearchReadsRequest) invocation.getArguments()[0]).getPageSize());
+            return readsSearch;
+          }
+        });
+    Mockito.when(readsSearch.execute()).thenAnswer(new Answer<SearchReadsResponse>() {
+      @Override
+      public SearchReadsResponse answer(InvocationOnMock invocation) {
+        // Return full pages quickly, and stop after five of them.
+        int pageSize = pageSizes.get(pageSizes.size() - 1);
+        List<Read> alignments = Lists.newArrayList();
+        for (int i = 0; i < pageSize; i++) {
+          alignments.add(readHelper(i, i + 1));
+        }
+        return new SearchReadsResponse().setAlignments(alignments)
+            .setNextPageToken((pageSizes.size() < 5) ? "page" + pageSizes.size() : null);
+      }
+    });
+
+    Paginator.Reads paginator = Paginator.Reads.create(genomics, ShardBoundary.Requirement.OVERLAPS);
+    paginator.setAdaptivePageSize(Paginator.DEFAULT_TARGET_PAGE_MILLIS);
+    SearchReadsRequest request = new SearchReadsRequest().setStart(0L).setEnd(1000L);
+    assertEquals(256 + 512 + 1024 + 2048 + 2048, Iterables.size(paginator.search(request)));
+    assertEquals(Lists.newArrayList(256, 512, 1024, 2048, 2048), pageSizes);
+    // The request itself is left as it is.
+    assertEquals(null, request.getPageSize());
+    assertEquals(null, request.getPageToken());
+
+    // A page size set by the request is kept.
+    pageSizes.clear();
+    assertEquals(5 * 100, Iterables.size(paginator.search(request.setPageSize(100))));
+    assertEquals(Lists.newArrayList(100, 100, 100, 100, 100), pageSizes);
+  }
+
+  @Test
+  public void testAdaptivePageSizeRetriesTimeoutAtReducedSize() throws Exception {
+    final List<Integer> pageSizes = Lists.newArrayList();
+    Mockito.when(reads.search(Mockito.any(SearchReadsRequest.class))).thenAnswer(
+        new Answer<Genomics.Reads.Search>() {
+          @Override
+          public Genomics.Reads.Search answer(InvocationOnMock invocation) {
+            pageSizes.add(((SearchReadsRequest) invocation.getArguments()[0]).getPageSize());
+            return readsSearch;
+          }
+        });
+    Mockito.when(readsSearch.execute())
+        .thenThrow(new SocketTimeoutException())
+        .thenReturn(new SearchReadsResponse().setAlignments(
+            Lists.newArrayList(readHelper(0, 1))));
+
+    Paginator.Reads paginator = Paginator.Reads.create(genomics, ShardBoundary.Requirement.OVERLAPS);
+    paginator.setAdaptivePageSize(Paginator.DEFAULT_TARGET_PAGE_MILLIS);
+    SearchReadsRequest request = new SearchReadsRequest().setStart(0L).setEnd(1000L);
+    assertEquals(1, Iterables.size(paginator.search(request)));
+    // The page which timed out is retried at half the page size.
+    assertEquals(Lists.newArrayList(256, 128), pageSizes);
+  }
+
+  @Test
+  public void testAdaptivePageSizeUnsupported() throws Exception {
+    thrown.expect(UnsupportedOperationException.class);
+    Paginator.ReadGroupSets.create(genomics).setAdaptivePageSize(
+        Paginator.DEFAULT_TARGET_PAGE_MILLIS);
+  }
+
 }
@@ -16,10 +16,19 @@ package com.google.cloud.genomics.utils;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.genomics.v1.StreamReadsRequest;
+import com.google.common.collect.Lists;
 import com.google.genomics.v1.StreamVariantsRequest;
 
 import org.hamcrest.CoreMatchers;
@@ -28,7 +37,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(JUnit4.class)
 public class ShardUtilsTest {
@@ -288,4 +299,50 @@ public class ShardUtilsTest {
     assertTrue(ShardUtils.SEX_CHROMOSOME_REGEXP.matcher("y").matches());
     assertFalse(ShardUtils.SEX_CHROMOSOME_REGEXP.matcher("chr6_cox_hap2").matches());
   }
+
+  @Test
+  public void testGetReadRequestsWithContext() throws Exception {
+    final AtomicInteger numRequests = new AtomicInteger();
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, final String url) {
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() {
+            numRequests.incrementAndGet();
+            // Each read group set covers the length of chr1 given by the digit in its id, and chrX.
+            String id = url.replaceAll(".*/readgroupsets/([^/]+)/coveragebuckets.*", "$1");
+            long end = 100L * Integer.parseInt(id.substring(id.length() - 1));
+            return new MockLowLevelHttpResponse().setContentType(Json.MEDIA_TYPE).setContent(
+                "{\"coverageBuckets\": ["
+                + "{\"range\": {\"referenceName\": \"chr1\", \"end\": \"" + end + "\"}},"
+                + "{\"range\": {\"referenceName\": \"chrX\", \"end\": \"100\"}}]}");
+          }
+        };
+      }
+    };
+    GenomicsContext context = GenomicsContext.create(
+        GenomicsFactory.builder().setHttpTransport(transport).build(), new OfflineAuth("key"));
+
+    List<StreamReadsRequest> prototypes = Lists.newArrayList();
+    for (int i = 1; i <= 3; i++) {
+      prototypes.add(StreamReadsRequest.newBuilder().setReadGroupSetId("rgs" + i).build());
+    }
+    List<StreamReadsRequest> requests = ShardUtils.getReadRequests(prototypes,
+        ShardUtils.SexChromosomeFilter.EXCLUDE_XY, 100L, context, 2);
+
+    assertEquals(3, numRequests.get());
+    assertSame(context.getGenomics(), context.getGenomics());
+    List<StreamReadsRequest> expected = Lists.newArrayList();
+    for (int i = 1; i <= 3; i++) {
+      for (int j = 0; j < i; j++) {
+        expected.add(new Contig("chr1", 100L * j, 100L * (j + 1))
+            .getStreamReadsRequest(prototypes.get(i - 1)));
+      }
+    }
+    assertEquals(expected.size(), requests.size());
+    assertEquals(new HashSet<StreamReadsRequest>(expected),
+        new HashSet<StreamReadsRequest>(requests));
+  }
+
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.cloud.genomics.utils.grpc.GenomicsStreamIteratorRetryTest.InjectionSite;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamVariantsResponse;
+import com.google.genomics.v1.Variant;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry tests for the non-blocking streams, using the same fault injection as
+ * {@link GenomicsStreamIteratorRetryTest}.
+ */
+@RunWith(JUnit4.class)
+public class AsyncGenomicsStreamTest {
+
+  @Rule
+  public TestName testName = new TestName();
+
+  protected Server server;
+
+  public void startServer(InjectionSite targetSite) {
+    try {
+      server =
+          InProcessServerBuilder.forName(testName.getMethodName())
+              .addService(new GenomicsStreamIteratorRetryTest.ReadUnitServerImpl(targetSite))
+              .addService(new GenomicsStreamIteratorRetryTest.VariantUnitServerImpl(targetSite))
+              .build()
+              .start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @After
+  public void stopServer() {
+    server.shutdownNow();
+  }
+
+  public ManagedChannel createChannel() {
+    return InProcessChannelBuilder.forName(testName.getMethodName()).build();
+  }
+
+  /**
+   * Collects the ids of the items received and the outcome of the stream.
+   */
+  static class CollectingListener<ResponseT> implements AsyncGenomicsStream.Listener<ResponseT> {
+    final CountDownLatch done = new CountDownLatch(1);
+    final Set<String> ids = Sets.newHashSet();
+    int numItems = 0;
+    Throwable error = null;
+
+    void addId(String id) {
+      ids.add(id);
+      numItems++;
+    }
+
+    @Override
+    public void onResponse(ResponseT response) {
+      if (response instanceof StreamVariantsResponse) {
+        for (Variant variant : ((StreamVariantsResponse) response).getVariantsList()) {
+          addId(variant.getId());
+        }
+      } else {
+        for (Read read : ((StreamReadsResponse) response).getAlignmentsList()) {
+          addId(read.getId());
+        }
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      done.countDown();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue("stream did not finish", done.await(30, TimeUnit.SECONDS));
+    }
+  }
+
+  static <ResponseT> void consume(AsyncGenomicsStream<?, ResponseT, ?, ?> stream,
+      int expectedNumItems) throws InterruptedException {
+    // Keep the test fast.
+    stream.setRetryPolicy(StreamRetryPolicy.exponentialBackOff(50,
+        ExponentialBackOff.DEFAULT_MULTIPLIER, ExponentialBackOff.DEFAULT_MAX_INTERVAL_MILLIS,
+        ExponentialBackOff.DEFAULT_MAX_ELAPSED_TIME_MILLIS));
+    CollectingListener<ResponseT> listener = new CollectingListener<>();
+    stream.start(listener);
+    listener.await();
+    assertNull(listener.error);
+    assertEquals(expectedNumItems, listener.numItems);
+    assertEquals("no duplicates", expectedNumItems, listener.ids.size());
+  }
+
+  public void runVariantTest(ShardBoundary.Requirement requirement, InjectionSite targetSite,
+      int expectedNumItems) throws InterruptedException {
+    startServer(targetSite);
+    consume(AsyncVariantStream.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, requirement, null), expectedNumItems);
+  }
+
+  public void runReadTest(ShardBoundary.Requirement requirement, InjectionSite targetSite,
+      int expectedNumItems) throws InterruptedException {
+    startServer(targetSite);
+    consume(AsyncReadStream.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.READS_REQUEST, requirement, null), expectedNumItems);
+  }
+
+  @Test
+  public void testVariantStrictRetriesAtBeginning() throws Exception {
+    runVariantTest(ShardBoundary.Requirement.STRICT, InjectionSite.AT_BEGINNING, 7);
+  }
+
+  @Test
+  public void testVariantOverlappingRetriesAfterSecondResponse() throws Exception {
+    runVariantTest(ShardBoundary.Requirement.OVERLAPS, InjectionSite.AFTER_SECOND_RESPONSE, 9);
+  }
+
+  @Test
+  public void testReadStrictRetriesAfterFirstResponse() throws Exception {
+    runReadTest(ShardBoundary.Requirement.STRICT, InjectionSite.AFTER_FIRST_RESPONSE, 7);
+  }
+
+  @Test
+  public void testReadOverlappingRetriesAtEnd() throws Exception {
+    runReadTest(ShardBoundary.Requirement.OVERLAPS, InjectionSite.AT_END, 9);
+  }
+
+  @Test
+  public void testStreamsShareChannel() throws Exception {
+    startServer(InjectionSite.AT_END);
+    ManagedChannel channel = createChannel();
+    List<CollectingListener<StreamVariantsResponse>> listeners = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      AsyncVariantStream stream = AsyncVariantStream.enforceShardBoundary(channel,
+          GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, ShardBoundary.Requirement.OVERLAPS,
+          null);
+      stream.leaveChannelOpen();
+      stream.setRetryPolicy(StreamRetryPolicy.exponentialBackOff(50,
+          ExponentialBackOff.DEFAULT_MULTIPLIER, ExponentialBackOff.DEFAULT_MAX_INTERVAL_MILLIS,
+          ExponentialBackOff.DEFAULT_MAX_ELAPSED_TIME_MILLIS));
+      CollectingListener<StreamVariantsResponse> listener = new CollectingListener<>();
+      listeners.add(listener);
+      stream.start(listener);
+    }
+    // The first stream to finish does not shut down the channel under the others.
+    for (CollectingListener<StreamVariantsResponse> listener : listeners) {
+      listener.await();
+      assertNull(listener.error);
+      assertEquals(9, listener.numItems);
+    }
+    assertFalse(channel.isShutdown());
+    channel.shutdownNow();
+  }
+
+  @Test
+  public void testListenerFailureIsNotRetried() throws Exception {
+    startServer(InjectionSite.AT_END);
+    final CountDownLatch done = new CountDownLatch(1);
+    final RuntimeException failure = new RuntimeException("listener failed");
+    final Throwable[] error = new Throwable[1];
+    AsyncVariantStream stream = AsyncVariantStream.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, ShardBoundary.Requirement.OVERLAPS,
+        null);
+    stream.start(new AsyncGenomicsStream.Listener<StreamVariantsResponse>() {
+      @Override
+      public void onResponse(StreamVariantsResponse response) {
+        throw failure;
+      }
+
+      @Override
+      public void onCompleted() {
+        done.countDown();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        error[0] = t;
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(failure, error[0]);
+  }
+}
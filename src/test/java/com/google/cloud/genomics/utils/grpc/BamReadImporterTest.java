@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class BamReadImporterTest {
+  public static final int NUM_PAIRS = 3000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Write pairs of reads with random bases and qualities to a BAM file spanning many BGZF blocks.
+   */
+  private File writeBam() throws IOException {
+    SAMRecordSetBuilder records = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+    records.setReadLength(100);
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      records.addPair("pair-" + i, i % 3, 1 + 7 * i, 200 + 7 * i);
+    }
+    records.addFrag("unmapped", -1, 0, false, true, null, null, 0);
+    File bam = folder.newFile("reads.bam");
+    SAMFileWriter writer =
+        new SAMFileWriterFactory().makeBAMWriter(records.getHeader(), true, bam);
+    for (SAMRecord record : records) {
+      writer.addAlignment(record);
+    }
+    writer.close();
+    return bam;
+  }
+
+  private static List<Read> readSequentially(File bam) throws IOException {
+    List<Read> reads = Lists.newArrayList();
+    SamReader reader = SamReaderFactory.makeDefault().open(bam);
+    for (SAMRecord record : reader) {
+      reads.add(ReadUtils.makeReadGrpc(record));
+    }
+    reader.close();
+    return reads;
+  }
+
+  @Test
+  public void testImportMatchesSequentialConversion() throws Exception {
+    File bam = writeBam();
+    final List<Read> reads = Lists.newArrayList();
+    final List<Integer> batchSizes = Lists.newArrayList();
+    long numRecords = BamReadImporter.builder(bam, BamReadImporter.TO_READ)
+        .setConcurrency(3)
+        .setBatchSize(250)
+        .build()
+        .importRecords(new BamReadImporter.Sink<Read>() {
+          @Override
+          public void write(List<Read> batch) {
+            batchSizes.add(batch.size());
+            reads.addAll(batch);
+          }
+        });
+
+    assertEquals(2 * NUM_PAIRS + 1, numRecords);
+    assertEquals(readSequentially(bam), reads);
+    assertEquals(Integer.valueOf(250), batchSizes.get(0));
+    assertEquals(Integer.valueOf(1), batchSizes.get(batchSizes.size() - 1));
+  }
+
+  @Test
+  public void testImportSerializedReads() throws Exception {
+    File bam = writeBam();
+    final List<Read> reads = Lists.newArrayList();
+    BamReadImporter.builder(bam, BamReadImporter.TO_SERIALIZED_READ)
+        .build()
+        .importRecords(new BamReadImporter.Sink<byte[]>() {
+          @Override
+          public void write(List<byte[]> batch) throws IOException {
+            for (byte[] read : batch) {
+              reads.add(Read.parseFrom(read));
+            }
+          }
+        });
+    assertEquals(readSequentially(bam), reads);
+  }
+
+  @Test
+  public void testTruncatedFile() throws Exception {
+    File bam = writeBam();
+    byte[] bytes = Files.toByteArray(bam);
+    File truncated = folder.newFile("truncated.bam");
+    Files.write(Arrays.copyOf(bytes, bytes.length / 2), truncated);
+    try {
+      BamReadImporter.builder(truncated, BamReadImporter.TO_READ)
+          .build()
+          .importRecords(new BamReadImporter.Sink<Read>() {
+            @Override
+            public void write(List<Read> batch) {
+            }
+          });
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Truncated"));
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(JUnit4.class)
+public class BatchingVariantEmitterTest {
+
+  private static class AccumulatingSink implements BatchingVariantEmitter.Sink {
+    final List<List<Variant>> batches =
+        Collections.synchronizedList(Lists.<List<Variant>>newArrayList());
+
+    @Override
+    public void write(List<Variant> batch) throws IOException {
+      batches.add(ImmutableList.copyOf(batch));
+    }
+  }
+
+  private static List<Variant> makeVariants(int count) {
+    List<Variant> variants = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      variants.add(TestHelper.makeVariant(i, i + 1));
+    }
+    return variants;
+  }
+
+  @Test
+  public void testBatchesBySize() {
+    AccumulatingSink sink = new AccumulatingSink();
+    List<Variant> variants = makeVariants(25);
+    BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(sink)
+        .setMaxBatchSize(10)
+        .build();
+    for (Variant variant : variants) {
+      emitter.emit(variant);
+    }
+    emitter.close();
+
+    assertEquals(3, sink.batches.size());
+    assertEquals(10, sink.batches.get(0).size());
+    assertEquals(10, sink.batches.get(1).size());
+    assertEquals(5, sink.batches.get(2).size());
+    List<Variant> written = Lists.newArrayList();
+    for (List<Variant> batch : sink.batches) {
+      written.addAll(batch);
+    }
+    assertEquals(variants, written);
+    assertEquals(25, emitter.getEmitted());
+    assertEquals(0, emitter.getQueued());
+    assertEquals(0, emitter.getDropped());
+  }
+
+  @Test
+  public void testBatchesByBytes() {
+    AccumulatingSink sink = new AccumulatingSink();
+    List<Variant> variants = makeVariants(10);
+    BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(sink)
+        .setMaxBatchBytes(2 * variants.get(0).getSerializedSize())
+        .build();
+    for (Variant variant : variants) {
+      emitter.emit(variant);
+    }
+    emitter.flush();
+
+    assertEquals(5, sink.batches.size());
+    assertEquals(10, emitter.getEmitted());
+    emitter.close();
+  }
+
+  @Test
+  public void testDropWhenQueueIsFull() throws Exception {
+    final CountDownLatch sinkStarted = new CountDownLatch(1);
+    final CountDownLatch releaseSink = new CountDownLatch(1);
+    BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(
+        new BatchingVariantEmitter.Sink() {
+          @Override
+          public void write(List<Variant> batch) throws IOException {
+            sinkStarted.countDown();
+            try {
+              releaseSink.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+        })
+        .setMaxBatchSize(1)
+        .setQueueCapacity(1)
+        .setOverflow(BatchingVariantEmitter.Overflow.DROP)
+        .build();
+
+    List<Variant> variants = makeVariants(5);
+    emitter.emit(variants.get(0));
+    sinkStarted.await();
+    // The sink is busy with the first batch and the queue holds the second, so the rest are
+    // dropped.
+    for (Variant variant : variants.subList(1, 5)) {
+      emitter.emit(variant);
+    }
+    assertEquals(3, emitter.getDropped());
+    assertEquals(2, emitter.getQueued());
+
+    releaseSink.countDown();
+    emitter.close();
+    assertEquals(2, emitter.getEmitted());
+    assertEquals(0, emitter.getQueued());
+  }
+
+  @Test
+  public void testCloseNeverDrops() throws Exception {
+    final CountDownLatch sinkStarted = new CountDownLatch(1);
+    final CountDownLatch releaseSink = new CountDownLatch(1);
+    final BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(
+        new BatchingVariantEmitter.Sink() {
+          @Override
+          public void write(List<Variant> batch) throws IOException {
+            sinkStarted.countDown();
+            try {
+              releaseSink.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+        })
+        .setMaxBatchSize(2)
+        .setQueueCapacity(1)
+        .setOverflow(BatchingVariantEmitter.Overflow.DROP)
+        .build();
+
+    List<Variant> variants = makeVariants(5);
+    emitter.emit(variants.get(0));
+    emitter.emit(variants.get(1));
+    sinkStarted.await();
+    // The sink is busy with the first batch and the queue holds the second, so closing has to wait
+    // for the sink rather than drop the last, partial batch.
+    for (Variant variant : variants.subList(2, 5)) {
+      emitter.emit(variant);
+    }
+    Thread closer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        emitter.close();
+      }
+    });
+    closer.start();
+    while (Thread.State.WAITING != closer.getState()) {
+      Thread.sleep(1);
+    }
+    releaseSink.countDown();
+    closer.join();
+    assertEquals(5, emitter.getEmitted());
+    assertEquals(0, emitter.getDropped());
+  }
+
+  @Test
+  public void testSinkError() {
+    final Error failure = new AssertionError("Sink failed");
+    BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(
+        new BatchingVariantEmitter.Sink() {
+          @Override
+          public void write(List<Variant> batch) throws IOException {
+            throw failure;
+          }
+        })
+        .build();
+    for (Variant variant : makeVariants(3)) {
+      emitter.emit(variant);
+    }
+    // The writer survives the error, so flushing does not wait for it forever.
+    try {
+      emitter.flush();
+      fail();
+    } catch (RuntimeException e) {
+      assertSame(failure, e.getCause());
+    }
+  }
+
+  @Test
+  public void testSinkFailure() {
+    final IOException failure = new IOException("Sink failed");
+    BatchingVariantEmitter emitter = BatchingVariantEmitter.builder(
+        new BatchingVariantEmitter.Sink() {
+          @Override
+          public void write(List<Variant> batch) throws IOException {
+            throw failure;
+          }
+        })
+        .build();
+    // All three variants fit in one batch, which is only written on flush.
+    for (Variant variant : makeVariants(3)) {
+      emitter.emit(variant);
+    }
+    try {
+      emitter.flush();
+      fail();
+    } catch (RuntimeException e) {
+      assertSame(failure, e.getCause());
+    }
+    assertEquals(0, emitter.getEmitted());
+    assertEquals(3, emitter.getDropped());
+    assertTrue(emitter.toString().contains("dropped: 3"));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class GenomicsChannelPoolTest {
+  public static final String SERVER_NAME = "genomicsChannelPoolTest";
+
+  protected static Server server;
+
+  /**
+   * Creates in-process channels and remembers them.
+   */
+  static class InProcessChannelFactory implements GenomicsChannelPool.ChannelFactory {
+    final List<ManagedChannel> created = Lists.newArrayList();
+
+    @Override
+    public ManagedChannel createChannel(OfflineAuth auth, String fields) {
+      ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+      created.add(channel);
+      return channel;
+    }
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    try {
+      server = InProcessServerBuilder.forName(SERVER_NAME)
+          .addService(new GenomicsStreamIteratorTest.VariantsUnitServerImpl())
+          .build().start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.shutdownNow();
+  }
+
+  @Test
+  public void testChannelsAreReusedAndSpreadAcrossLeases() throws Exception {
+    InProcessChannelFactory factory = new InProcessChannelFactory();
+    GenomicsChannelPool pool = new GenomicsChannelPool(2, factory);
+    OfflineAuth auth = new OfflineAuth("theApiKey");
+
+    GenomicsChannelPool.Lease first = pool.acquire(auth, null);
+    GenomicsChannelPool.Lease second = pool.acquire(auth, null);
+    GenomicsChannelPool.Lease third = pool.acquire(auth, null);
+    assertNotSame(first.getChannel(), second.getChannel());
+    assertSame(first.getChannel(), third.getChannel());
+    assertEquals(2, factory.created.size());
+
+    // The least leased channel is chosen.
+    second.close();
+    second.close();
+    assertSame(second.getChannel(), pool.acquire(auth, null).getChannel());
+
+    // Other credentials or fields get channels of their own.
+    pool.acquire(auth, "variants(start)").close();
+    pool.acquire(new OfflineAuth("anotherApiKey"), null).close();
+    assertEquals(4, factory.created.size());
+
+    pool.close();
+    for (ManagedChannel channel : factory.created) {
+      assertTrue(channel.isShutdown());
+    }
+  }
+
+  @Test
+  public void testStreamsReleaseTheirLease() throws Exception {
+    InProcessChannelFactory factory = new InProcessChannelFactory();
+    GenomicsChannelPool pool = new GenomicsChannelPool(1, factory);
+    OfflineAuth auth = new OfflineAuth("theApiKey");
+    StreamVariantsRequest request = GenomicsStreamIteratorTest.PROTOTYPE_VARIANT_REQUEST;
+
+    for (int i = 0; i < 3; i++) {
+      VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(pool, auth, request,
+          ShardBoundary.Requirement.OVERLAPS, null);
+      TestHelper.consumeStreamTest(iter, 3);
+    }
+    assertEquals(1, factory.created.size());
+    assertFalse("the pooled channel is left open", factory.created.get(0).isShutdown());
+    pool.close();
+    assertTrue(factory.created.get(0).isShutdown());
+  }
+
+  @Test
+  public void testAsyncStreamsReleaseTheirLease() throws Exception {
+    InProcessChannelFactory factory = new InProcessChannelFactory();
+    // With room for a second channel, a lease that is never released would make the pool create it.
+    GenomicsChannelPool pool = new GenomicsChannelPool(2, factory);
+    OfflineAuth auth = new OfflineAuth("theApiKey");
+    StreamVariantsRequest request = GenomicsStreamIteratorTest.PROTOTYPE_VARIANT_REQUEST;
+
+    for (int i = 0; i < 3; i++) {
+      AsyncVariantStream stream = AsyncVariantStream.enforceShardBoundary(pool, auth, request,
+          ShardBoundary.Requirement.OVERLAPS, null);
+      AsyncGenomicsStreamTest.CollectingListener<StreamVariantsResponse> listener =
+          new AsyncGenomicsStreamTest.CollectingListener<>();
+      stream.start(listener);
+      listener.await();
+      assertNull(listener.error);
+    }
+    assertEquals(1, factory.created.size());
+    assertFalse("the pooled channel is left open", factory.created.get(0).isShutdown());
+    pool.close();
+  }
+
+  @Test
+  public void testParallelStreamerReleasesLeases() throws Exception {
+    InProcessChannelFactory factory = new InProcessChannelFactory();
+    GenomicsChannelPool pool = new GenomicsChannelPool(2, factory);
+    OfflineAuth auth = new OfflineAuth("theApiKey");
+    List<StreamVariantsRequest> requests = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      requests.add(GenomicsStreamIteratorTest.PROTOTYPE_VARIANT_REQUEST);
+    }
+
+    // One shard at a time, so that each shard can reuse the lease of the one before it.
+    ParallelVariantStreamer streamer = ParallelVariantStreamer.builder(pool, auth, requests)
+        .setConcurrency(1).build();
+    int numResponses = 0;
+    while (streamer.hasNext()) {
+      streamer.next();
+      numResponses++;
+    }
+    streamer.close();
+    assertTrue(0 < numResponses);
+    assertEquals(1, factory.created.size());
+    assertFalse("the pooled channel is left open", factory.created.get(0).isShutdown());
+    pool.close();
+  }
+}
@@ -14,6 +14,11 @@
 
 package com.google.cloud.genomics.utils.grpc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.cloud.genomics.utils.ShardBoundary;
 import com.google.genomics.v1.StreamReadsRequest;
 import com.google.genomics.v1.StreamReadsResponse;
@@ -34,6 +39,7 @@ import org.mockito.Mockito;
 import io.grpc.ManagedChannel;
 import io.grpc.Server;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -217,6 +223,11 @@ public class GenomicsStreamIteratorRetryTest {
     } else {
       Mockito.verify(iteratorSpy, Mockito.times(0)).getRevisedRequest(REQUEST_START_POSITION);
     }
+
+    StreamMetrics metrics = iteratorSpy.getMetrics();
+    assertEquals(1, metrics.getRetries());
+    assertEquals(InjectionSite.AT_BEGINNING.equals(targetSite) ? 0 : 1,
+        metrics.getResumedStreams());
   }
 
   // The following tests could be collapsed into a for loop upon the injection site enumeration,
@@ -317,4 +328,27 @@ public class GenomicsStreamIteratorRetryTest {
     runTest(READS_REQUEST, ShardBoundary.Requirement.OVERLAPS,
         InjectionSite.AT_END, 9);
   }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testAssignedBackoffIsUsed() {
+    startServer(InjectionSite.AT_END);
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        VARIANTS_REQUEST, ShardBoundary.Requirement.OVERLAPS, null);
+    // Subclasses used to tune the retries by assigning the backoff.
+    iter.backoff = new ExponentialBackOff() {
+      @Override
+      public long nextBackOffMillis() {
+        return BackOff.STOP;
+      }
+    };
+    try {
+      while (iter.hasNext()) {
+        iter.next();
+      }
+      fail("the stream was retried");
+    } catch (StatusRuntimeException e) {
+      assertEquals(0, iter.getMetrics().getRetries());
+    }
+  }
 }
@@ -14,8 +14,13 @@
 
 package com.google.cloud.genomics.utils.grpc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
 import com.google.cloud.genomics.utils.ShardBoundary;
 import com.google.cloud.genomics.utils.ShardUtils;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.genomics.v1.StreamReadsRequest;
 import com.google.genomics.v1.StreamReadsResponse;
@@ -23,6 +28,7 @@ import com.google.genomics.v1.StreamVariantsRequest;
 import com.google.genomics.v1.StreamVariantsResponse;
 import com.google.genomics.v1.StreamingReadServiceGrpc;
 import com.google.genomics.v1.StreamingVariantServiceGrpc;
+import com.google.genomics.v1.Variant;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -190,4 +196,73 @@ public class GenomicsStreamIteratorTest {
     TestHelper.consumeStreamTest(iter, 3);
   }
 
+  @Test
+  public void testUnfilteredResponsesAreNotRebuilt() {
+    StreamVariantsResponse response = StreamVariantsResponse.newBuilder()
+        .addVariants(TestHelper.makeVariant(400, 510))
+        .addVariants(TestHelper.makeVariant(450, 505))
+        .build();
+
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        PROTOTYPE_VARIANT_REQUEST.toBuilder().setStart(400).build(),
+        ShardBoundary.Requirement.OVERLAPS, null);
+    assertSame(response, iter.filterResponse(response));
+
+    iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        PROTOTYPE_VARIANT_REQUEST.toBuilder().setStart(400).build(),
+        ShardBoundary.Requirement.STRICT, null);
+    assertSame(response, iter.filterResponse(response));
+
+    StreamReadsResponse readsResponse = StreamReadsResponse.newBuilder()
+        .addAlignments(TestHelper.makeRead(400, 510))
+        .addAlignments(TestHelper.makeRead(450, 505))
+        .build();
+    ReadStreamIterator readIter = ReadStreamIterator.enforceShardBoundary(createChannel(),
+        PROTOTYPE_READ_REQUEST.toBuilder().setStart(400).build(),
+        ShardBoundary.Requirement.STRICT, null);
+    assertSame(readsResponse, readIter.filterResponse(readsResponse));
+  }
+
+  @Test
+  public void testStrictShardBoundaryTrimsLeadingData() {
+    StreamVariantsResponse.Builder builder = StreamVariantsResponse.newBuilder();
+    for (int start = 490; start < 510; start++) {
+      builder.addVariants(TestHelper.makeVariant(start, start + 1));
+    }
+    StreamVariantsResponse response = builder.build();
+
+    for (int shardStart = 489; shardStart <= 511; shardStart++) {
+      VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+          PROTOTYPE_VARIANT_REQUEST.toBuilder().setStart(shardStart).build(),
+          ShardBoundary.Requirement.STRICT, null);
+      StreamVariantsResponse filtered = iter.filterResponse(response);
+      int expected = Math.max(0, Math.min(20, 510 - shardStart));
+      assertEquals(expected, filtered.getVariantsCount());
+      if (0 < expected) {
+        assertEquals(510 - expected, filtered.getVariants(0).getStart());
+      }
+    }
+  }
+
+  @Test
+  public void testArbitraryPredicateIsStillApplied() {
+    StreamVariantsResponse response = StreamVariantsResponse.newBuilder()
+        .addVariants(TestHelper.makeVariant(400, 401))
+        .addVariants(TestHelper.makeVariant(450, 505))
+        .addVariants(TestHelper.makeVariant(499, 500))
+        .build();
+    Predicate<Variant> snpsOnly = new Predicate<Variant>() {
+      @Override
+      public boolean apply(Variant variant) {
+        return 1 == variant.getEnd() - variant.getStart();
+      }
+    };
+    VariantStreamIterator iter =
+        new VariantStreamIterator(createChannel(), PROTOTYPE_VARIANT_REQUEST, snpsOnly);
+    StreamVariantsResponse filtered = iter.filterResponse(response);
+    assertNotSame(response, filtered);
+    assertEquals(2, filtered.getVariantsCount());
+    assertEquals(400, filtered.getVariants(0).getStart());
+    assertEquals(499, filtered.getVariants(1).getStart());
+  }
 }
@@ -13,7 +13,16 @@
  */
 package com.google.cloud.genomics.utils.grpc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
 import com.google.genomics.v1.Variant;
+import com.google.genomics.v1.VariantCall;
 import com.google.protobuf.ListValue;
 import com.google.protobuf.Value;
 
@@ -26,6 +35,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RunWith(JUnit4.class)
 public class MergeAllVariantsAtSameSiteTest {
@@ -89,6 +99,29 @@ public class MergeAllVariantsAtSameSiteTest {
     }
   }
 
+  @Test
+  public void testMergeVariantsRenumbersGenotypes() throws Exception {
+    Variant.Builder dest = TestHelper.makeVariant("chr2", 100, 101, "C", Arrays.asList("A", "G"))
+        .addCalls(TestHelper.makeCall("dest", 1, 2));
+    Variant src = TestHelper.makeVariant("chr2", 100, 101, "C", Arrays.asList("G", "T", "A"))
+        .addCalls(TestHelper.makeCall("het-GT", 1, 2))
+        .addCalls(TestHelper.makeCall("no-call", 0, -1))
+        .addCalls(TestHelper.makeCall("hom-A", 3, 3))
+        .addCalls(TestHelper.makeCall("tri-ploid", 0, 3, 1))
+        .build();
+
+    MergeAllVariantsAtSameSite.mergeVariants(dest, src);
+
+    Variant expectedOutput = TestHelper.makeVariant("chr2", 100, 101, "C", Arrays.asList("A", "G", "T"))
+        .addCalls(TestHelper.makeCall("dest", 1, 2))
+        .addCalls(TestHelper.makeCall("het-GT", 2, 3))
+        .addCalls(TestHelper.makeCall("no-call", 0, -1))
+        .addCalls(TestHelper.makeCall("hom-A", 1, 1))
+        .addCalls(TestHelper.makeCall("tri-ploid", 0, 1, 2))
+        .build();
+    assertEquals(expectedOutput, dest.build());
+  }
+
   @Test
   public void testCombineIndelsAtSameStart() throws Exception {
     Variant insert1BiAllelic = TestHelper.makeVariant("chr2", 100, "C", Arrays.asList("CA"), "het-RA").build();
@@ -186,4 +219,48 @@ public class MergeAllVariantsAtSameSiteTest {
           MergeAllVariantsAtSameSite.class);
     }
   }
+
+  @Test
+  public void testOverlappingCallSetsBitset() throws Exception {
+    List<Variant> input = Lists.newArrayList(VariantStreamMergerTest.COHORT_1);
+    input.addAll(VariantStreamMergerTest.COHORT_2);
+    input.addAll(VariantStreamMergerTest.COHORT_3);
+    Set<String> names = Sets.newTreeSet();
+    for (Variant variant : input) {
+      for (VariantCall call : variant.getCallsList()) {
+        names.add(call.getCallSetName());
+      }
+    }
+    List<String> callSetNames = Lists.newArrayList(names);
+
+    VariantMergeStrategyTestHelper.AccumulatingVariantEmitter byName =
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+    new MergeAllVariantsAtSameSite().merge(95L, input, byName);
+    VariantMergeStrategyTestHelper.AccumulatingVariantEmitter byIndex =
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+    new MergeAllVariantsAtSameSite(callSetNames).merge(95L, input, byIndex);
+
+    assertEquals(byName.getVariants().size(), byIndex.getVariants().size());
+    boolean anyOverlapping = false;
+    for (int i = 0; i < byName.getVariants().size(); i++) {
+      Variant expected = byName.getVariants().get(i);
+      Variant actual = byIndex.getVariants().get(i);
+      assertEquals(expected.getCallsList(), actual.getCallsList());
+      assertFalse(actual.getInfoMap().containsKey(MergeAllVariantsAtSameSite.OVERLAPPING_CALLSETS_FIELD));
+      // The bitset notes each callset once, whereas the names may repeat.
+      Set<String> expectedNames = ImmutableSet.copyOf(
+          MergeAllVariantsAtSameSite.getOverlappingCallSetNames(expected, null));
+      assertEquals(expectedNames, ImmutableSet.copyOf(
+          MergeAllVariantsAtSameSite.getOverlappingCallSetNames(actual, callSetNames)));
+      anyOverlapping |= !expectedNames.isEmpty();
+    }
+    assertTrue(anyOverlapping);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCallSetMissingFromDictionary() throws Exception {
+    new MergeAllVariantsAtSameSite(Arrays.asList("someone-else")).merge(100L,
+        VariantStreamMergerTest.COHORT_1,
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter());
+  }
 }
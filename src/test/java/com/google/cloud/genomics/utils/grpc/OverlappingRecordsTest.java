@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class OverlappingRecordsTest {
+
+  @Test
+  public void testOverlappingInInsertionOrder() {
+    Variant long1 = TestHelper.makeVariant(0, 100);
+    Variant short1 = TestHelper.makeVariant(10, 20);
+    Variant long2 = TestHelper.makeVariant(15, 50);
+    Variant short2 = TestHelper.makeVariant(18, 19);
+
+    OverlappingRecords records = new OverlappingRecords();
+    records.add(long1);
+    records.add(short1);
+    records.add(long2);
+    records.add(short2);
+
+    assertEquals(Arrays.asList(long1, short1, long2, short2), records.getOverlapping(18));
+    assertEquals(Arrays.asList(long1, short1, long2), records.getOverlapping(19));
+    assertEquals(Arrays.asList(long1, long2), records.getOverlapping(20));
+
+    records.removeEndingBy(20);
+    assertEquals(2, records.size());
+    assertEquals(Arrays.asList(long1, long2), records.getOverlapping(30));
+
+    records.removeEndingBy(50);
+    assertEquals(Collections.singletonList(long1), records.getOverlapping(99));
+    assertEquals(Collections.emptyList(), records.getOverlapping(100));
+
+    records.removeEndingBy(100);
+    assertEquals(0, records.size());
+  }
+
+  @Test
+  public void testInterleavedLongAndShortRecords() {
+    Random random = new Random(42);
+    OverlappingRecords records = new OverlappingRecords();
+    List<Variant> added = Lists.newArrayList();
+    long start = 0;
+    for (int i = 0; i < 2000; i++) {
+      start += random.nextInt(3);
+      // Mostly short records with the occasional very long one.
+      long length = (0 == random.nextInt(20)) ? 500 + random.nextInt(500) : 1 + random.nextInt(5);
+      Variant record = TestHelper.makeVariant(start, start + length);
+      records.add(record);
+      added.add(record);
+
+      List<Variant> expected = Lists.newArrayList();
+      for (Variant candidate : added) {
+        if (candidate.getStart() <= start && candidate.getEnd() >= start + 1) {
+          expected.add(candidate);
+        }
+      }
+      assertEquals(expected, records.getOverlapping(start));
+      assertEquals(expected.size(), records.size());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPositionMovingBackwards() {
+    OverlappingRecords records = new OverlappingRecords();
+    records.removeEndingBy(10);
+    records.removeEndingBy(9);
+  }
+}
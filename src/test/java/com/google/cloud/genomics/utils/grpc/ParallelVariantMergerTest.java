@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+@RunWith(JUnit4.class)
+public class ParallelVariantMergerTest {
+
+  private static final long REGION_END = 1000;
+  private static final long MAX_BLOCK_LENGTH = 60;
+
+  private static ForkJoinPool pool;
+  private static List<Variant> records;
+
+  @BeforeClass
+  public static void setUp() {
+    pool = new ForkJoinPool(4);
+
+    // Several samples, each alternating between non-variant segments and SNPs.
+    Random random = new Random(7);
+    records = Lists.newArrayList();
+    for (int sample = 0; sample < 5; sample++) {
+      long position = random.nextInt(10);
+      while (position < REGION_END) {
+        if (random.nextBoolean()) {
+          long end = position + 1 + random.nextInt((int) MAX_BLOCK_LENGTH);
+          records.add(TestHelper.makeBlockRecord("chr1", position, end, "A",
+              TestHelper.EMPTY_ALT_LIST).build());
+          position = end;
+        } else {
+          records.add(TestHelper.makeVariant("chr1", position, "C",
+              Arrays.asList(random.nextBoolean() ? "A" : "G"), "het-RA").build());
+          position++;
+        }
+      }
+    }
+    Collections.sort(records, VariantUtils.CHROMOSOMAL_ORDER);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void testSameResultAsMergingTheWholeRegion() {
+    for (VariantMergeStrategy strategy : Arrays.asList(new MergeAllVariantsAtSameSite(),
+        new MergeNonVariantSegmentsWithSnps(), new MergeNonVariantSegmentsWithVariants())) {
+      VariantMergeStrategyTestHelper.AccumulatingVariantEmitter expected =
+          new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+      strategy.merge(0L, records, expected);
+
+      for (long windowSize : Arrays.asList(1L, 37L, 250L, 5000L)) {
+        VariantMergeStrategyTestHelper.AccumulatingVariantEmitter actual =
+            new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+        new ParallelVariantMerger(strategy, pool, windowSize, 3).merge("chr1", 0, REGION_END + 100,
+            ParallelVariantMerger.fromSortedVariants(records, MAX_BLOCK_LENGTH), actual);
+
+        assertFalse(expected.getVariants().isEmpty());
+        assertEquals(expected.getVariants(), actual.getVariants());
+      }
+    }
+  }
+
+  @Test
+  public void testFailedWindow() {
+    final RuntimeException failure = new IllegalStateException("Window failed");
+    final ParallelVariantMerger.VariantSource source =
+        ParallelVariantMerger.fromSortedVariants(records, MAX_BLOCK_LENGTH);
+    VariantMergeStrategyTestHelper.AccumulatingVariantEmitter emitter =
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+    try {
+      new ParallelVariantMerger(new MergeNonVariantSegmentsWithVariants(), pool, 100, 2).merge(
+          "chr1", 0, REGION_END, new ParallelVariantMerger.VariantSource() {
+            @Override
+            public Iterable<Variant> getVariants(String referenceName, long start, long end) {
+              if (500 == start) {
+                throw failure;
+              }
+              return source.getVariants(referenceName, start, end);
+            }
+          }, emitter);
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+
+    // Only the windows before the failed one were emitted.
+    assertFalse(emitter.getVariants().isEmpty());
+    for (Variant variant : emitter.getVariants()) {
+      assertTrue(variant.getStart() < 500);
+    }
+  }
+}
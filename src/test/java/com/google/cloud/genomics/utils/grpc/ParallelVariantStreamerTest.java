@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+import com.google.genomics.v1.StreamingVariantServiceGrpc;
+import com.google.genomics.v1.Variant;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ParallelVariantStreamerTest {
+  public static final String SERVER_NAME = "parallelVariantStreamerTest";
+  public static final int NUM_SHARDS = 20;
+  public static final int NUM_RESPONSES_PER_SHARD = 5;
+  public static final long BASES_PER_SHARD = 100;
+
+  protected static Server server;
+
+  /**
+   * Returns one variant per response, starting one base before the shard to exercise the
+   * strict shard boundary.
+   */
+  protected static class VariantsUnitServerImpl extends StreamingVariantServiceGrpc.StreamingVariantServiceImplBase {
+    @Override
+    public void streamVariants(StreamVariantsRequest request,
+        StreamObserver<StreamVariantsResponse> responseObserver) {
+      for (int i = 0; i < NUM_RESPONSES_PER_SHARD; i++) {
+        long start = request.getStart() + i - 1;
+        responseObserver.onNext(StreamVariantsResponse.newBuilder()
+            .addVariants(TestHelper.makeVariant(start, start + 1)).build());
+      }
+      responseObserver.onCompleted();
+    }
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    try {
+      server = InProcessServerBuilder.forName(SERVER_NAME)
+          .addService(new VariantsUnitServerImpl())
+          .build().start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.shutdownNow();
+  }
+
+  public static List<StreamVariantsRequest> getShuffledRequests() {
+    List<StreamVariantsRequest> requests = Lists.newArrayList();
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      requests.add(StreamVariantsRequest.newBuilder()
+          .setVariantSetId("theVariantSetId")
+          .setReferenceName("chr17")
+          .setStart(1000 + i * BASES_PER_SHARD)
+          .setEnd(1000 + (i + 1) * BASES_PER_SHARD)
+          .build());
+    }
+    Collections.shuffle(requests);
+    return requests;
+  }
+
+  public static List<Long> consume(ParallelVariantStreamer streamer) {
+    List<Long> starts = Lists.newArrayList();
+    try {
+      while (streamer.hasNext()) {
+        for (Variant variant : streamer.next().getVariantsList()) {
+          starts.add(variant.getStart());
+        }
+      }
+    } finally {
+      streamer.close();
+    }
+    return starts;
+  }
+
+  @Test
+  public void testOrderedDelivery() {
+    ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    List<StreamVariantsRequest> requests = getShuffledRequests();
+    List<Long> starts = consume(ParallelVariantStreamer.builder(channel, requests)
+        .setShardBoundary(ShardBoundary.Requirement.STRICT, null)
+        .setConcurrency(4)
+        .setQueueCapacity(1)
+        .setDelivery(ParallelVariantStreamer.Delivery.ORDERED)
+        .build());
+
+    List<Long> expected = Lists.newArrayList();
+    for (StreamVariantsRequest request : requests) {
+      for (int i = 1; i < NUM_RESPONSES_PER_SHARD; i++) {
+        expected.add(request.getStart() + i - 1);
+      }
+    }
+    assertEquals(expected, starts);
+    assertFalse("the shared channel is left open", channel.isShutdown());
+    channel.shutdownNow();
+  }
+
+  @Test
+  public void testUnorderedDelivery() {
+    ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    List<Long> starts = consume(ParallelVariantStreamer.builder(channel, getShuffledRequests())
+        .setConcurrency(3)
+        .setQueueCapacity(2)
+        .build());
+
+    assertEquals(NUM_SHARDS * NUM_RESPONSES_PER_SHARD, starts.size());
+    Collections.sort(starts);
+    List<Long> expected = Lists.newArrayList();
+    for (int shard = 0; shard < NUM_SHARDS; shard++) {
+      for (int i = 0; i < NUM_RESPONSES_PER_SHARD; i++) {
+        expected.add(1000 + shard * BASES_PER_SHARD + i - 1);
+      }
+    }
+    Collections.sort(expected);
+    assertEquals(expected, starts);
+    assertFalse("the shared channel is left open", channel.isShutdown());
+    channel.shutdownNow();
+  }
+
+  @Test
+  public void testNoShards() {
+    ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    ParallelVariantStreamer streamer = ParallelVariantStreamer.builder(channel,
+        Collections.<StreamVariantsRequest>emptyList()).build();
+    assertFalse(streamer.hasNext());
+    streamer.close();
+    channel.shutdownNow();
+  }
+}
@@ -23,6 +23,7 @@ import com.google.genomics.v1.CigarUnit.Operation;
 import com.google.genomics.v1.LinearAlignment;
 import com.google.genomics.v1.Position;
 import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsResponse;
 import com.google.protobuf.ListValue;
 import com.google.protobuf.Value;
 
@@ -103,6 +104,38 @@ public class ReadUtilsTest {
     assertEquals("chr20", read.getNextMatePosition().getReferenceName());
     assertEquals(true, read.getNextMatePosition().getReverseStrand());
   }
+
+  @Test
+  public void testConversionSetsReferenceSequenceOfDeletionsAndMismatches() {
+    SAMRecord record = new SAMRecord(null);
+    record.setReferenceName("chr20");
+    record.setAlignmentStart(1);
+    record.setCigarString("2S3M1X1M2D2M");
+    record.setReadString("GGACGTCAA");
+    record.setBaseQualityString("ABCDEFGHI");
+    record.setAttribute("MD", "3G1^TT2");
+
+    Read read = ReadUtils.makeReadGrpc(record);
+    List<CigarUnit> cigar = read.getAlignment().getCigarList();
+    assertEquals(6, cigar.size());
+    assertEquals(Operation.SEQUENCE_MISMATCH, cigar.get(2).getOperation());
+    assertEquals("G", cigar.get(2).getReferenceSequence());
+    assertEquals(Operation.DELETE, cigar.get(4).getOperation());
+    assertEquals("TT", cigar.get(4).getReferenceSequence());
+    for (int i : new int[] {0, 1, 3, 5}) {
+      assertEquals("", cigar.get(i).getReferenceSequence());
+    }
+    assertEquals(Lists.newArrayList(32, 33, 34, 35, 36, 37, 38, 39, 40),
+        read.getAlignedQualityList());
+    assertEquals("3G1^TT2", read.getInfo().get("MD").getValues(0).getStringValue());
+
+    // The builders reused for the next record are cleared.
+    Read next = ReadUtils.makeReadGrpc(new SAMRecord(null));
+    assertEquals(false, next.hasAlignment());
+    assertEquals(0, next.getAlignedQualityCount());
+    assertEquals(0, next.getInfoCount());
+  }
+
   @Test
   public void testByteArrayAttributes() {
     // Client code of SamRecord can pass anything to setAttribute including
@@ -141,8 +174,7 @@ public class ReadUtilsTest {
     assertEquals(19, numReads);//sanity check to make sure we actually read the file
   }
 
-  private void testGetReferenceSequenceHelper(final String seq, final String cigar, final String md,
-      final String expectedReference) throws IOException {
+  private static Read makeReadWithMdTag(final String seq, final String cigar, final String md) {
     LinearAlignment.Builder alignment = LinearAlignment.newBuilder();
     Cigar cigars = TextCigarCodec.decode(cigar);
     for (int i = 0; i < cigars.numCigarElements(); i++) {
@@ -185,7 +217,13 @@ public class ReadUtilsTest {
         .setAlignment(alignment.build());
     rec.getMutableInfo().put("MD",
         ListValue.newBuilder().addValues(0, Value.newBuilder().setStringValue(md).build()).build());
-    final String refBases = ReadUtils.inferReferenceSequenceByParsingMdFlag(rec.build());
+    return rec.build();
+  }
+
+  private void testGetReferenceSequenceHelper(final String seq, final String cigar, final String md,
+      final String expectedReference) throws IOException {
+    final String refBases =
+        ReadUtils.inferReferenceSequenceByParsingMdFlag(makeReadWithMdTag(seq, cigar, md));
     assertEquals(refBases, expectedReference);
   }
 
@@ -195,7 +233,9 @@ public class ReadUtilsTest {
     {"ACGTACGTACGT", "2S4M2I4M2S", "8", "00GTAC--ACGT00"},
     {"ACGTACGTACGT", "6M2D6M2H", "4GA^TT0TG4", "ACGTGATGACGT"},
     {"ACGTACGTACGT", "6M2N6M2H", "4GA0TG4", "ACGTGATGACGT"},
-    {"ACGTACGTACGT", "6M2N6M2H", "4GATG4", "ACGTGATGACGT"}};
+    {"ACGTACGTACGT", "6M2N6M2H", "4GATG4", "ACGTGATGACGT"},
+    {"ACGTACGTACGT", "3M1X8M", "3a8", "ACGaACGTACGT"},
+    {"ACGTACGTACGT", "2S4M2D4M2I", "2C1^GC0A3", "00GTCCATAC--"}};
 
   @Test
   public void testGetReferenceSequence() throws IOException {
@@ -206,4 +246,25 @@ public class ReadUtilsTest {
           (String) o[3]);
     }
   }
+
+  @Test
+  public void testGetReferenceSequencesOfResponse() {
+    StreamReadsResponse.Builder response = StreamReadsResponse.newBuilder();
+    for (Object[] o : TEST_DATA) {
+      response.addAlignments(makeReadWithMdTag((String) o[0], (String) o[1], (String) o[2]));
+    }
+    response.addAlignments(Read.newBuilder().setFragmentName("unaligned"));
+
+    List<String> refBases = ReadUtils.inferReferenceSequencesByParsingMdFlag(response.build());
+    assertEquals(TEST_DATA.length + 1, refBases.size());
+    for (int i = 0; i < TEST_DATA.length; i++) {
+      assertEquals(TEST_DATA[i][3], refBases.get(i));
+    }
+    assertEquals(null, refBases.get(TEST_DATA.length));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetReferenceSequenceWithMalformedMdTag() {
+    ReadUtils.inferReferenceSequenceByParsingMdFlag(makeReadWithMdTag("ACGT", "4M", "2^2"));
+  }
 }
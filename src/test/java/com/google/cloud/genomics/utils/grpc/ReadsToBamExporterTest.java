@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.genomics.v1.CigarUnit;
+import com.google.genomics.v1.CigarUnit.Operation;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamingReadServiceGrpc;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class ReadsToBamExporterTest {
+  public static final String SERVER_NAME = "readsToBamExporterTest";
+  public static final String[] REFERENCES = {"chr1", "chr2"};
+  public static final long BASES_PER_SHARD = 1000;
+  public static final int NUM_SHARDS_PER_REFERENCE = 5;
+  public static final int READS_PER_RESPONSE = 50;
+  public static final int READ_LENGTH = 100;
+
+  protected static Server server;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Returns a read every 10 bases of the shard, starting before it to exercise the strict shard
+   * boundary, in several responses.
+   */
+  protected static class ReadsUnitServerImpl extends StreamingReadServiceGrpc.StreamingReadServiceImplBase {
+    @Override
+    public void streamReads(StreamReadsRequest request,
+        StreamObserver<StreamReadsResponse> responseObserver) {
+      StreamReadsResponse.Builder response = StreamReadsResponse.newBuilder();
+      for (long start = request.getStart() - 50; start < request.getEnd(); start += 10) {
+        response.addAlignments(makeRead(request.getReferenceName(), start));
+        if (READS_PER_RESPONSE == response.getAlignmentsCount()) {
+          responseObserver.onNext(response.build());
+          response.clear();
+        }
+      }
+      if (0 < response.getAlignmentsCount()) {
+        responseObserver.onNext(response.build());
+      }
+      responseObserver.onCompleted();
+    }
+  }
+
+  static Read makeRead(String referenceName, long start) {
+    StringBuilder bases = new StringBuilder();
+    for (int i = 0; i < READ_LENGTH; i++) {
+      bases.append("ACGT".charAt((int) ((start + i) % 4)));
+    }
+    return Read.newBuilder()
+        .setId(referenceName + ":" + start)
+        .setFragmentName("read-" + referenceName + "-" + start)
+        .setAlignment(LinearAlignment.newBuilder()
+            .setPosition(Position.newBuilder().setReferenceName(referenceName).setPosition(start))
+            .setMappingQuality(60)
+            .addCigar(CigarUnit.newBuilder().setOperation(Operation.ALIGNMENT_MATCH)
+                .setOperationLength(READ_LENGTH)))
+        .setAlignedSequence(bases.toString())
+        .build();
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    try {
+      server = InProcessServerBuilder.forName(SERVER_NAME)
+          .addService(new ReadsUnitServerImpl())
+          .build().start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.shutdownNow();
+  }
+
+  static List<StreamReadsRequest> getRequests() {
+    List<StreamReadsRequest> requests = Lists.newArrayList();
+    for (String referenceName : REFERENCES) {
+      for (int i = 0; i < NUM_SHARDS_PER_REFERENCE; i++) {
+        requests.add(StreamReadsRequest.newBuilder()
+            .setReadGroupSetId("theReadGroupSetId")
+            .setReferenceName(referenceName)
+            .setStart(100 + i * BASES_PER_SHARD)
+            .setEnd(100 + (i + 1) * BASES_PER_SHARD)
+            .build());
+      }
+    }
+    return requests;
+  }
+
+  static SAMFileHeader getHeader() {
+    SAMFileHeader header = new SAMFileHeader();
+    for (String referenceName : REFERENCES) {
+      header.addSequence(new SAMSequenceRecord(referenceName, 100000));
+    }
+    return header;
+  }
+
+  @Test
+  public void testExportWithIndex() throws Exception {
+    runExportTest(getRequests());
+  }
+
+  @Test
+  public void testExportShuffledRequests() throws Exception {
+    // E.g. the shards of ShardUtils.getReadRequests, which are shuffled.
+    List<StreamReadsRequest> requests = getRequests();
+    Collections.shuffle(requests, new Random(42));
+    runExportTest(requests);
+  }
+
+  public void runExportTest(List<StreamReadsRequest> requests) throws Exception {
+    ManagedChannel channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+    ByteArrayOutputStream bam = new ByteArrayOutputStream();
+    ByteArrayOutputStream bai = new ByteArrayOutputStream();
+    long numReads = ReadsToBamExporter.builder(channel, requests, getHeader())
+        .setConcurrency(3)
+        .setIndexOutput(bai)
+        .build()
+        .export(bam);
+    channel.shutdownNow();
+
+    long readsPerReference = NUM_SHARDS_PER_REFERENCE * BASES_PER_SHARD / 10;
+    assertEquals(REFERENCES.length * readsPerReference, numReads);
+
+    File bamFile = folder.newFile("reads.bam");
+    File baiFile = folder.newFile("reads.bai");
+    Files.write(bam.toByteArray(), bamFile);
+    Files.write(bai.toByteArray(), baiFile);
+    SamReader reader = SamReaderFactory.makeDefault()
+        .validationStringency(ValidationStringency.STRICT)
+        .open(SamInputResource.of(bamFile).index(baiFile));
+    try {
+      // All reads are returned once, in order.
+      long count = 0;
+      long lastStart = 0;
+      String lastReference = REFERENCES[0];
+      SAMRecordIterator all = reader.iterator();
+      try {
+        while (all.hasNext()) {
+          SAMRecord record = all.next();
+          if (!lastReference.equals(record.getReferenceName())) {
+            lastReference = record.getReferenceName();
+            lastStart = 0;
+          }
+          assertTrue(lastStart < record.getAlignmentStart());
+          assertEquals(makeRead(record.getReferenceName(), record.getAlignmentStart() - 1)
+              .getAlignedSequence(), record.getReadString());
+          lastStart = record.getAlignmentStart();
+          count++;
+        }
+      } finally {
+        all.close();
+      }
+      assertEquals(numReads, count);
+
+      // The index finds the reads overlapping a region.
+      SAMRecordIterator overlapping = reader.queryOverlapping("chr2", 2001, 2100);
+      try {
+        long overlappingCount = 0;
+        while (overlapping.hasNext()) {
+          SAMRecord record = overlapping.next();
+          assertEquals("chr2", record.getReferenceName());
+          overlappingCount++;
+        }
+        // Reads starting at 0-based positions 1910 through 2090.
+        assertEquals(19, overlappingCount);
+      } finally {
+        overlapping.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
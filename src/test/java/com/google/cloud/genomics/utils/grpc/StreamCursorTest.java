@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+import com.google.genomics.v1.StreamingReadServiceGrpc;
+import com.google.genomics.v1.StreamingVariantServiceGrpc;
+import com.google.genomics.v1.Variant;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests resuming streams in a new iterator from a saved cursor, using the same data as
+ * {@link GenomicsStreamIteratorRetryTest}.
+ */
+@RunWith(JUnit4.class)
+public class StreamCursorTest {
+  public static final String SERVER_NAME = "streamCursorTest";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  protected static Server server;
+
+  protected static class ReadsUnitServerImpl extends StreamingReadServiceGrpc.StreamingReadServiceImplBase {
+    @Override
+    public void streamReads(StreamReadsRequest request,
+        StreamObserver<StreamReadsResponse> responseObserver) {
+      for (StreamReadsResponse response : GenomicsStreamIteratorRetryTest.READ_RESPONSES) {
+        responseObserver.onNext(response);
+      }
+      responseObserver.onCompleted();
+    }
+  }
+
+  protected static class VariantsUnitServerImpl extends StreamingVariantServiceGrpc.StreamingVariantServiceImplBase {
+    @Override
+    public void streamVariants(StreamVariantsRequest request,
+        StreamObserver<StreamVariantsResponse> responseObserver) {
+      for (StreamVariantsResponse response : GenomicsStreamIteratorRetryTest.VARIANT_RESPONSES) {
+        responseObserver.onNext(response);
+      }
+      responseObserver.onCompleted();
+    }
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    try {
+      server = InProcessServerBuilder.forName(SERVER_NAME)
+          .addService(new ReadsUnitServerImpl())
+          .addService(new VariantsUnitServerImpl())
+          .build().start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.shutdownNow();
+  }
+
+  public ManagedChannel createChannel() {
+    return InProcessChannelBuilder.forName(SERVER_NAME).build();
+  }
+
+  public static List<String> getVariantIds(StreamVariantsResponse... responses) {
+    List<String> ids = Lists.newArrayList();
+    for (StreamVariantsResponse response : responses) {
+      for (Variant variant : response.getVariantsList()) {
+        ids.add(variant.getId());
+      }
+    }
+    return ids;
+  }
+
+  public void runVariantTest(ShardBoundary.Requirement requirement, int numResponsesBeforeCrash)
+      throws IOException {
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, requirement, null);
+    List<String> expected = Lists.newArrayList();
+    while (iter.hasNext()) {
+      expected.addAll(getVariantIds(iter.next()));
+    }
+
+    iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, requirement, null);
+    List<String> actual = Lists.newArrayList();
+    for (int i = 0; i < numResponsesBeforeCrash; i++) {
+      actual.addAll(getVariantIds(iter.next()));
+    }
+    File file = new File(folder.getRoot(), "cursor");
+    iter.getCursor().save(file);
+    // The worker dies here.
+    iter.genomicsChannel.shutdownNow();
+
+    StreamCursor<StreamVariantsRequest> cursor = StreamCursor.load(file);
+    assertEquals(iter.getCursor(), cursor);
+    VariantStreamIterator resumed =
+        VariantStreamIterator.resume(createChannel(), cursor, requirement, null);
+    while (resumed.hasNext()) {
+      actual.addAll(getVariantIds(resumed.next()));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testResumeVariants() throws IOException {
+    for (int numResponsesBeforeCrash = 0; numResponsesBeforeCrash <= 3;
+        numResponsesBeforeCrash++) {
+      runVariantTest(ShardBoundary.Requirement.STRICT, numResponsesBeforeCrash);
+      runVariantTest(ShardBoundary.Requirement.OVERLAPS, numResponsesBeforeCrash);
+    }
+  }
+
+  @Test
+  public void testResumeVariantItems() throws IOException {
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, ShardBoundary.Requirement.OVERLAPS, null);
+    List<String> expected = Lists.newArrayList();
+    while (iter.hasNext()) {
+      expected.addAll(getVariantIds(iter.next()));
+    }
+    for (int numItemsBeforeCrash = 0; numItemsBeforeCrash <= expected.size();
+        numItemsBeforeCrash++) {
+      iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+          GenomicsStreamIteratorRetryTest.VARIANTS_REQUEST, ShardBoundary.Requirement.OVERLAPS,
+          null);
+      // Read ahead of the consumer, so that the cursor must not follow the responses received.
+      StreamItemIterator<Variant> items = iter.items(2);
+      List<String> actual = Lists.newArrayList();
+      for (int i = 0; i < numItemsBeforeCrash; i++) {
+        actual.add(items.next().getId());
+      }
+      File file = new File(folder.getRoot(), "cursor");
+      items.getCursor().save(file);
+      items.close();
+
+      VariantStreamIterator resumed = VariantStreamIterator.resume(createChannel(),
+          StreamCursor.<StreamVariantsRequest>load(file), ShardBoundary.Requirement.OVERLAPS,
+          null);
+      while (resumed.hasNext()) {
+        actual.addAll(getVariantIds(resumed.next()));
+      }
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testResumeReads() throws IOException {
+    ReadStreamIterator iter = ReadStreamIterator.enforceShardBoundary(createChannel(),
+        GenomicsStreamIteratorRetryTest.READS_REQUEST, ShardBoundary.Requirement.STRICT, null);
+    assertNull(iter.getCursor().getLastItemId());
+    List<String> ids = Lists.newArrayList();
+    for (Read read : iter.next().getAlignmentsList()) {
+      ids.add(read.getId());
+    }
+    File file = new File(folder.getRoot(), "cursor");
+    iter.getCursor().save(file);
+    iter.genomicsChannel.shutdownNow();
+
+    ReadStreamIterator resumed = ReadStreamIterator.resume(createChannel(),
+        StreamCursor.<StreamReadsRequest>load(file), ShardBoundary.Requirement.STRICT, null);
+    while (resumed.hasNext()) {
+      for (Read read : resumed.next().getAlignmentsList()) {
+        ids.add(read.getId());
+      }
+    }
+    assertEquals(7, ids.size());
+    assertEquals(1, resumed.getMetrics().getResumedStreams());
+  }
+}
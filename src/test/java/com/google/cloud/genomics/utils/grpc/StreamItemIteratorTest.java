@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamVariantsRequest;
+import com.google.genomics.v1.StreamVariantsResponse;
+import com.google.genomics.v1.StreamingReadServiceGrpc;
+import com.google.genomics.v1.StreamingVariantServiceGrpc;
+import com.google.genomics.v1.Variant;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class StreamItemIteratorTest {
+  public static final String SERVER_NAME = "streamItemIteratorTest";
+  public static final int NUM_RESPONSES = 10;
+  public static final int ITEMS_PER_RESPONSE = 3;
+  // The read service fails after this many responses.
+  public static final int NUM_READ_RESPONSES_BEFORE_FAILURE = 2;
+
+  protected static Server server;
+
+  protected static class VariantsUnitServerImpl extends StreamingVariantServiceGrpc.StreamingVariantServiceImplBase {
+    @Override
+    public void streamVariants(StreamVariantsRequest request,
+        StreamObserver<StreamVariantsResponse> responseObserver) {
+      long start = request.getStart();
+      for (int i = 0; i < NUM_RESPONSES; i++) {
+        StreamVariantsResponse.Builder response = StreamVariantsResponse.newBuilder();
+        for (int j = 0; j < ITEMS_PER_RESPONSE; j++) {
+          response.addVariants(TestHelper.makeVariant(start, start + 1));
+          start++;
+        }
+        responseObserver.onNext(response.build());
+      }
+      responseObserver.onCompleted();
+    }
+  }
+
+  protected static class ReadsUnitServerImpl extends StreamingReadServiceGrpc.StreamingReadServiceImplBase {
+    @Override
+    public void streamReads(StreamReadsRequest request,
+        StreamObserver<StreamReadsResponse> responseObserver) {
+      for (int i = 0; i < NUM_READ_RESPONSES_BEFORE_FAILURE; i++) {
+        responseObserver.onNext(StreamReadsResponse.newBuilder()
+            .addAlignments(TestHelper.makeRead(request.getStart() + i, request.getStart() + i + 10))
+            .build());
+      }
+      responseObserver.onError(Status.INTERNAL.withDescription("injected fault")
+          .asRuntimeException());
+    }
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    try {
+      server = InProcessServerBuilder.forName(SERVER_NAME)
+          .addService(new VariantsUnitServerImpl())
+          .addService(new ReadsUnitServerImpl())
+          .build().start();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.shutdownNow();
+  }
+
+  public ManagedChannel createChannel() {
+    return InProcessChannelBuilder.forName(SERVER_NAME).build();
+  }
+
+  public List<Long> consumeVariants(int prefetchDepth) {
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(createChannel(),
+        StreamVariantsRequest.newBuilder().setStart(1000).build(),
+        ShardBoundary.Requirement.OVERLAPS, null);
+    List<Long> starts = Lists.newArrayList();
+    StreamItemIterator<Variant> items = iter.items(prefetchDepth);
+    try {
+      while (items.hasNext()) {
+        starts.add(items.next().getStart());
+      }
+    } finally {
+      items.close();
+    }
+    return starts;
+  }
+
+  @Test
+  public void testItemsInStreamOrder() {
+    List<Long> expected = Lists.newArrayList();
+    for (long start = 1000; start < 1000 + NUM_RESPONSES * ITEMS_PER_RESPONSE; start++) {
+      expected.add(start);
+    }
+    assertEquals(expected, consumeVariants(0));
+    assertEquals(expected, consumeVariants(1));
+    assertEquals(expected, consumeVariants(StreamItemIterator.DEFAULT_PREFETCH_DEPTH));
+    assertEquals(expected, consumeVariants(NUM_RESPONSES * 2));
+  }
+
+  public void consumeReadsUntilFailure(int prefetchDepth) {
+    ReadStreamIterator iter = ReadStreamIterator.enforceShardBoundary(createChannel(),
+        StreamReadsRequest.newBuilder().setStart(1000).build(),
+        ShardBoundary.Requirement.OVERLAPS, null);
+    // Do not retry.
+    iter.setRetryPolicy(StreamRetryPolicy.neverRetry());
+    StreamItemIterator<Read> items = iter.items(prefetchDepth);
+    int numItems = 0;
+    try {
+      while (items.hasNext()) {
+        items.next();
+        numItems++;
+      }
+      fail("the failure of the stream should have been rethrown");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.INTERNAL, e.getStatus().getCode());
+    } finally {
+      items.close();
+    }
+    assertEquals(NUM_READ_RESPONSES_BEFORE_FAILURE, numItems);
+  }
+
+  @Test
+  public void testFailuresAreRethrown() {
+    consumeReadsUntilFailure(0);
+    consumeReadsUntilFailure(StreamItemIterator.DEFAULT_PREFETCH_DEPTH);
+  }
+
+  public void closeEarly(int prefetchDepth) throws InterruptedException {
+    ManagedChannel channel = createChannel();
+    VariantStreamIterator iter = VariantStreamIterator.enforceShardBoundary(channel,
+        StreamVariantsRequest.newBuilder().setStart(1000).build(),
+        ShardBoundary.Requirement.OVERLAPS, null);
+    StreamItemIterator<Variant> items = iter.items(prefetchDepth);
+    assertEquals(1000, items.next().getStart());
+    items.close();
+    for (int i = 0; i < 100 && !channel.isShutdown(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(channel.isShutdown());
+  }
+
+  @Test
+  public void testCloseShutsDownChannel() throws Exception {
+    closeEarly(0);
+    closeEarly(StreamItemIterator.DEFAULT_PREFETCH_DEPTH);
+  }
+}
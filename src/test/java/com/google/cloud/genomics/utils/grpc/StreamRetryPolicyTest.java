@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.util.BackOff;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.Status;
+
+@RunWith(JUnit4.class)
+public class StreamRetryPolicyTest {
+
+  private static final Throwable UNAVAILABLE = Status.UNAVAILABLE.asRuntimeException();
+  private static final Throwable INVALID_ARGUMENT = Status.INVALID_ARGUMENT.asRuntimeException();
+
+  @Test
+  public void testNeverRetry() {
+    assertEquals(BackOff.STOP,
+        StreamRetryPolicy.neverRetry().createInstance().nextBackOffMillis(UNAVAILABLE));
+  }
+
+  @Test
+  public void testDecorrelatedJitter() {
+    StreamRetryPolicy.Instance instance =
+        StreamRetryPolicy.decorrelatedJitter(10, 100, 5).createInstance();
+    long previous = 10;
+    for (int i = 0; i < 5; i++) {
+      long backOffMillis = instance.nextBackOffMillis(UNAVAILABLE);
+      assertTrue(10 <= backOffMillis);
+      assertTrue(backOffMillis <= Math.min(100, previous * 3));
+      previous = backOffMillis;
+    }
+    assertEquals(BackOff.STOP, instance.nextBackOffMillis(UNAVAILABLE));
+
+    // Progress after a retry restores the attempts.
+    instance.reset();
+    assertNotEquals(BackOff.STOP, instance.nextBackOffMillis(UNAVAILABLE));
+  }
+
+  @Test
+  public void testRetryOn() {
+    StreamRetryPolicy.Instance instance = StreamRetryPolicy.decorrelatedJitter(10, 100, 5)
+        .retryOn(Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED).createInstance();
+    assertNotEquals(BackOff.STOP, instance.nextBackOffMillis(UNAVAILABLE));
+    assertNotEquals(BackOff.STOP,
+        instance.nextBackOffMillis(Status.DEADLINE_EXCEEDED.asRuntimeException()));
+    assertEquals(BackOff.STOP, instance.nextBackOffMillis(INVALID_ARGUMENT));
+    assertEquals(BackOff.STOP, instance.nextBackOffMillis(new IllegalStateException()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRetryOnNoCodes() {
+    StreamRetryPolicy.defaultPolicy().retryOn();
+  }
+
+  @Test
+  public void testBudgetIsSharedByAllStreams() {
+    StreamRetryPolicy.RetryBudget budget = new StreamRetryPolicy.RetryBudget(3, 0);
+    StreamRetryPolicy policy = StreamRetryPolicy.decorrelatedJitter(10, 100, 5).withBudget(budget);
+    StreamRetryPolicy.Instance first = policy.createInstance();
+    StreamRetryPolicy.Instance second = policy.createInstance();
+    assertNotEquals(BackOff.STOP, first.nextBackOffMillis(UNAVAILABLE));
+    assertNotEquals(BackOff.STOP, second.nextBackOffMillis(UNAVAILABLE));
+    assertNotEquals(BackOff.STOP, first.nextBackOffMillis(UNAVAILABLE));
+    assertEquals(BackOff.STOP, second.nextBackOffMillis(UNAVAILABLE));
+    assertFalse(budget.tryAcquire());
+  }
+}
@@ -114,8 +114,9 @@ public class TestHelper {
   public static void consumeStreamTest(final GenomicsStreamIterator iter, int expectedNumItems) {
     // Tweak the backoff to be static instead of exponential since we are possibly injecting
     // fake faults.  Also note that this is used by both unit and integration tests.
-    iter.backoff =
-        new ExponentialBackOff.Builder().setInitialIntervalMillis(50).setMultiplier(1).build();
+    iter.setRetryPolicy(StreamRetryPolicy.exponentialBackOff(50, 1,
+        ExponentialBackOff.DEFAULT_MAX_INTERVAL_MILLIS,
+        ExponentialBackOff.DEFAULT_MAX_ELAPSED_TIME_MILLIS));
 
     Function<Message, String> getId = new Function<Message, String>() {
       @Override
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class VariantBlockTest {
+
+  private static List<Variant> getVariants() {
+    List<Variant> variants = Lists.newArrayList(VariantStreamMergerTest.COHORT_1);
+    variants.addAll(VariantStreamMergerTest.COHORT_2);
+    variants.addAll(VariantStreamMergerTest.COHORT_3);
+    variants.add(TestHelper.makeVariant("chr7", 300, "CAG", Arrays.asList("C")).build());
+    variants.add(TestHelper.makeVariant("chr7", 310, "AG", TestHelper.EMPTY_ALT_LIST).build());
+    variants.add(TestHelper.makeVariant("chr7", 320, "A",
+        Arrays.asList("C", VariantUtils.GATK_NON_VARIANT_SEGMENT_ALT), "het-AA").build());
+    variants.add(TestHelper.makeVariant("chr8", 5, "T", Arrays.asList("TA", "G"), "hom-AA")
+        .setId("variant-id")
+        .setQuality(30.5)
+        .addNames("rs123")
+        .putInfo("DP", ListValue.newBuilder()
+            .addValues(Value.newBuilder().setStringValue("17")).build())
+        .addCalls(TestHelper.makeCall("phased", 1, -1).setPhaseset("*").addGenotypeLikelihood(-0.5))
+        .build());
+    return variants;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    List<Variant> variants = getVariants();
+    VariantBlock block = VariantBlock.of(variants);
+
+    assertEquals(variants.size(), block.size());
+    assertEquals(variants, block.toVariants());
+    for (int i = 0; i < variants.size(); i++) {
+      Variant variant = variants.get(i);
+      assertEquals(variant.getReferenceName(), block.getReferenceName(i));
+      assertEquals(variant.getStart(), block.getStart(i));
+      assertEquals(variant.getEnd(), block.getEnd(i));
+      assertEquals(variant.getReferenceBases(), block.getReferenceBases(i));
+      assertEquals(variant.getAlternateBasesCount(), block.getAlternateBasesCount(i));
+      assertEquals(variant.getCallsCount(), block.getCallCount(i));
+      for (int c = 0; c < variant.getCallsCount(); c++) {
+        assertEquals(variant.getCalls(c).getCallSetName(), block.getCallSetName(i, c));
+        assertEquals(variant.getCalls(c).getCallSetName(),
+            block.getCallSetNames().get(block.getCallSetIndex(i, c)));
+        for (int g = 0; g < variant.getCalls(c).getGenotypeCount(); g++) {
+          assertEquals(variant.getCalls(c).getGenotype(g), block.getGenotype(i, c, g));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPredicatesMatchVariantUtils() {
+    List<Variant> variants = getVariants();
+    VariantBlock block = VariantBlock.of(variants);
+    for (int i = 0; i < variants.size(); i++) {
+      Variant variant = variants.get(i);
+      assertEquals(variant.toString(), VariantUtils.HAS_ALTERNATE.apply(variant),
+          block.hasAlternate(i));
+      assertEquals(variant.toString(), VariantUtils.IS_SNP.apply(variant), block.isSnp(i));
+      assertEquals(variant.toString(), VariantUtils.IS_NON_VARIANT_SEGMENT.apply(variant),
+          block.isNonVariantSegment(i));
+      for (int j = 0; j < variants.size(); j++) {
+        assertEquals(VariantUtils.isOverlapping(variant, variants.get(j)),
+            block.isOverlapping(i, j));
+      }
+    }
+  }
+
+  @Test
+  public void testManyVariants() {
+    List<Variant> variants = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      variants.add(TestHelper.makeVariant("chr" + (i % 3), i, "C", Arrays.asList("A", "G"),
+          "het-RA", "hom-AA", "het-AA").build());
+    }
+    assertEquals(variants, VariantBlock.of(variants).toVariants());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGenotypeOutOfRange() {
+    VariantBlock.builder().add(TestHelper.makeVariant("chr1", 1, "A", Arrays.asList("C"))
+        .addCalls(TestHelper.makeCall("too-many-alleles", 0, 200)).build());
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.utils.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.genomics.v1.Variant;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class VariantStreamMergerTest {
+
+  // Three cohorts over the same region, each sorted by start position as the streaming API
+  // returns them.
+  public static final List<Variant> COHORT_1 = ImmutableList.of(
+      TestHelper.makeBlockRecord("chr7", 95, 120, "A", TestHelper.EMPTY_ALT_LIST).build(),
+      TestHelper.makeVariant("chr7", 100, "C", Arrays.asList("A"), "het-RA").build(),
+      TestHelper.makeVariant("chr7", 110, "CC", Arrays.asList("C"), "hom-AA").build(),
+      TestHelper.makeBlockRecord("chr7", 121, 200, "A",
+          Arrays.asList(VariantUtils.GATK_NON_VARIANT_SEGMENT_ALT)).build());
+  public static final List<Variant> COHORT_2 = ImmutableList.of(
+      TestHelper.makeVariant("chr7", 98, "GCTAGCTA", Arrays.asList("G"), "het-RA").build(),
+      TestHelper.makeVariant("chr7", 100, "C", Arrays.asList("G"), "hom-AA").build(),
+      TestHelper.makeBlockRecord("chr7", 101, 150, "A", TestHelper.EMPTY_ALT_LIST).build(),
+      TestHelper.makeVariant("chr7", 160, "T", Arrays.asList("A"), "het-RA").build());
+  public static final List<Variant> COHORT_3 = ImmutableList.of(
+      TestHelper.makeBlockRecord("chr7", 90, 110, "A", TestHelper.EMPTY_ALT_LIST).build(),
+      TestHelper.makeVariant("chr7", 100, "C", Arrays.asList("A", "T"), "het-AA").build(),
+      TestHelper.makeVariant("chr7", 110, "C", Arrays.asList("CA"), "het-RA").build(),
+      TestHelper.makeVariant("chr7", 160, "T", Arrays.asList("A"), "hom-AA").build());
+
+  public static List<Iterator<Variant>> getStreams() {
+    return Arrays.asList(COHORT_1.iterator(), COHORT_2.iterator(), COHORT_3.iterator());
+  }
+
+  @Test
+  public void testMergedOrder() {
+    List<Variant> merged = Lists.newArrayList(new VariantStreamMerger(getStreams()));
+    List<Variant> expected = Lists.newArrayList(COHORT_1);
+    expected.addAll(COHORT_2);
+    expected.addAll(COHORT_3);
+    Collections.sort(expected, VariantUtils.NON_VARIANT_SEGMENT_COMPARATOR);
+    assertEquals(expected, merged);
+  }
+
+  @Test
+  public void testSameResultAsMergingTheWholeWindow() {
+    for (VariantMergeStrategy strategy : Arrays.asList(new MergeAllVariantsAtSameSite(),
+        new MergeNonVariantSegmentsWithSnps(), new MergeNonVariantSegmentsWithVariants())) {
+      for (long windowStart : Arrays.asList(90L, 100L, 105L)) {
+        assertSameResultAsMergingTheWholeWindow(strategy, windowStart);
+      }
+    }
+  }
+
+  private static void assertSameResultAsMergingTheWholeWindow(VariantMergeStrategy strategy,
+      long windowStart) {
+    // Records which compare as equal, such as the same SNP in two cohorts, keep the order of
+    // the streams.
+    List<Variant> window = Lists.newArrayList(COHORT_1);
+    window.addAll(COHORT_2);
+    window.addAll(COHORT_3);
+    VariantMergeStrategyTestHelper.AccumulatingVariantEmitter expected =
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+    strategy.merge(windowStart, window, expected);
+
+    VariantMergeStrategyTestHelper.AccumulatingVariantEmitter actual =
+        new VariantMergeStrategyTestHelper.AccumulatingVariantEmitter();
+    strategy.mergeSorted(windowStart, new VariantStreamMerger(getStreams()), actual);
+
+    assertFalse(expected.getVariants().isEmpty());
+    assertEquals(expected.getVariants(), actual.getVariants());
+  }
+
+  @Test
+  public void testNoStreams() {
+    assertFalse(new VariantStreamMerger(Collections.<Iterator<Variant>>emptyList()).hasNext());
+    assertFalse(new VariantStreamMerger(
+        Arrays.asList(Iterators.<Variant>emptyIterator(), COHORT_1.subList(0, 0).iterator()))
+        .hasNext());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testUnsortedStream() {
+    Iterators.size(new VariantStreamMerger(
+        Arrays.asList(COHORT_1.iterator(), Lists.reverse(COHORT_2).iterator())));
+  }
+}
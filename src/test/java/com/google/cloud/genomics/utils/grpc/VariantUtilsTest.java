@@ -17,6 +17,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.base.Predicate;
 import com.google.genomics.v1.Variant;
 
 import org.junit.Test;
@@ -135,6 +136,47 @@ public class VariantUtilsTest {
         TestHelper.makeVariant("chr17", 100, "C", Arrays.asList("G", GATK_ALT), "hom-RR").build()));
   }
 
+  @Test
+  public void testClassify() {
+    Variant snp = Variant.newBuilder().setReferenceBases("A").addAlternateBases("G").build();
+    Variant mnp = Variant.newBuilder().setReferenceBases("TCC").addAlternateBases("TAA").build();
+    Variant deletion = Variant.newBuilder().setReferenceBases("AT").addAlternateBases("A").build();
+    Variant gatkBlock = Variant.newBuilder().setReferenceBases("A").addAlternateBases(GATK_ALT)
+        .build();
+    Variant gatkSnp = Variant.newBuilder().setReferenceBases("A").addAlternateBases("C")
+        .addAlternateBases(GATK_ALT).build();
+    Variant missingAltBlock = Variant.newBuilder().setReferenceBases("A").build();
+
+    assertEquals(VariantUtils.CLASS_HAS_ALTERNATE | VariantUtils.CLASS_SNP,
+        VariantUtils.classify(snp));
+    assertEquals(VariantUtils.CLASS_HAS_ALTERNATE | VariantUtils.CLASS_MNP
+        | VariantUtils.CLASS_MULTI_NUCLEOTIDE, VariantUtils.classify(mnp));
+    assertEquals(VariantUtils.CLASS_HAS_ALTERNATE | VariantUtils.CLASS_INDEL
+        | VariantUtils.CLASS_MULTI_NUCLEOTIDE, VariantUtils.classify(deletion));
+    assertEquals(VariantUtils.CLASS_HAS_ALTERNATE | VariantUtils.CLASS_MULTI_NUCLEOTIDE
+        | VariantUtils.CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT, VariantUtils.classify(gatkBlock));
+    // Both alternates are not of length one, so this is not classified as an SNP.
+    assertEquals(VariantUtils.CLASS_HAS_ALTERNATE | VariantUtils.CLASS_MULTI_NUCLEOTIDE,
+        VariantUtils.classify(gatkSnp));
+    assertEquals(VariantUtils.CLASS_NON_VARIANT_SEGMENT_WITH_MISSING_ALT
+        | VariantUtils.CLASS_NON_VARIANT_SEGMENT_WITH_GATK_ALT,
+        VariantUtils.classify(missingAltBlock));
+
+    List<Variant> variants = Arrays.asList(snp, mnp, deletion, gatkBlock, gatkSnp,
+        missingAltBlock);
+    int[] classes = VariantUtils.classify(variants);
+    for (int i = 0; i < variants.size(); i++) {
+      assertEquals(VariantUtils.classify(variants.get(i)), classes[i]);
+      assertEquals(VariantUtils.IS_NON_VARIANT_SEGMENT.apply(variants.get(i)),
+          0 != (classes[i] & VariantUtils.CLASS_NON_VARIANT_SEGMENT));
+    }
+    Predicate<Variant> isSnpOrIndel =
+        VariantUtils.isAnyOf(VariantUtils.CLASS_SNP | VariantUtils.CLASS_INDEL);
+    assertTrue(isSnpOrIndel.apply(snp));
+    assertTrue(isSnpOrIndel.apply(deletion));
+    assertFalse(isSnpOrIndel.apply(mnp));
+  }
+
   @Test
   public void testIsOverlapping() {
     Variant blockRecord = TestHelper.makeBlockRecord("chr17", 100, 200, "C", TestHelper.EMPTY_ALT_LIST).build();